@@ -0,0 +1,46 @@
+// Servidor del Centro de Control (JVM puro, sin Android) y su suite JMH
+plugins {
+    java
+    application
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
+
+application {
+    mainClass = "centrodecontrol.ServidorChat"
+}
+
+// La consola de administración lee de stdin
+tasks.named<JavaExec>("run") {
+    standardInput = System.`in`
+}
+
+tasks.register<JavaExec>("loadTest") {
+    group = "application"
+    description = "Generador de carga por loopback contra un servidor en marcha"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass = "centrodecontrol.LoadTest"
+}
+
+// ./gradlew :CentroDeControl:jmh  ->  build/results/jmh/results.json
+jmh {
+    jmhVersion = libs.versions.jmh
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+}
@@ -0,0 +1,42 @@
+package centrodecontrol;
+
+/**
+ * Cliente sin red para los benchmarks: su "escritor" vacía la cola en el
+ * acto, como si el socket nunca se llenara.
+ */
+final class BenchClient extends ClientHandler {
+
+    private long delivered;
+
+    BenchClient(ServidorChat servidor, String name) {
+        super(servidor);
+        this.clientName = name;
+        this.connected = true;
+    }
+
+    @Override
+    protected void onQueued() {
+        while (outbound.poll() != null) {
+            delivered++;
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        connected = false;
+    }
+
+    @Override
+    protected void abort() {
+        connected = false;
+    }
+
+    @Override
+    public String getIpAddress() {
+        return "127.0.0.1";
+    }
+
+    long delivered() {
+        return delivered;
+    }
+}
@@ -0,0 +1,59 @@
+package centrodecontrol;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Reparto de broadcastMessage a 10, 1.000 y 10.000 destinatarios. Mide crear
+ * la trama, recorrer la instantánea y encolar en cada cliente (la cola se
+ * vacía en el acto, sin sockets).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private PrintStream console;
+    private ServidorChat servidor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        servidor = new ServidorChat(0);
+        for (int i = 0; i < recipients; i++) {
+            servidor.addClient(new BenchClient(servidor, "cliente-" + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void broadcastLegacy() {
+        servidor.broadcastMessage("[SYSTEM]Aviso: corte de agua en la zona centro", null);
+    }
+
+    @Benchmark
+    public void routeToLobby() {
+        servidor.routeToRoom(servidor.getRooms().lobby(), Frame.of(Protocol.MSG, "hola a todos"), null);
+    }
+}
@@ -0,0 +1,60 @@
+package centrodecontrol;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Coste de processMessage: parseo del prefijo legacy y despacho por la tabla
+ * de comandos. El [MSG] va a una sala donde el emisor está solo, así que no
+ * hay reparto; la consola se descarta para medir solo el camino del mensaje.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DispatchBenchmark {
+
+    private PrintStream console;
+    private BenchClient client;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        ServidorChat servidor = new ServidorChat(0);
+        client = new BenchClient(servidor, "bench");
+        servidor.addClient(client);
+        client.processMessage("[JOIN]bench-solo");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public void chat() {
+        client.processMessage("[MSG]hola, ¿qué tal por el centro?");
+    }
+
+    @Benchmark
+    public void pong() {
+        client.processMessage("[PONG]");
+    }
+
+    @Benchmark
+    public void plainText() {
+        client.processMessage("texto sin prefijo");
+    }
+}
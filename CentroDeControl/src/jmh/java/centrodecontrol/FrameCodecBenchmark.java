@@ -0,0 +1,88 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Codificación y decodificación de tramas v1 (writeUTF) y v2 (binarias)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FrameCodecBenchmark {
+
+    @Param({"32", "1024"})
+    public int size;
+
+    private String body;
+    private byte[] binary;
+    private byte[] legacy;
+    private final InboundFrame inbound = new InboundFrame();
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append("Incidencia en la calle Mayor ñ ");
+        }
+        body = sb.substring(0, size);
+        byte[] frame = Protocol.encodeBinary(Protocol.MSG, Protocol.FLAGS_NONE, body);
+        binary = new byte[frame.length - 4];
+        System.arraycopy(frame, 4, binary, 0, binary.length);
+        byte[] utf = Protocol.encodeUTF("[MSG]" + body);
+        legacy = new byte[utf.length - 2];
+        System.arraycopy(utf, 2, legacy, 0, legacy.length);
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() throws IOException {
+        return Frame.of(Protocol.MSG, body).bytes(Protocol.VERSION_LEGACY);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() throws IOException {
+        return Frame.of(Protocol.MSG, body).bytes(Protocol.VERSION_BINARY);
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryWithOffset() throws IOException {
+        return Frame.journaled(Protocol.MSG, body, 123_456_789L).bytes(Protocol.VERSION_BINARY);
+    }
+
+    @Benchmark
+    public String decodeBinary() throws IOException {
+        return Protocol.decodeBinary(binary, 0, binary.length).body;
+    }
+
+    @Benchmark
+    public int parseBinaryInPlace() throws IOException {
+        Protocol.parseBinary(binary, 0, binary.length, inbound);
+        return inbound.bodyLength();
+    }
+
+    @Benchmark
+    public String decodeLegacyBody() throws IOException {
+        Protocol.parseLegacy(legacy, 0, legacy.length, inbound);
+        return inbound.body();
+    }
+
+    @Benchmark
+    public int decodeLegacyPrefix() {
+        return Protocol.opcodeOf("[MSG]" + body);
+    }
+
+    @Benchmark
+    public int decodeLegacyPrefixBytes() {
+        return Protocol.opcodeOf(legacy, 0, legacy.length);
+    }
+}
@@ -0,0 +1,137 @@
+package centrodecontrol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Ida y vuelta de extremo a extremo por loopback: un cliente envía [MSG] y
+ * se espera a que otro cliente de la misma sala lo reciba. Incluye sockets,
+ * hilos del servidor, colas de salida y codificación.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoopbackRoundTripBenchmark {
+
+    @Param({"THREADS", "NIO"})
+    public ServidorChat.Mode mode;
+
+    @Param({"1", "2"})
+    public int protocol;
+
+    private PrintStream console;
+    private ServidorChat servidor;
+    private Peer sender;
+    private Peer receiver;
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        servidor = new ServidorChat(0, mode, 1);
+        servidor.setHeartbeat(0, 0);
+        servidor.listen();
+
+        sender = new Peer(servidor.getPort(), protocol, "emisor");
+        receiver = new Peer(servidor.getPort(), protocol, "receptor");
+        sender.send("[JOIN]bench");
+        sender.awaitChat("[SYSTEM]", "Te has unido");
+        receiver.send("[JOIN]bench");
+        receiver.awaitChat("[SYSTEM]", "Te has unido");
+        sender.awaitChat("[SYSTEM]", "receptor se ha unido");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sender.close();
+        receiver.close();
+        servidor.stop();
+        System.setOut(console);
+    }
+
+    @Benchmark
+    public String roundTrip() throws IOException {
+        String body = "ping-" + (sequence++);
+        sender.send("[MSG]" + body);
+        return receiver.awaitChat("[MSG]", body);
+    }
+
+    /**
+     * Cliente mínimo con el protocolo de SocketCliente
+     */
+    static final class Peer {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private int version = Protocol.VERSION_LEGACY;
+
+        Peer(int port, int protocol, String name) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (protocol >= Protocol.VERSION_BINARY) {
+                send("[HELLO]" + Protocol.VERSION_BINARY);
+                awaitChat("[HELLO]", "");
+                version = Protocol.VERSION_BINARY;
+            }
+            send("[LOGIN]" + name);
+            awaitChat("[SYSTEM]", "Conexión exitosa");
+        }
+
+        void send(String message) throws IOException {
+            if (version >= Protocol.VERSION_BINARY) {
+                int opcode = Protocol.opcodeOf(message);
+                out.write(Protocol.encodeBinary(opcode, Protocol.FLAGS_NONE, Protocol.bodyOf(message, opcode)));
+            } else {
+                out.writeUTF(message);
+            }
+            out.flush();
+        }
+
+        /**
+         * Leer hasta recibir un mensaje con ese prefijo que empiece por el texto dado
+         */
+        String awaitChat(String prefix, String start) throws IOException {
+            while (true) {
+                String message;
+                if (version >= Protocol.VERSION_BINARY) {
+                    int length = in.readInt();
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    Protocol.Decoded decoded = Protocol.decodeBinary(data, 0, length);
+                    message = Protocol.toLegacy(decoded.opcode, decoded.body);
+                } else {
+                    message = in.readUTF();
+                }
+                if (message.startsWith(prefix) && message.startsWith(start, prefix.length())) {
+                    return message;
+                }
+            }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
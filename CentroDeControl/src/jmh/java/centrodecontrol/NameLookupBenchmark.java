@@ -0,0 +1,52 @@
+package centrodecontrol;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Búsqueda por nombre en el registro (/msg, /kick, comprobación de [LOGIN])
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NameLookupBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int clients;
+
+    private ClientRegistry registry;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ServidorChat servidor = new ServidorChat(0);
+        registry = new ClientRegistry();
+        names = new String[clients];
+        for (int i = 0; i < clients; i++) {
+            names[i] = "Usuario-" + i;
+            BenchClient client = new BenchClient(servidor, names[i]);
+            registry.add(client);
+            registry.reserve(names[i], client);
+        }
+    }
+
+    @Benchmark
+    public Object findHit() {
+        return registry.find(names[ThreadLocalRandom.current().nextInt(clients)]);
+    }
+
+    @Benchmark
+    public boolean isNameTakenMiss() {
+        return registry.isNameTaken("nadie-" + ThreadLocalRandom.current().nextInt(clients));
+    }
+}
@@ -0,0 +1,199 @@
+package centrodecontrol;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Control de admisión adaptativo de todo el servidor.
+ *
+ * Limita las conexiones activas y los repartos (broadcasts, mensajes de sala,
+ * alertas) en curso. Cada ventana compara el retraso de las colas de salida
+ * (p90 de las muestras de OutboundQueue, suavizado entre ventanas) con el
+ * objetivo: mientras no se pasa, los límites suben poco a poco si se están
+ * usando (suma); si se pasa, bajan en proporción a cuánto (gradiente
+ * objetivo/observado, como mucho a la mitad) sin quedar por debajo de lo que
+ * ya está en uso, y el servidor se considera saturado. Saturado, rechaza los
+ * logins nuevos con un aviso de cuándo reintentar; las conexiones y sesiones
+ * que ya tiene siguen funcionando, y son ellas las que recuperan la latencia.
+ */
+final class AdmissionControl {
+
+    /** Cada cuánto se ajustan los límites */
+    static final long WINDOW_MS = 1000;
+
+    /** Muestras mínimas en una ventana para fiarse de su percentil */
+    private static final int MIN_SAMPLES = 20;
+
+    private static final int MIN_CONNECTIONS = 16;
+    private static final int MIN_BROADCASTS = 4;
+
+    /** Espera máxima que se sugiere al rechazar */
+    private static final int MAX_RETRY_SECONDS = 30;
+
+    private final long targetNanos;
+    private final int maxConnections;
+    private final int maxBroadcasts;
+    private final ServerMetrics metrics;
+
+    private volatile int connectionLimit;
+    private volatile int broadcastLimit;
+    private volatile boolean saturated = false;
+    private volatile long delayNanos = 0;
+
+    // Repartos en curso y el máximo alcanzado en la ventana
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    AdmissionControl(long targetNanos, int maxConnections, int maxBroadcasts, ServerMetrics metrics) {
+        this.targetNanos = Math.max(1, targetNanos);
+        this.maxConnections = Math.max(MIN_CONNECTIONS, maxConnections);
+        this.maxBroadcasts = Math.max(MIN_BROADCASTS, maxBroadcasts);
+        this.metrics = metrics;
+        this.connectionLimit = this.maxConnections;
+        this.broadcastLimit = this.maxBroadcasts;
+    }
+
+    /**
+     * Cerrar la ventana y ajustar los límites (lo llama un temporizador)
+     * @param connections conexiones abiertas ahora
+     */
+    void adjust(int connections) {
+        LatencyHistogram window = metrics.queueDelayWindow;
+        long delay = window.count() >= MIN_SAMPLES ? window.percentile(90) : 0;
+        window.reset();
+        int peak = Math.max(peakInFlight.getAndSet(0), inFlight.get());
+
+        // Media móvil de las ventanas: un pico suelto (una ráfaga de
+        // conexiones, una pausa del GC) no basta para saturar
+        long smoothed = (delayNanos + delay) / 2;
+        delayNanos = smoothed;
+        ServerLog.debug("Admisión: retraso p90={} us (suavizado {} us), {} repartos como máximo",
+            delay / 1000, smoothed / 1000, peak);
+
+        if (delay > targetNanos && smoothed > targetNanos) {
+            // Bajar en proporción al exceso, pero nunca por debajo de lo que
+            // ya se está usando: lo que hay sigue, lo nuevo espera
+            double gradient = Math.max(0.5, (double) targetNanos / smoothed);
+            connectionLimit = decrease(connectionLimit, connections, gradient, MIN_CONNECTIONS);
+            broadcastLimit = decrease(broadcastLimit, peak, gradient, MIN_BROADCASTS);
+            if (!saturated) {
+                saturated = true;
+                ServerLog.warn("[!] Servidor saturado (retraso de salida p90={} ms): límite de {} conexiones",
+                    smoothed / 1_000_000, connectionLimit);
+            }
+        } else {
+            // Subir sin pasar del máximo, solo si el límite se está usando
+            if (connections >= connectionLimit / 2) {
+                connectionLimit = Math.min(maxConnections, connectionLimit + headroom(connectionLimit));
+            }
+            if (peak >= broadcastLimit / 2) {
+                broadcastLimit = Math.min(maxBroadcasts, broadcastLimit + headroom(broadcastLimit));
+            }
+            if (saturated) {
+                saturated = false;
+                ServerLog.info("[Sistema] Fin de la saturación: límite de {} conexiones", connectionLimit);
+            }
+        }
+    }
+
+    private static int decrease(int limit, int used, double gradient, int min) {
+        return Math.max(min, Math.min(limit, Math.max(used, (int) (limit * gradient))));
+    }
+
+    private static int headroom(int limit) {
+        return Math.max(1, (int) Math.sqrt(limit));
+    }
+
+    /**
+     * ¿Se acepta una conexión nueva?
+     * @param connections conexiones abiertas ahora
+     */
+    boolean admitConnection(int connections) {
+        if (connections < connectionLimit) {
+            return true;
+        }
+        metrics.connectionsShed.increment();
+        return false;
+    }
+
+    /**
+     * ¿Se acepta un login nuevo? (reanudar una sesión no pasa por aquí)
+     */
+    boolean admitLogin() {
+        if (!saturated) {
+            return true;
+        }
+        metrics.loginsShed.increment();
+        return false;
+    }
+
+    /**
+     * Reservar un reparto de un cliente si hay hueco. Se comprueba y se suma
+     * en un solo paso, para que varios a la vez no pasen del límite.
+     * @return false si hay demasiados en curso; si no, al acabar hay que
+     *         llamar a broadcastFinished()
+     */
+    boolean tryAcquireBroadcast() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= broadcastLimit) {
+                metrics.broadcastsShed.increment();
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        recordPeak(current + 1);
+        return true;
+    }
+
+    /**
+     * Un reparto que no se limita (avisos, entradas y salidas de sala,
+     * mensajes de otros nodos): solo cuenta como en curso
+     */
+    void broadcastStarted() {
+        recordPeak(inFlight.incrementAndGet());
+    }
+
+    private void recordPeak(int current) {
+        int peak;
+        while (current > (peak = peakInFlight.get()) && !peakInFlight.compareAndSet(peak, current)) {
+            // reintentar
+        }
+    }
+
+    void broadcastFinished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Segundos que se sugiere esperar antes de reintentar: más cuanto más
+     * se pasa del objetivo
+     */
+    int retryAfterSeconds() {
+        long windows = Math.max(1, (delayNanos + targetNanos - 1) / targetNanos);
+        return (int) Math.min(MAX_RETRY_SECONDS, windows * WINDOW_MS / 1000);
+    }
+
+    boolean isSaturated() {
+        return saturated;
+    }
+
+    int getConnectionLimit() {
+        return connectionLimit;
+    }
+
+    int getBroadcastLimit() {
+        return broadcastLimit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    long getDelayNanos() {
+        return delayNanos;
+    }
+
+    long getTargetNanos() {
+        return targetNanos;
+    }
+}
@@ -0,0 +1,58 @@
+package centrodecontrol;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool de buffers de lectura de un tamaño fijo.
+ *
+ * Las conexiones toman un buffer al abrirse y lo devuelven al cerrarse, y
+ * las tramas grandes toman uno del pool de su tamaño solo mientras se leen,
+ * así que con muchas conexiones y reconexiones no se reserva memoria nueva
+ * en cada una. Si el pool está vacío se crea un buffer; si está lleno, el
+ * devuelto se deja al recolector.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<byte[]> free;
+    private final LongAdder allocated = new LongAdder();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(Math.max(1, maxPooled));
+    }
+
+    byte[] acquire() {
+        byte[] buffer = free.poll();
+        if (buffer == null) {
+            allocated.increment();
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Buffers libres esperando a reutilizarse
+     */
+    int available() {
+        return free.size();
+    }
+
+    /**
+     * Buffers creados desde el arranque (los reutilizados no cuentan)
+     */
+    long allocated() {
+        return allocated.sum();
+    }
+}
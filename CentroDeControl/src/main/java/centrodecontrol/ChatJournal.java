@@ -0,0 +1,600 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Diario de mensajes en disco, de solo escritura al final.
+ *
+ * Cada mensaje enrutado recibe un offset creciente y se añade al segmento
+ * activo, un fichero mapeado en memoria que se llama como su primer offset
+ * (00000000000000000000.journal). Cuando se llena se abre otro. Los fsync se
+ * agrupan: un hilo hace force() del segmento activo cada flushIntervalMs si
+ * ha cambiado, de modo que muchos mensajes comparten una sola escritura a
+ * disco. Los segmentos cerrados se borran por tamaño total o por antigüedad.
+ *
+ * Formato de un registro:
+ *
+ *   [longitud: int32][crc32c: int32][offset: int64][instante: int64][opcode: 1 byte]
+ *   [sala: short + UTF-8][remitente: short + UTF-8][cuerpo UTF-8]
+ *
+ * donde la longitud y el CRC cubren lo que sigue al CRC. Una longitud 0
+ * marca el final de los datos del segmento; al arrancar, un registro con
+ * CRC incorrecto (escritura a medias) se descarta junto con lo que le sigue.
+ *
+ * Cada segmento lleva en memoria un índice disperso con la posición de uno de
+ * cada INDEX_INTERVAL registros (los offsets de un segmento son consecutivos),
+ * para leer registros sueltos sin recorrer todo lo anterior. El de los
+ * segmentos que ya estaban en disco al arrancar se construye la primera vez
+ * que se usa.
+ */
+class ChatJournal implements AutoCloseable {
+
+    /** Sala de los mensajes que van a todos los clientes (broadcasts) */
+    static final String ALL_ROOMS = "*";
+
+    private static final String SUFFIX = ".journal";
+    private static final int RECORD_HEADER = 4 + 4;
+    private static final int ENTRY_HEADER = 8 + 8 + 1 + 2 + 2;
+
+    /** Registros entre dos entradas del índice de un segmento */
+    private static final int INDEX_INTERVAL = 32;
+
+    /** Tamaño máximo de un segmento en MiB (se mapea entero en memoria) */
+    static final int MAX_SEGMENT_MB = 1024;
+
+    /**
+     * Recorrido de registros durante una reproducción
+     */
+    interface Visitor {
+        /**
+         * @return false para terminar el recorrido
+         */
+        boolean visit(long offset, long timestamp, int opcode, String room, String sender, String body);
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long retentionBytes;
+    private final long retentionMs;
+    private final long flushIntervalMs;
+
+    // Segmentos por offset base; el último es el activo
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    // Estado del escritor (protegido por this)
+    private Segment active;
+    private long nextOffset;
+    private boolean dirty;
+    private boolean closed;
+
+    private Thread flusher;
+
+    /**
+     * @param segmentSize bytes de cada segmento, de 1 a MAX_SEGMENT_MB MiB
+     */
+    ChatJournal(Path directory, int segmentSize, long retentionBytes, long retentionMs, long flushIntervalMs) {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_MB * 1024 * 1024) {
+            throw new IllegalArgumentException("Tamaño de segmento no válido: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionBytes = retentionBytes;
+        this.retentionMs = retentionMs;
+        this.flushIntervalMs = Math.max(1, flushIntervalMs);
+    }
+
+    /**
+     * Abrir el diario: recupera los segmentos existentes y arranca el hilo
+     * que agrupa los fsync
+     */
+    synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    ServerLog.warn("[!] Fichero ignorado en el diario: {}", name);
+                }
+            }
+        }
+        bases.sort(null);
+        for (Long base : bases) {
+            Path file = segmentPath(base);
+            Segment segment = new Segment(base, file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+            segment.indexed = false;
+            segments.put(base, segment);
+        }
+
+        if (segments.isEmpty()) {
+            nextOffset = 0;
+            active = openSegment(0, segmentSize);
+        } else {
+            Segment last = segments.lastEntry().getValue();
+            active = openSegment(last.base, (int) Math.max(segmentSize, last.fileSize));
+            nextOffset = recover(active);
+        }
+
+        flusher = new Thread(this::flushLoop, "diario-fsync");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Añadir un mensaje al diario
+     * @return el offset asignado
+     */
+    long append(int opcode, String room, String sender, String body) throws IOException {
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        if (roomBytes.length > 0xFFFF || senderBytes.length > 0xFFFF) {
+            throw new IOException("Nombre de sala o remitente demasiado largo");
+        }
+        int length = ENTRY_HEADER + roomBytes.length + senderBytes.length + bodyBytes.length;
+        long timestamp = System.currentTimeMillis();
+
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Diario cerrado");
+            }
+            // Se reserva espacio para la marca de fin (longitud 0)
+            if (active.end + RECORD_HEADER + length + 4 > active.buffer.capacity()) {
+                roll(RECORD_HEADER + length + 4);
+            }
+            long offset = nextOffset++;
+
+            ByteBuffer out = active.buffer;
+            int start = active.end;
+            out.position(start + RECORD_HEADER);
+            out.putLong(offset);
+            out.putLong(timestamp);
+            out.put((byte) opcode);
+            out.putShort((short) roomBytes.length);
+            out.put(roomBytes);
+            out.putShort((short) senderBytes.length);
+            out.put(senderBytes);
+            out.put(bodyBytes);
+
+            CRC32C crc = new CRC32C();
+            ByteBuffer covered = out.duplicate();
+            covered.position(start + RECORD_HEADER).limit(start + RECORD_HEADER + length);
+            crc.update(covered);
+            out.putInt(start, length);
+            out.putInt(start + 4, (int) crc.getValue());
+
+            if ((offset - active.base) % INDEX_INTERVAL == 0) {
+                active.addIndex(start);
+            }
+
+            // Publicar el registro a los lectores
+            active.lastOffset = offset;
+            active.end = start + RECORD_HEADER + length;
+            dirty = true;
+            return offset;
+        }
+    }
+
+    /**
+     * Reproducir los mensajes posteriores a un offset, en orden. Lee los
+     * segmentos de forma secuencial sin bloquear al escritor.
+     * @param afterOffset último offset que ya tiene el cliente (-1 para todo)
+     * @return cuántos registros se han visitado
+     */
+    long replay(long afterOffset, Visitor visitor) throws IOException {
+        Map.Entry<Long, Segment> first = segments.floorEntry(afterOffset + 1);
+        Long fromBase = first != null ? first.getKey() : segments.isEmpty() ? null : segments.firstKey();
+        if (fromBase == null) {
+            return 0;
+        }
+
+        long visited = 0;
+        for (Segment segment : segments.tailMap(fromBase, true).values()) {
+            ByteBuffer in = view(segment);
+            if (in == null) {
+                // Borrado por retención mientras se reproducía
+                continue;
+            }
+            int limit = in.limit();
+
+            int pos = 0;
+            while (pos + RECORD_HEADER <= limit) {
+                int length = in.getInt(pos);
+                if (length < ENTRY_HEADER || pos + RECORD_HEADER + length > limit) {
+                    break;
+                }
+                long offset = in.getLong(pos + RECORD_HEADER);
+                if (offset > afterOffset) {
+                    in.position(pos + RECORD_HEADER + 8);
+                    long timestamp = in.getLong();
+                    int opcode = in.get() & 0xFF;
+                    String room = readShortString(in);
+                    String sender = readShortString(in);
+                    int bodyLength = pos + RECORD_HEADER + length - in.position();
+                    if (bodyLength < 0) {
+                        break;
+                    }
+                    String body = readString(in, bodyLength);
+                    visited++;
+                    if (!visitor.visit(offset, timestamp, opcode, room, sender, body)) {
+                        return visited;
+                    }
+                }
+                pos += RECORD_HEADER + length;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Leer registros sueltos por su offset. Cada uno se busca desde la entrada
+     * del índice de su segmento que le precede, así que el coste no depende
+     * de cuánto diario haya entre ellos. Los que ya no están en disco se
+     * saltan.
+     * @param offsets offsets ordenados de menor a mayor
+     * @return cuántos registros se han visitado
+     */
+    long read(long[] offsets, Visitor visitor) throws IOException {
+        long visited = 0;
+        Segment segment = null;
+        ByteBuffer in = null;
+        for (long offset : offsets) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.getValue() != segment) {
+                segment = entry.getValue();
+                in = view(segment);
+                if (in != null && !segment.indexed) {
+                    segment.buildIndex(in);
+                }
+            }
+            if (in == null) {
+                continue;
+            }
+
+            long slot = (offset - segment.base) / INDEX_INTERVAL;
+            if (slot >= segment.indexSize) {
+                continue;
+            }
+            int pos = segment.index[(int) slot];
+            int limit = in.limit();
+            for (int i = 0; i < INDEX_INTERVAL && pos + RECORD_HEADER <= limit; i++) {
+                int length = in.getInt(pos);
+                if (length < ENTRY_HEADER || pos + RECORD_HEADER + length > limit) {
+                    break;
+                }
+                long found = in.getLong(pos + RECORD_HEADER);
+                if (found > offset) {
+                    break;
+                }
+                if (found == offset) {
+                    in.position(pos + RECORD_HEADER + 8);
+                    long timestamp = in.getLong();
+                    int opcode = in.get() & 0xFF;
+                    String room = readShortString(in);
+                    String sender = readShortString(in);
+                    int bodyLength = pos + RECORD_HEADER + length - in.position();
+                    if (bodyLength < 0) {
+                        break;
+                    }
+                    String body = readString(in, bodyLength);
+                    visited++;
+                    if (!visitor.visit(offset, timestamp, opcode, room, sender, body)) {
+                        return visited;
+                    }
+                    break;
+                }
+                pos += RECORD_HEADER + length;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Offset que recibirá el próximo mensaje
+     */
+    synchronized long nextOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Offset más antiguo que sigue en disco
+     */
+    long firstOffset() {
+        Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first != null ? first.getKey() : 0;
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    long sizeOnDisk() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.fileSize;
+        }
+        return total;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Forzar a disco lo pendiente y cerrar
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            flush();
+            thread = flusher;
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Hilo de fsync agrupado
+     */
+    private void flushLoop() {
+        long lastRetention = System.currentTimeMillis();
+        while (true) {
+            try {
+                Thread.sleep(flushIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                flush();
+            }
+            // La antigüedad se revisa aunque no se abran segmentos nuevos
+            long now = System.currentTimeMillis();
+            if (now - lastRetention >= 60_000) {
+                lastRetention = now;
+                applyRetention();
+            }
+        }
+    }
+
+    /**
+     * force() del segmento activo si ha cambiado (con el monitor tomado)
+     */
+    private void flush() {
+        if (dirty) {
+            active.buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Cerrar el segmento activo y abrir uno nuevo (con el monitor tomado)
+     */
+    private void roll(int minSize) throws IOException {
+        active.buffer.force();
+        dirty = false;
+        active.closedAt = System.currentTimeMillis();
+        active.buffer = null;
+
+        // El segmento cerrado se deja con el tamaño justo de sus datos
+        try (FileChannel channel = FileChannel.open(active.file, StandardOpenOption.WRITE)) {
+            channel.truncate(active.end + 4);
+        }
+        active.fileSize = active.end + 4;
+        active = openSegment(nextOffset, Math.max(segmentSize, minSize));
+        applyRetention();
+    }
+
+    /**
+     * Vista de solo lectura de los datos de un segmento, con el límite al
+     * final de lo escrito
+     * @return null si el segmento ya se ha borrado
+     */
+    private ByteBuffer view(Segment segment) throws IOException {
+        synchronized (this) {
+            if (segment == active) {
+                ByteBuffer in = active.buffer.duplicate();
+                in.limit(active.end);
+                return in;
+            }
+        }
+        if (!Files.exists(segment.file)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(segment.file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private Segment openSegment(long base, int size) throws IOException {
+        Path file = segmentPath(base);
+        Segment segment = segments.get(base);
+        if (segment == null) {
+            segment = new Segment(base, file, size, System.currentTimeMillis());
+            segments.put(base, segment);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        segment.fileSize = size;
+        return segment;
+    }
+
+    /**
+     * Buscar el final de los datos válidos del segmento activo
+     * @return el siguiente offset
+     */
+    private long recover(Segment segment) {
+        MappedByteBuffer in = segment.buffer;
+        CRC32C crc = new CRC32C();
+        int pos = 0;
+        long next = segment.base;
+        segment.indexSize = 0;
+        while (pos + RECORD_HEADER <= in.capacity()) {
+            int length = in.getInt(pos);
+            if (length < ENTRY_HEADER || pos + RECORD_HEADER + length + 4 > in.capacity()) {
+                break;
+            }
+            ByteBuffer covered = in.duplicate();
+            covered.position(pos + RECORD_HEADER).limit(pos + RECORD_HEADER + length);
+            crc.reset();
+            crc.update(covered);
+            if ((int) crc.getValue() != in.getInt(pos + 4)) {
+                ServerLog.warn("[!] Registro incompleto en el diario en offset {}, se descarta", next);
+                break;
+            }
+            next = in.getLong(pos + RECORD_HEADER) + 1;
+            if ((next - 1 - segment.base) % INDEX_INTERVAL == 0) {
+                segment.addIndex(pos);
+            }
+            pos += RECORD_HEADER + length;
+        }
+        segment.indexed = true;
+        // Borrar restos de una escritura a medias para que los lectores paren aquí
+        for (int i = pos; i < Math.min(pos + RECORD_HEADER, in.capacity()); i++) {
+            in.put(i, (byte) 0);
+        }
+        segment.end = pos;
+        segment.lastOffset = next - 1;
+        return next;
+    }
+
+    /**
+     * Borrar segmentos cerrados que superan el límite de tamaño o antigüedad
+     */
+    private synchronized void applyRetention() {
+        long total = sizeOnDisk();
+        long now = System.currentTimeMillis();
+        for (Segment segment : segments.values()) {
+            if (segment == active) {
+                break;
+            }
+            boolean tooBig = retentionBytes > 0 && total > retentionBytes;
+            boolean tooOld = retentionMs > 0 && now - segment.closedAt > retentionMs;
+            if (!tooBig && !tooOld) {
+                break;
+            }
+            segments.remove(segment.base);
+            total -= segment.fileSize;
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                ServerLog.error("[!] No se pudo borrar el segmento {}: {}", segment.file, e.getMessage());
+            }
+        }
+    }
+
+    private Path segmentPath(long base) {
+        return directory.resolve(String.format("%020d%s", base, SUFFIX));
+    }
+
+    private static String readShortString(ByteBuffer in) {
+        int length = in.getShort() & 0xFFFF;
+        return readString(in, length);
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Un fichero del diario
+     */
+    private static final class Segment {
+        final long base;
+        final Path file;
+        volatile long fileSize;
+        volatile long closedAt;
+
+        // Solo en el segmento activo
+        MappedByteBuffer buffer;
+        volatile int end;
+        volatile long lastOffset;
+
+        // Índice disperso: index[i] es la posición del registro base + i * INDEX_INTERVAL
+        volatile int[] index = new int[16];
+        volatile int indexSize;
+        volatile boolean indexed = true;
+
+        Segment(long base, Path file, long fileSize, long closedAt) {
+            this.base = base;
+            this.file = file;
+            this.fileSize = fileSize;
+            this.closedAt = closedAt;
+            this.lastOffset = base - 1;
+        }
+
+        /**
+         * Añadir la posición del siguiente registro indexado (solo un
+         * escritor a la vez)
+         */
+        void addIndex(int position) {
+            int[] current = index;
+            if (indexSize == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[indexSize] = position;
+            index = current;
+            indexSize++;
+        }
+
+        /**
+         * Construir el índice de un segmento que ya estaba en disco al
+         * arrancar, recorriéndolo una vez
+         */
+        synchronized void buildIndex(ByteBuffer in) {
+            if (indexed) {
+                return;
+            }
+            int pos = 0;
+            int limit = in.limit();
+            while (pos + RECORD_HEADER <= limit) {
+                int length = in.getInt(pos);
+                if (length < ENTRY_HEADER || pos + RECORD_HEADER + length > limit) {
+                    break;
+                }
+                if ((in.getLong(pos + RECORD_HEADER) - base) % INDEX_INTERVAL == 0) {
+                    addIndex(pos);
+                }
+                pos += RECORD_HEADER + length;
+            }
+            indexed = true;
+        }
+    }
+}
@@ -0,0 +1,885 @@
+package centrodecontrol;
+
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handler para cada cliente conectado
+ * Contiene la lógica del protocolo ([LOGIN], [MSG], [SEQ], [LOGOUT], [JOIN],
+ * [LEAVE], [REPLAY], [AGENT], [SUPPORT], [RESOLVE]), común a todos los modos
+ * de ejecución y a las dos versiones del protocolo. Los mensajes salientes
+ * pasan por una cola acotada que cada transporte vacía con su propio
+ * escritor.
+ */
+abstract class ClientHandler {
+
+    /**
+     * Comando del protocolo. Se despacha por opcode con una tabla.
+     */
+    interface Command {
+        void handle(ClientHandler client, String body);
+    }
+
+    private static final Command[] COMMANDS = new Command[256];
+
+    static {
+        COMMANDS[Protocol.HELLO] = ClientHandler::onHello;
+        COMMANDS[Protocol.LOGIN] = ClientHandler::onLogin;
+        COMMANDS[Protocol.RESUME] = ClientHandler::onResume;
+        COMMANDS[Protocol.MSG] = ClientHandler::onChat;
+        COMMANDS[Protocol.SEQ] = ClientHandler::onSequenced;
+        COMMANDS[Protocol.LOGOUT] = ClientHandler::onLogout;
+        COMMANDS[Protocol.JOIN] = ClientHandler::onJoin;
+        COMMANDS[Protocol.LEAVE] = ClientHandler::onLeave;
+        COMMANDS[Protocol.REPLAY] = ClientHandler::onReplay;
+        COMMANDS[Protocol.PING] = ClientHandler::onPing;
+        COMMANDS[Protocol.SUBSCRIBE] = ClientHandler::onSubscribe;
+        COMMANDS[Protocol.ALERT] = ClientHandler::onAlert;
+        COMMANDS[Protocol.AGENT] = ClientHandler::onAgent;
+        COMMANDS[Protocol.SUPPORT] = ClientHandler::onSupport;
+        COMMANDS[Protocol.RESOLVE] = ClientHandler::onResolve;
+        // [PONG] solo cuenta como actividad, que ya se anota al despachar
+        COMMANDS[Protocol.PONG] = (client, body) -> { };
+    }
+
+    /** Longitud máxima del nombre de una sala */
+    private static final int MAX_ROOM_NAME = 64;
+
+    protected final ServidorChat servidor;
+
+    protected volatile String clientName;
+    protected volatile boolean connected = false;
+
+    // Login esperando a que el clúster conceda el nombre
+    private volatile boolean loginPending = false;
+
+    // Agente de la mesa de soporte ([AGENT]) en vez de ciudadano
+    private volatile boolean agent = false;
+
+    // Sesión reanudable (null si están desactivadas) y si otra conexión la ha retomado
+    volatile SessionStore.Session session;
+    volatile boolean superseded = false;
+
+    // Offset del último mensaje del diario encolado para el cliente
+    private volatile long lastOffset = -1;
+
+    // Último [SEQ] procesado (pasa a la sesión) y si falta confirmarlo con [ACK]
+    private volatile long lastSeq = 0;
+    private boolean ackPending = false;
+
+    // El cliente numera sus mensajes: ha enviado un [SEQ] o lo ha anunciado en [RESUME]
+    private volatile boolean sequencing = false;
+
+    // Versión del protocolo de las tramas entrantes (solo la escribe el lector)
+    protected volatile int protocolVersion = Protocol.VERSION_LEGACY;
+
+    // Cola de salida propia del cliente
+    protected final OutboundQueue outbound;
+
+    // Salas a las que pertenece y sala a la que van sus [MSG]
+    private final Set<Room> rooms = ConcurrentHashMap.newKeySet();
+    private volatile Room activeRoom;
+
+    // Latidos: última trama recibida y temporizador en la rueda
+    private volatile long lastActivity = System.nanoTime();
+    volatile HashedTimingWheel.Timeout heartbeat;
+    volatile boolean heartbeatStopped;
+
+    // Zona en la que recibe alertas de incidencias (null si no está suscrito)
+    volatile GeoGrid.Subscription alertSubscription;
+
+    // Cubos de tokens del tráfico entrante (null sin límites; solo lo usa el lector)
+    private final RateLimiter rateLimiter;
+
+    // Último aviso de mensaje rechazado por saturación (solo lo usa el lector)
+    private long overloadNoticeAt;
+
+    /** Como mucho un aviso de saturación por ventana */
+    private static final long OVERLOAD_NOTICE_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    protected ClientHandler(ServidorChat servidor) {
+        this.servidor = servidor;
+        this.outbound = servidor.newOutboundQueue();
+        RateLimiter.Policy limits = servidor.getRateLimits();
+        this.rateLimiter = limits != null ? new RateLimiter(limits, System.nanoTime()) : null;
+    }
+
+    /**
+     * Procesar mensaje legacy recibido del cliente
+     */
+    protected void processMessage(String message) {
+        int opcode = Protocol.opcodeOf(message);
+        dispatch(opcode, Protocol.bodyOf(message, opcode));
+    }
+
+    /**
+     * Despachar una trama recibida (de cualquier versión del protocolo). El
+     * cuerpo solo se convierte en String si la trama pasa el limitador.
+     * @throws UTFDataFormatException si el cuerpo de una trama v1 está mal codificado
+     */
+    protected void dispatch(InboundFrame frame) throws UTFDataFormatException {
+        int opcode = frame.opcode();
+        if (admit(opcode)) {
+            execute(opcode, frame.body());
+        }
+    }
+
+    /**
+     * Despachar un comando ya decodificado
+     */
+    protected void dispatch(int opcode, String body) {
+        if (admit(opcode)) {
+            execute(opcode, body);
+        }
+    }
+
+    /**
+     * Anotar la trama y pasarla por el limitador
+     * @return false si se ha rechazado
+     */
+    private boolean admit(int opcode) {
+        long now = System.nanoTime();
+        lastActivity = now;
+        servidor.getMetrics().messagesIn.increment();
+        if (rateLimiter != null && !rateLimiter.tryAcquire(opcode, now)) {
+            onRateLimited(now);
+            return false;
+        }
+        return true;
+    }
+
+    private void execute(int opcode, String body) {
+        Command command = COMMANDS[opcode & 0xFF];
+        if (command != null) {
+            try {
+                command.handle(this, body);
+            } catch (RuntimeException e) {
+                // Un fallo en un comando no debe tumbar el lector ni el hilo de eventos
+                servidor.getMetrics().handlerErrors.increment();
+                ServerLog.error("[!] Error al procesar comando de {}: {}", getClientName(), e);
+            }
+        } else {
+            // Mensaje genérico
+            ServerLog.info("[{}]: {}", clientName, body);
+        }
+    }
+
+    /**
+     * Trama rechazada por el limitador. Se avisa una vez por ventana (avisar de
+     * cada trama duplicaría el tráfico del abuso) y se expulsa a quien insiste.
+     */
+    private void onRateLimited(long now) {
+        ServerMetrics metrics = servidor.getMetrics();
+        metrics.rateLimited.increment();
+        int strikes = rateLimiter.strike(now);
+        if (rateLimiter.shouldKick(strikes)) {
+            metrics.rateLimitKicks.increment();
+            ServerLog.warn("[!] Demasiados mensajes de {}, se le expulsa", getClientName());
+            servidor.kickClient(this, "Has sido desconectado por enviar demasiados mensajes");
+        } else if (strikes == 1) {
+            sendMessage("[SYSTEM]Error: Demasiados mensajes, espera un momento");
+        }
+    }
+
+    /**
+     * Negociación de versión: solo antes del login y en v1
+     */
+    private void onHello(String body) {
+        if (clientName != null || protocolVersion != Protocol.VERSION_LEGACY) {
+            return;
+        }
+        int requested;
+        try {
+            requested = Integer.parseInt(body.trim());
+        } catch (NumberFormatException e) {
+            requested = Protocol.VERSION_LEGACY;
+        }
+        int accepted = Math.max(Protocol.VERSION_LEGACY, Math.min(requested, Protocol.VERSION_BINARY));
+        sendFrame(Frame.helloAck(accepted));
+        protocolVersion = accepted;
+    }
+
+    /**
+     * Un cliente también puede comprobar que el servidor sigue vivo
+     */
+    private void onPing(String body) {
+        sendFrame(Frame.of(Protocol.PONG, body));
+    }
+
+    private void onLogin(String requestedName) {
+        login(requestedName, false);
+    }
+
+    /**
+     * Login de un agente de soporte ("[AGENT]nombre clave"). Los agentes no
+     * tienen sesión reanudable: al reconectar vuelven a enviar [AGENT].
+     */
+    private void onAgent(String body) {
+        SupportDesk desk = servidor.getSupportDesk();
+        if (desk == null) {
+            sendMessage("[SYSTEM]Error: La mesa de soporte no está activa");
+            return;
+        }
+        String[] parts = body.trim().split("\\s+", 2);
+        if (clientName == null && !loginPending && (parts.length < 2 || !desk.checkKey(parts[1]))) {
+            servidor.getMetrics().loginsRejected.increment();
+            ServerLog.warn("[!] Clave de agente incorrecta desde {}", getIpAddress());
+            sendMessage("[SYSTEM]Error: Clave de agente incorrecta");
+            disconnect();
+            return;
+        }
+        login(parts[0], true);
+    }
+
+    private void login(String requestedName, boolean asAgent) {
+        // Registro de cliente
+        if (clientName != null) {
+            sendMessage("[SYSTEM]Error: Ya has iniciado sesión como " + clientName);
+            return;
+        }
+        if (loginPending) {
+            sendMessage("[SYSTEM]Error: Inicio de sesión en curso");
+            return;
+        }
+
+        if (requestedName.trim().isEmpty()) {
+            servidor.getMetrics().loginsRejected.increment();
+            sendMessage("[SYSTEM]Error: Nombre de usuario no válido");
+            disconnect();
+            return;
+        }
+
+        // Saturado: rechazar enseguida, antes de reservar nada (los agentes
+        // pasan: son quienes vacían la cola de soporte)
+        if (!asAgent && !servidor.admitLogin()) {
+            sendMessage(servidor.overloadMessage());
+            disconnect();
+            return;
+        }
+
+        // Reservar el nombre de forma atómica (en clúster, en todos los nodos)
+        loginPending = true;
+        servidor.claimClientName(requestedName, this, granted -> {
+            loginPending = false;
+            if (!granted) {
+                servidor.getMetrics().loginsRejected.increment();
+                sendMessage("[SYSTEM]Error: Nombre de usuario ya en uso");
+                disconnect();
+                return;
+            }
+            completeLogin(requestedName, asAgent);
+        });
+    }
+
+    /**
+     * Terminar el login con el nombre ya reservado (puede llegar desde el
+     * hilo del bus del clúster)
+     */
+    private void completeLogin(String name, boolean asAgent) {
+        clientName = name;
+        if (!connected) {
+            // Desconectado mientras se reservaba: removeClient no vio el nombre
+            servidor.releaseClientName(name, this);
+            return;
+        }
+        servidor.getMetrics().loginsAccepted.increment();
+        if (asAgent) {
+            agent = true;
+            ServerLog.info("[+] Agente de soporte registrado: {}", clientName);
+            sendMessage("[SYSTEM]Conexión exitosa. Atiendes la mesa de soporte, " + clientName);
+            announceAck();
+            servidor.presenceChanged(this);
+            servidor.getSupportDesk().addAgent(this);
+            if (!connected) {
+                // Desconectado mientras se registraba: removeClient pudo no verlo
+                servidor.getSupportDesk().removeAgent(this);
+            }
+            servidor.deliverMailbox(this);
+            return;
+        }
+
+        ServerLog.info("[+] Cliente registrado: {}", clientName);
+        sendMessage("[SYSTEM]Conexión exitosa. Bienvenido, " + clientName + "!");
+        // Anuncia que se confirman los [SEQ]; una sesión nueva empieza sin ninguno
+        announceAck();
+        servidor.openSession(this);
+        servidor.presenceChanged(this);
+        servidor.broadcastMessage("[SYSTEM]" + clientName + " se ha conectado", this);
+        servidor.deliverMailbox(this);
+    }
+
+    /**
+     * Reanudar una sesión con el token recibido en [SESSION] ("[RESUME]token",
+     * o "[RESUME]token offset" si el cliente sabe cuál fue el último mensaje
+     * del diario que recibió, y "[RESUME]token offset seq" con el último [SEQ]
+     * que numeró). Se recuperan el nombre, las salas y el último [SEQ]
+     * procesado sin anunciarse y se reenvía lo perdido desde el cursor. Si el
+     * token no vale, se avisa sin desconectar para que el cliente haga un
+     * [LOGIN] normal.
+     */
+    private void onResume(String body) {
+        if (clientName != null || loginPending) {
+            sendMessage("[SYSTEM]Error: Ya has iniciado sesión");
+            return;
+        }
+        String[] parts = body.trim().split("\\s+");
+        SessionStore.Session resumed = servidor.findSession(parts[0]);
+        if (resumed == null) {
+            servidor.getMetrics().sessionsRejected.increment();
+            sendMessage("[SYSTEM]Error: Sesión caducada o no válida");
+            return;
+        }
+        long cursor = servidor.sessionCursor(resumed);
+        if (parts.length > 1) {
+            try {
+                long received = Long.parseLong(parts[1]);
+                if (received >= 0) {
+                    // El del cliente es exacto: el del servidor cuenta lo encolado, no lo entregado
+                    cursor = received;
+                }
+            } catch (NumberFormatException e) {
+                // Se usa el cursor guardado en el servidor
+            }
+        }
+        long clientSeq = -1;
+        if (parts.length > 2) {
+            try {
+                clientSeq = Long.parseLong(parts[2]);
+            } catch (NumberFormatException e) {
+                // Se confía en el de la sesión
+            }
+        }
+
+        long replayFrom = cursor;
+        long sentSeq = clientSeq;
+        loginPending = true;
+        servidor.resumeClientName(resumed, this, granted -> {
+            loginPending = false;
+            if (!granted) {
+                servidor.getMetrics().sessionsRejected.increment();
+                sendMessage("[SYSTEM]Error: Nombre de usuario ya en uso");
+                disconnect();
+                return;
+            }
+            completeResume(resumed, replayFrom, sentSeq);
+        });
+    }
+
+    private void completeResume(SessionStore.Session resumed, long cursor, long sentSeq) {
+        clientName = resumed.name;
+        if (!connected) {
+            servidor.releaseClientName(resumed.name, this);
+            return;
+        }
+        restoreRooms(resumed.rooms);
+        if (!connected) {
+            // Desconectado mientras se restauraban las salas: no dejar rastro
+            leaveAllRooms();
+            return;
+        }
+        // Un cliente que numera por debajo de lo procesado se ha reiniciado y empieza de nuevo
+        lastSeq = sentSeq >= 0 ? Math.min(resumed.lastSeq, sentSeq) : resumed.lastSeq;
+        if (sentSeq >= 0) {
+            sequencing = true;
+        }
+        session = resumed;
+        servidor.attachSession(this, cursor);
+        servidor.getMetrics().sessionsResumed.increment();
+
+        ServerLog.info("[+] Sesión reanudada: {}", clientName);
+        // Primero lo confirmado, para que el cliente reenvíe solo el resto
+        announceAck();
+        sendFrame(Frame.of(Protocol.SESSION, resumed.token));
+        sendMessage("[SYSTEM]Sesión reanudada. Bienvenido de nuevo, " + clientName + "!");
+        servidor.presenceChanged(this);
+        if (servidor.hasJournal()) {
+            servidor.replay(this, cursor);
+        }
+        servidor.deliverMailbox(this);
+    }
+
+    /**
+     * Volver a las salas de una sesión (la primera es la activa) sin avisar a sus miembros
+     */
+    private void restoreRooms(List<String> names) {
+        RoomRegistry registry = servidor.getRooms();
+        Room active = null;
+        for (String name : names) {
+            if (name.equalsIgnoreCase(RoomRegistry.LOBBY)) {
+                continue;
+            }
+            Room room = registry.join(name, this);
+            rooms.add(room);
+            if (active == null) {
+                active = room;
+            }
+        }
+        if (active != null) {
+            activeRoom = active;
+            Room lobby = registry.lobby();
+            if (rooms.remove(lobby)) {
+                registry.leave(lobby, this);
+            }
+        }
+    }
+
+    private void onChat(String chatMessage) {
+        Room room = activeRoom;
+        if (room == null) {
+            return;
+        }
+        SupportDesk desk = servidor.getSupportDesk();
+        if (desk != null && room == servidor.getRooms().lobby()) {
+            onDeskMessage(desk, chatMessage);
+            return;
+        }
+        // Reenviar solo a los miembros de su sala (incluyendo soporte/admin)
+        if (!servidor.routeChat(room, Frame.of(Protocol.MSG, chatMessage), this)) {
+            // Demasiados repartos en curso: se descarta, avisando una vez por ventana
+            long now = System.nanoTime();
+            if (overloadNoticeAt == 0 || now - overloadNoticeAt >= OVERLOAD_NOTICE_NANOS) {
+                overloadNoticeAt = now;
+                sendMessage(servidor.overloadMessage());
+            }
+            return;
+        }
+
+        // Mensaje de chat
+        ServerLog.info("[{}][{}]: {}", room.getName(), clientName, chatMessage);
+    }
+
+    /**
+     * Con la mesa de soporte activa, lo que un ciudadano escribe en el lobby
+     * va a su agente en vez de a todos
+     */
+    private void onDeskMessage(SupportDesk desk, String text) {
+        if (clientName == null) {
+            sendMessage("[SYSTEM]Error: Inicia sesión antes de enviar mensajes");
+            return;
+        }
+        if (agent) {
+            sendMessage("[SYSTEM]Error: Responde con [SUPPORT]ciudadano texto");
+            return;
+        }
+        ServerLog.info("[Soporte][{}]: {}", clientName, text);
+        desk.citizenMessage(this, text);
+    }
+
+    /**
+     * Respuesta de un agente a un ciudadano que atiende ([SUPPORT]ciudadano texto)
+     */
+    private void onSupport(String body) {
+        SupportDesk desk = servidor.getSupportDesk();
+        if (!agent || desk == null) {
+            sendMessage("[SYSTEM]Error: Solo los agentes de soporte pueden responder");
+            return;
+        }
+        desk.agentReply(this, body);
+    }
+
+    /**
+     * Cerrar una conversación y quedar libre para la siguiente ([RESOLVE]ciudadano)
+     */
+    private void onResolve(String body) {
+        SupportDesk desk = servidor.getSupportDesk();
+        if (!agent || desk == null) {
+            sendMessage("[SYSTEM]Error: Solo los agentes de soporte pueden cerrar conversaciones");
+            return;
+        }
+        desk.resolve(this, body);
+    }
+
+    /**
+     * Mensaje de chat numerado ([SEQ]n texto). Se procesa como un [MSG] si n
+     * es posterior al último procesado; si no, es un reenvío tras reconectar
+     * de algo que ya llegó y se descarta. En los dos casos se confirma con un
+     * [ACK] acumulado al terminar la lectura en curso.
+     */
+    private void onSequenced(String body) {
+        if (clientName == null) {
+            // Sin confirmar: el cliente lo reenvía al recibir el [ACK] del login
+            sendMessage("[SYSTEM]Error: Inicia sesión antes de enviar mensajes");
+            return;
+        }
+        sequencing = true;
+        int space = body.indexOf(' ');
+        long seq;
+        try {
+            seq = Long.parseLong(space > 0 ? body.substring(0, space) : body.trim());
+        } catch (NumberFormatException e) {
+            sendMessage("[SYSTEM]Error: Número de secuencia no válido");
+            return;
+        }
+        ackPending = true;
+        if (seq <= lastSeq) {
+            servidor.getMetrics().duplicatesDropped.increment();
+            return;
+        }
+        lastSeq = seq;
+        onChat(space > 0 ? body.substring(space + 1) : "");
+    }
+
+    /**
+     * Confirmar los [SEQ] procesados en la última lectura con un solo [ACK]
+     * (lo llama el transporte tras despachar las tramas de cada lectura)
+     */
+    protected void flushAck() {
+        if (ackPending) {
+            ackPending = false;
+            sendAck();
+        }
+    }
+
+    /**
+     * Anunciar al iniciar o reanudar sesión que se confirman los [SEQ], solo a
+     * quien sabe qué es un [ACK] (v2, o ya numera): una versión antigua de la
+     * aplicación lo mostraría como un mensaje más. A los demás el primer
+     * [ACK] les llega al confirmar su primer [SEQ].
+     */
+    private void announceAck() {
+        if (protocolVersion == Protocol.VERSION_BINARY || sequencing) {
+            sendAck();
+        }
+    }
+
+    private void sendAck() {
+        sendFrame(Frame.of(Protocol.ACK, Long.toString(lastSeq)));
+    }
+
+    /**
+     * Unirse a una sala, que pasa a ser la sala activa. Al entrar en una
+     * sala se sale del lobby.
+     */
+    private void onJoin(String body) {
+        String roomName = body.trim();
+        // "@nombre" es la clave de los buzones en el diario
+        if (roomName.isEmpty() || roomName.length() > MAX_ROOM_NAME || Mailboxes.isMailboxKey(roomName)) {
+            sendMessage("[SYSTEM]Error: Nombre de sala no válido");
+            return;
+        }
+
+        Room room = servidor.getRooms().find(roomName);
+        if (room == null || !rooms.contains(room)) {
+            room = servidor.getRooms().join(roomName, this);
+            rooms.add(room);
+            if (!connected) {
+                // Desconectado mientras se unía: no dejar rastro en la sala
+                leaveAllRooms();
+                return;
+            }
+            servidor.routeToRoom(room, Frame.of(Protocol.SYSTEM, getClientName() + " se ha unido a la sala " + room.getName()), this);
+        }
+        activeRoom = room;
+
+        Room lobby = servidor.getRooms().lobby();
+        if (room != lobby && rooms.remove(lobby)) {
+            servidor.getRooms().leave(lobby, this);
+        }
+        sendMessage("[SYSTEM]Te has unido a la sala " + room.getName());
+        servidor.presenceChanged(this);
+    }
+
+    /**
+     * Salir de una sala. Quien se queda sin salas vuelve al lobby.
+     */
+    private void onLeave(String body) {
+        Room room = servidor.getRooms().find(body.trim());
+        if (room == null || !rooms.remove(room)) {
+            sendMessage("[SYSTEM]Error: No estás en la sala " + body.trim());
+            return;
+        }
+        servidor.getRooms().leave(room, this);
+        servidor.routeToRoom(room, Frame.of(Protocol.SYSTEM, getClientName() + " ha salido de la sala " + room.getName()), this);
+        sendMessage("[SYSTEM]Has salido de la sala " + room.getName());
+
+        if (rooms.isEmpty()) {
+            enterLobby();
+        } else if (activeRoom == room) {
+            activeRoom = rooms.iterator().next();
+        }
+        servidor.presenceChanged(this);
+    }
+
+    /**
+     * Pedir los mensajes del diario posteriores al último offset recibido
+     * ([REPLAY]-1 para todo lo que se conserve). Solo se reenvían los de sus
+     * salas actuales y los broadcasts.
+     */
+    private void onReplay(String body) {
+        if (clientName == null) {
+            sendMessage("[SYSTEM]Error: Inicia sesión antes de pedir el historial");
+            return;
+        }
+        long afterOffset;
+        try {
+            afterOffset = Long.parseLong(body.trim());
+        } catch (NumberFormatException e) {
+            sendMessage("[SYSTEM]Error: Offset no válido");
+            return;
+        }
+        servidor.replay(this, afterOffset);
+    }
+
+    /**
+     * Suscribirse a las alertas de incidencias alrededor de un punto
+     * ([SUBSCRIBE]latitud;longitud;radio en metros), sustituyendo la zona
+     * anterior, o cancelar la suscripción ([SUBSCRIBE]off)
+     */
+    private void onSubscribe(String body) {
+        if (clientName == null) {
+            sendMessage("[SYSTEM]Error: Inicia sesión antes de suscribirte a alertas");
+            return;
+        }
+        GeoGrid alerts = servidor.getAlerts();
+        GeoGrid.Subscription previous = alertSubscription;
+        if (body.trim().equalsIgnoreCase("off")) {
+            alertSubscription = null;
+            alerts.remove(previous);
+            sendMessage("[SYSTEM]Suscripción a alertas cancelada");
+            return;
+        }
+
+        String[] fields = body.split(";");
+        double latitude;
+        double longitude;
+        int radiusMeters;
+        try {
+            if (fields.length != 3) {
+                throw new NumberFormatException();
+            }
+            latitude = Double.parseDouble(fields[0].trim());
+            longitude = Double.parseDouble(fields[1].trim());
+            radiusMeters = Integer.parseInt(fields[2].trim());
+        } catch (NumberFormatException e) {
+            sendMessage("[SYSTEM]Error: Formato: latitud;longitud;radio en metros");
+            return;
+        }
+        if (!(latitude >= -90 && latitude <= 90) || !(longitude >= -180 && longitude <= 180) || radiusMeters <= 0) {
+            sendMessage("[SYSTEM]Error: Coordenadas o radio no válidos");
+            return;
+        }
+
+        GeoGrid.Subscription subscription = alerts.add(this, latitude, longitude, radiusMeters);
+        alertSubscription = subscription;
+        alerts.remove(previous);
+        if (!connected) {
+            // Desconectado mientras se suscribía: no dejar la zona en la rejilla
+            alerts.remove(subscription);
+            return;
+        }
+        sendMessage("[SYSTEM]Suscrito a alertas en un radio de " + subscription.radiusMeters + " m");
+    }
+
+    /**
+     * Publicar una alerta de incidencia
+     * ([ALERT]latitud;longitud;categoría;urgencia;título) para los clientes
+     * suscritos a una zona que incluya su posición
+     */
+    private void onAlert(String body) {
+        if (clientName == null) {
+            sendMessage("[SYSTEM]Error: Inicia sesión antes de enviar alertas");
+            return;
+        }
+        IncidentAlert alert;
+        try {
+            alert = IncidentAlert.parse(body);
+        } catch (IllegalArgumentException e) {
+            sendMessage("[SYSTEM]Error: " + e.getMessage());
+            return;
+        }
+        servidor.publishAlert(alert, this);
+        sendMessage("[SYSTEM]Alerta publicada");
+    }
+
+    /**
+     * Entrar en el lobby (al conectar o al quedarse sin salas)
+     */
+    void enterLobby() {
+        Room lobby = servidor.getRooms().join(RoomRegistry.LOBBY, this);
+        rooms.add(lobby);
+        activeRoom = lobby;
+    }
+
+    /**
+     * Salir de todas las salas (al desconectar)
+     */
+    void leaveAllRooms() {
+        for (Room room : rooms) {
+            servidor.getRooms().leave(room, this);
+        }
+        rooms.clear();
+        activeRoom = null;
+    }
+
+    /**
+     * Claves normalizadas de las salas del cliente
+     */
+    Set<String> getRoomKeys() {
+        Set<String> keys = new HashSet<>();
+        for (Room room : rooms) {
+            keys.add(room.key());
+        }
+        return keys;
+    }
+
+    /**
+     * Esperar a que la cola de salida baje de un nivel
+     * @return false si el cliente se ha desconectado
+     */
+    boolean awaitOutboundSpace(int level) {
+        try {
+            return connected && outbound.awaitBelow(level);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    long getLastOffset() {
+        return lastOffset;
+    }
+
+    long getLastSeq() {
+        return lastSeq;
+    }
+
+    boolean isAgent() {
+        return agent;
+    }
+
+    String getActiveRoomName() {
+        Room room = activeRoom;
+        return room != null ? room.getName() : null;
+    }
+
+    int getOutboundCapacity() {
+        return outbound.getCapacity();
+    }
+
+    int getOutboundSize() {
+        return outbound.size();
+    }
+
+    /**
+     * Salas del cliente, ordenadas por nombre
+     */
+    public List<String> getRoomNames() {
+        List<String> names = new ArrayList<>();
+        for (Room room : rooms) {
+            names.add(room.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private void onLogout(String body) {
+        // Desconexión voluntaria
+        ServerLog.info("[-] Cliente desconectado: {}", clientName);
+        servidor.closeSession(this);
+        servidor.leaveSupport(this, true);
+        servidor.broadcastMessage("[SYSTEM]" + clientName + " se ha desconectado", this);
+        disconnect();
+    }
+
+    /**
+     * Enviar mensaje al cliente. Solo encola: nunca bloquea al emisor.
+     */
+    public void sendMessage(String message) {
+        sendFrame(Frame.of(message));
+    }
+
+    /**
+     * Enviar una trama (compartida, p. ej. en un broadcast)
+     */
+    public void sendFrame(Frame frame) {
+        if (!connected) {
+            return;
+        }
+        switch (outbound.offer(frame)) {
+            case QUEUED:
+                if (frame.offset() > lastOffset) {
+                    // Sin sincronizar: en una carrera el cursor puede quedarse atrás y repetir algo, no perderlo
+                    lastOffset = frame.offset();
+                }
+                onQueued();
+                break;
+            case DISCONNECT:
+                ServerLog.warn("[!] Cola de salida llena, desconectando a {}", getClientName());
+                abort();
+                break;
+            default:
+                // DROPPED / CLOSED: el mensaje se descarta
+                break;
+        }
+    }
+
+    /**
+     * Enviar varias tramas juntas (p. ej. el buzón al conectarse), de modo
+     * que el escritor las saque y escriba en una sola pasada
+     */
+    void sendFrames(List<Frame> frames) {
+        if (!connected || frames.isEmpty()) {
+            return;
+        }
+        switch (outbound.offerAll(frames)) {
+            case QUEUED:
+                onQueued();
+                break;
+            case DISCONNECT:
+                ServerLog.warn("[!] Cola de salida llena, desconectando a {}", getClientName());
+                abort();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Avisar al escritor del transporte de que hay mensajes en la cola
+     */
+    protected abstract void onQueued();
+
+    /**
+     * Desconectar cliente. Lo que ya está en la cola se intenta enviar antes de cerrar.
+     */
+    public abstract void disconnect();
+
+    /**
+     * Cerrar la conexión inmediatamente, descartando la cola de salida
+     */
+    protected abstract void abort();
+
+    /**
+     * Anotar actividad del cliente
+     */
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Tiempo desde la última trama recibida
+     */
+    long idleNanos() {
+        return System.nanoTime() - lastActivity;
+    }
+
+    public long getDroppedMessages() {
+        return outbound.getDropped();
+    }
+
+    public int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    public abstract String getIpAddress();
+
+    public String getClientName() {
+        return clientName != null ? clientName : "Desconocido";
+    }
+}
@@ -0,0 +1,99 @@
+package centrodecontrol;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro concurrente de clientes conectados.
+ *
+ * Mantiene todas las conexiones abiertas y un índice por nombre normalizado
+ * (sin distinguir mayúsculas), de modo que comprobar un nombre, enviar un
+ * /msg o expulsar a un cliente cuesta O(1). La reserva de nombre en [LOGIN]
+ * es atómica. Los broadcasts recorren la instantánea del ClientSet.
+ */
+class ClientRegistry {
+
+    private final ClientSet connections = new ClientSet();
+    private final ConcurrentHashMap<String, ClientHandler> byName = new ConcurrentHashMap<>();
+
+    /**
+     * Registrar una conexión nueva (todavía sin nombre)
+     */
+    public void add(ClientHandler client) {
+        connections.add(client);
+    }
+
+    /**
+     * Reservar un nombre para un cliente de forma atómica
+     * @return true si el nombre estaba libre y ahora pertenece al cliente
+     */
+    public boolean reserve(String name, ClientHandler client) {
+        return byName.putIfAbsent(normalize(name), client) == null;
+    }
+
+    /**
+     * Pasar un nombre de una conexión a otra (al reanudar una sesión cuya
+     * conexión anterior sigue abierta). La anterior se marca como sustituida
+     * en el mismo paso: si ya había soltado el nombre al cerrarse, no se
+     * marca y hace su limpieza normal.
+     * @return false si la conexión anterior ya no tenía el nombre
+     */
+    public boolean takeOver(String name, ClientHandler previous, ClientHandler client) {
+        return byName.computeIfPresent(normalize(name), (key, current) -> {
+            if (current != previous) {
+                return current;
+            }
+            previous.superseded = true;
+            return client;
+        }) == client;
+    }
+
+    /**
+     * Deshacer una reserva que no ha llegado a usarse
+     */
+    public void release(String name, ClientHandler client) {
+        byName.remove(normalize(name), client);
+    }
+
+    /**
+     * Eliminar una conexión y liberar su nombre
+     * @return true si la conexión estaba registrada
+     */
+    public boolean remove(ClientHandler client) {
+        if (client.clientName != null) {
+            byName.remove(normalize(client.clientName), client);
+        }
+        return connections.remove(client);
+    }
+
+    /**
+     * Buscar un cliente por nombre (sin distinguir mayúsculas)
+     */
+    public ClientHandler find(String name) {
+        return byName.get(normalize(name));
+    }
+
+    public boolean isNameTaken(String name) {
+        return byName.containsKey(normalize(name));
+    }
+
+    /**
+     * Instantánea de las conexiones actuales, para recorrer sin bloqueos.
+     * El array devuelto no debe modificarse.
+     */
+    public ClientHandler[] snapshot() {
+        return connections.snapshot();
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public boolean isEmpty() {
+        return connections.isEmpty();
+    }
+
+    static String normalize(String name) {
+        return name.trim().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,78 @@
+package centrodecontrol;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Conjunto concurrente de clientes con instantánea para recorrerlo.
+ *
+ * Altas y bajas cuestan O(1). Los recorridos (broadcasts, /list) usan un
+ * array que se reconstruye solo cuando el conjunto ha cambiado, de modo que
+ * nunca bloquean ni lanzan ConcurrentModificationException.
+ */
+class ClientSet {
+
+    private static final ClientHandler[] EMPTY = new ClientHandler[0];
+
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+
+    // Versión del conjunto y última instantánea construida
+    private final AtomicLong version = new AtomicLong(0);
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    public boolean add(ClientHandler client) {
+        if (members.add(client)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean remove(ClientHandler client) {
+        if (members.remove(client)) {
+            version.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public boolean contains(ClientHandler client) {
+        return members.contains(client);
+    }
+
+    /**
+     * Instantánea de los miembros actuales. El array devuelto no debe modificarse.
+     */
+    public ClientHandler[] snapshot() {
+        Snapshot current = snapshot;
+        long v = version.get();
+        if (current.version == v) {
+            return current.clients;
+        }
+        ClientHandler[] clients = members.toArray(EMPTY);
+        // Solo se guarda si nadie ha cambiado el conjunto mientras se copiaba
+        if (version.get() == v) {
+            snapshot = new Snapshot(v, clients);
+        }
+        return clients;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    private static final class Snapshot {
+        final long version;
+        final ClientHandler[] clients;
+
+        Snapshot(long version, ClientHandler[] clients) {
+            this.version = version;
+            this.clients = clients;
+        }
+    }
+}
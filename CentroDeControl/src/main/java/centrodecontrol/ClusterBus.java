@@ -0,0 +1,852 @@
+package centrodecontrol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Bus entre los nodos de un clúster del Centro de Control.
+ *
+ * Cada nodo atiende sus propios clientes y mantiene un enlace TCP con cada
+ * uno de los demás (malla completa). Por el bus viajan los broadcasts, el
+ * tráfico de las salas, las alertas de incidencias, los /msg y /kick
+ * dirigidos a clientes de otro nodo y el registro de nombres: un nombre solo
+ * se concede si todos los nodos conectados lo aceptan, y si dos nodos piden
+ * el mismo a la vez gana el de identificador menor. Cada enlace tiene una
+ * cola y un escritor que envía los mensajes acumulados en un solo lote.
+ *
+ * El bus escucha solo en la interfaz configurada (loopback por defecto) y
+ * cada enlace empieza con un saludo con clave compartida. Quien conecta envía
+ * HELLO con su id y un reto aleatorio; quien acepta responde con su HELLO,
+ * sin demostrar nada todavía. Quien conecta envía entonces AUTH, un
+ * HMAC-SHA256 con la clave de los dos ids y los dos retos de ese enlace, y
+ * solo si es correcto quien acepta envía el suyo. Así un nodo nunca firma un
+ * reto para alguien que no ha demostrado antes conocer la clave, y una
+ * prueba no sirve en otro enlace ni en el sentido contrario. Hasta completar
+ * el saludo no se acepta ningún otro mensaje. Los tamaños que llegan por el
+ * enlace se comprueban contra la cabecera del lote y contra límites fijos
+ * antes de reservar memoria.
+ *
+ * Formato: lote = [longitud int32][número de mensajes int32][mensajes...],
+ * mensaje = [tipo][número int64][número de cadenas][cadenas int32 + UTF-8].
+ */
+class ClusterBus {
+
+    private static final int HELLO = 1;
+    private static final int CLAIM = 2;
+    private static final int GRANT = 3;
+    private static final int DENY = 4;
+    private static final int RELEASE = 5;
+    private static final int PRESENCE = 6;
+    private static final int BROADCAST = 7;
+    private static final int ROOM = 8;
+    private static final int DIRECT = 9;
+    private static final int KICK = 10;
+    private static final int ALERT = 11;
+    private static final int AUTH = 12;
+
+    /** Cadenas mínimas de cada tipo de mensaje (-1: tipo desconocido) */
+    private static final int[] MIN_FIELDS = {-1, 2, 1, 0, 0, 1, 1, 2, 3, 2, 1, 1, 1};
+
+    /** Mensajes como máximo en un lote */
+    private static final int MAX_BATCH = 256;
+
+    /** Bytes como máximo de un lote (sin contar su longitud) */
+    private static final int MAX_BATCH_BYTES = 32 * 1024 * 1024;
+
+    /** Bytes como máximo de una cadena (un mensaje de sala con tres cabe en un lote); antes de autenticarse, mucho menos */
+    private static final int MAX_FIELD_BYTES = 8 * 1024 * 1024;
+    private static final int MAX_HANDSHAKE_FIELD_BYTES = 256;
+
+    /** Cadenas como máximo en un mensaje */
+    private static final int MAX_FIELDS = 1024;
+
+    /** Tipo + número + número de cadenas */
+    private static final int MESSAGE_HEADER = 1 + 8 + 2;
+
+    /** Papel de quien firma en la prueba de AUTH */
+    static final String CONNECTOR = "conecta";
+    static final String ACCEPTOR = "acepta";
+
+    /** Tiempo sin respuesta tras el que un nodo cuenta como que concede el nombre */
+    private static final long CLAIM_TIMEOUT_MS = 2000;
+
+    /** Espera entre intentos de conexión con un nodo caído */
+    private static final long RECONNECT_MS = 2000;
+
+    /**
+     * Cliente conectado a otro nodo
+     */
+    static final class RemoteClient {
+        final String name;
+        final String nodeId;
+        final List<String> rooms;
+
+        RemoteClient(String name, String nodeId, List<String> rooms) {
+            this.name = name;
+            this.nodeId = nodeId;
+            this.rooms = rooms;
+        }
+    }
+
+    /**
+     * Petición de un nombre pendiente de la respuesta de los demás nodos
+     */
+    private final class Claim {
+        final long id;
+        final String name;
+        final Consumer<Boolean> done;
+        final Set<String> waiting;
+        boolean finished = false;
+
+        Claim(long id, String name, Consumer<Boolean> done, Set<String> waiting) {
+            this.id = id;
+            this.name = name;
+            this.done = done;
+            this.waiting = waiting;
+        }
+
+        /**
+         * Anotar la respuesta de un nodo (o que se ha caído o no contesta: concede)
+         */
+        void answer(String node, boolean granted) {
+            synchronized (this) {
+                if (finished || (!waiting.remove(node) && granted)) {
+                    return;
+                }
+                if (granted && !waiting.isEmpty()) {
+                    return;
+                }
+                finished = true;
+            }
+            finish(granted);
+        }
+
+        void timeout() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            ServerLog.warn("[!] Sin respuesta de {} al reservar {}, se concede", waiting, name);
+            finish(true);
+        }
+
+        private void finish(boolean granted) {
+            claims.remove(id);
+            localClaims.remove(ClientRegistry.normalize(name), this);
+            if (!granted) {
+                // Quien ya lo había concedido lo tiene apuntado como provisional
+                publish(encode(RELEASE, 0, name));
+            }
+            done.accept(granted);
+        }
+    }
+
+    private final ServidorChat servidor;
+    private final String nodeId;
+    private final int port;
+    private final InetAddress bindAddress;
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<InetSocketAddress> peers;
+    private final long batchLingerMs;
+
+    private ServerSocket serverSocket;
+    private volatile boolean running = false;
+
+    // Enlaces activos por identificador de nodo, y qué nodo hay en cada dirección
+    private final ConcurrentHashMap<String, Link> links = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, String> nodeAt = new ConcurrentHashMap<>();
+
+    // Clientes de los demás nodos por nombre normalizado
+    private final ConcurrentHashMap<String, RemoteClient> remoteClients = new ConcurrentHashMap<>();
+
+    // Reservas de nombre en curso: por id y por nombre normalizado
+    private final ConcurrentHashMap<Long, Claim> claims = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Claim> localClaims = new ConcurrentHashMap<>();
+    private final AtomicLong nextClaimId = new AtomicLong();
+
+    private final LongAdder batchesSent = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+
+    /**
+     * @param bindAddress interfaz en la que escucha el bus
+     * @param secret      clave compartida por todos los nodos
+     */
+    ClusterBus(ServidorChat servidor, String nodeId, int port, InetAddress bindAddress, String secret,
+               List<InetSocketAddress> peers, long batchLingerMs) {
+        this.servidor = servidor;
+        this.nodeId = nodeId;
+        this.port = port;
+        this.bindAddress = bindAddress;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.peers = peers;
+        this.batchLingerMs = batchLingerMs;
+    }
+
+    /**
+     * Abrir el puerto del bus y empezar a conectar con los demás nodos
+     */
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, bindAddress);
+        running = true;
+
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    openLink(socket, false, null);
+                } catch (IOException e) {
+                    if (running) {
+                        ServerLog.error("[!] Error al aceptar nodo: {}", e.getMessage());
+                    }
+                }
+            }
+        }, "bus-aceptador");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (InetSocketAddress peer : peers) {
+            Thread connector = new Thread(() -> connectLoop(peer), "bus-conector-" + peer.getPort());
+            connector.setDaemon(true);
+            connector.start();
+        }
+    }
+
+    /**
+     * Mantener un enlace con un nodo configurado, reconectando si se cae
+     */
+    private void connectLoop(InetSocketAddress peer) {
+        while (running) {
+            String known = nodeAt.get(peer);
+            if (known == null || !links.containsKey(known)) {
+                try {
+                    Socket socket = new Socket();
+                    socket.connect(peer, (int) RECONNECT_MS);
+                    openLink(socket, true, peer);
+                } catch (IOException e) {
+                    // El nodo todavía no está: se reintenta
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param address dirección configurada del nodo (null si la conexión es entrante);
+     *                se fija antes de arrancar el lector, que la usa al autenticar
+     */
+    private Link openLink(Socket socket, boolean outbound, InetSocketAddress address) throws IOException {
+        socket.setTcpNoDelay(true);
+        Link link = new Link(socket, outbound, address);
+        if (outbound) {
+            // Quien acepta espera este HELLO para enviar el suyo
+            link.send(encode(HELLO, 0, nodeId, link.challenge));
+        }
+        link.start();
+        return link;
+    }
+
+    void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al cerrar el bus: {}", e.getMessage());
+        }
+        for (Link link : links.values()) {
+            link.close();
+        }
+    }
+
+    /**
+     * Reservar un nombre en todo el clúster (ya reservado en este nodo). La
+     * respuesta llega en otro hilo si hay nodos a los que preguntar.
+     */
+    void claim(String name, Consumer<Boolean> done) {
+        String key = ClientRegistry.normalize(name);
+        if (remoteClients.containsKey(key)) {
+            done.accept(false);
+            return;
+        }
+        Set<String> waiting = ConcurrentHashMap.newKeySet();
+        waiting.addAll(links.keySet());
+        if (waiting.isEmpty()) {
+            done.accept(true);
+            return;
+        }
+
+        Claim claim = new Claim(nextClaimId.incrementAndGet(), name, done, waiting);
+        claims.put(claim.id, claim);
+        localClaims.put(key, claim);
+        publish(encode(CLAIM, claim.id, name));
+        servidor.schedule(claim::timeout, CLAIM_TIMEOUT_MS);
+    }
+
+    /**
+     * Anunciar un cliente de este nodo (al entrar o al cambiar de salas)
+     */
+    void presence(String name, List<String> rooms) {
+        publish(encodePresence(name, rooms));
+    }
+
+    /**
+     * Liberar el nombre de un cliente de este nodo que se ha desconectado
+     */
+    void release(String name) {
+        publish(encode(RELEASE, 0, name));
+    }
+
+    void publishBroadcast(Frame frame, String senderName) {
+        publish(encode(BROADCAST, frame.opcode(), frame.body(), senderName));
+    }
+
+    void publishRoom(String roomName, Frame frame, String senderName) {
+        publish(encode(ROOM, frame.opcode(), roomName, frame.body(), senderName));
+    }
+
+    /**
+     * Repartir una alerta entre los suscriptores de los demás nodos (cada uno
+     * busca los suyos en su rejilla)
+     */
+    void publishAlert(String body, String senderName) {
+        publish(encode(ALERT, 0, body, senderName));
+    }
+
+    /**
+     * Enviar un mensaje a un cliente de otro nodo
+     * @return false si no hay ningún cliente remoto con ese nombre
+     */
+    boolean sendDirect(String name, String message) {
+        Link link = linkFor(name);
+        if (link == null) {
+            return false;
+        }
+        link.send(encode(DIRECT, 0, name, message));
+        return true;
+    }
+
+    /**
+     * Expulsar a un cliente de otro nodo
+     * @return false si no hay ningún cliente remoto con ese nombre
+     */
+    boolean kick(String name) {
+        Link link = linkFor(name);
+        if (link == null) {
+            return false;
+        }
+        link.send(encode(KICK, 0, name));
+        return true;
+    }
+
+    private Link linkFor(String name) {
+        RemoteClient remote = remoteClients.get(ClientRegistry.normalize(name));
+        return remote != null ? links.get(remote.nodeId) : null;
+    }
+
+    /**
+     * Clientes de los demás nodos, ordenados por nombre
+     */
+    List<RemoteClient> remoteClients() {
+        List<RemoteClient> list = new ArrayList<>(remoteClients.values());
+        list.sort((a, b) -> a.name.compareToIgnoreCase(b.name));
+        return list;
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    InetAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    List<String> connectedNodes() {
+        List<String> nodes = new ArrayList<>(links.keySet());
+        Collections.sort(nodes);
+        return nodes;
+    }
+
+    int remoteClientCount() {
+        return remoteClients.size();
+    }
+
+    /**
+     * Mensajes por lote de media desde el arranque
+     */
+    double averageBatch() {
+        long batches = batchesSent.sum();
+        return batches == 0 ? 0 : (double) messagesSent.sum() / batches;
+    }
+
+    private void publish(byte[] message) {
+        for (Link link : links.values()) {
+            link.send(message);
+        }
+    }
+
+    /**
+     * Procesar un mensaje recibido de otro nodo (en el lector del enlace)
+     */
+    private void handle(Link link, int type, long number, String[] fields) {
+        if (type == HELLO) {
+            onHello(link, fields[0], fields[1]);
+            return;
+        }
+        if (type == AUTH) {
+            onAuth(link, fields[0]);
+            return;
+        }
+        String from = link.remoteId;
+        if (from == null) {
+            ServerLog.warn("[!] Mensaje de un nodo sin autenticar desde {}, se cierra el enlace", link.peerAddress());
+            link.close();
+            return;
+        }
+        switch (type) {
+            case CLAIM:
+                onClaim(link, number, fields[0]);
+                break;
+            case GRANT:
+            case DENY:
+                Claim claim = claims.get(number);
+                if (claim != null) {
+                    claim.answer(from, type == GRANT);
+                }
+                break;
+            case RELEASE:
+                RemoteClient released = remoteClients.get(ClientRegistry.normalize(fields[0]));
+                if (released != null && released.nodeId.equals(from)) {
+                    remoteClients.remove(ClientRegistry.normalize(fields[0]), released);
+                }
+                break;
+            case PRESENCE:
+                remoteClients.put(ClientRegistry.normalize(fields[0]),
+                    new RemoteClient(fields[0], from, Arrays.asList(fields).subList(1, fields.length)));
+                break;
+            case BROADCAST:
+                servidor.deliverBroadcast(Frame.of((int) number, fields[0]), null, fields[1]);
+                break;
+            case ROOM:
+                servidor.deliverToRoom(fields[0], Frame.of((int) number, fields[1]), null, fields[2]);
+                break;
+            case ALERT:
+                try {
+                    servidor.deliverAlert(IncidentAlert.parse(fields[0]), null);
+                } catch (IllegalArgumentException e) {
+                    ServerLog.warn("[!] Alerta no válida del nodo {}: {}", from, e.getMessage());
+                }
+                break;
+            case DIRECT:
+                ClientHandler target = servidor.clients.find(fields[0]);
+                if (target != null) {
+                    target.sendMessage(fields[1]);
+                }
+                break;
+            case KICK:
+                ClientHandler kicked = servidor.clients.find(fields[0]);
+                if (kicked != null) {
+                    servidor.kickClient(kicked, "Has sido desconectado por el administrador");
+                }
+                break;
+            default:
+                ServerLog.warn("[!] Mensaje desconocido del nodo {}: {}", from, type);
+        }
+    }
+
+    /**
+     * Saludo del otro nodo. Quien acepta responde con su propio HELLO; quien
+     * conecta demuestra conocer la clave con su AUTH. Ninguno de los dos
+     * firma nada para un nodo que aún no se ha autenticado.
+     */
+    private void onHello(Link link, String remoteId, String challenge) {
+        if (link.claimedId != null) {
+            ServerLog.warn("[!] Saludo repetido desde {}, se cierra el enlace", link.peerAddress());
+            link.close();
+            return;
+        }
+        if (remoteId.equals(nodeId)) {
+            ServerLog.warn("[!] Enlace consigo mismo, se cierra");
+            link.close();
+            return;
+        }
+        link.claimedId = remoteId;
+        link.peerChallenge = challenge;
+        if (link.outbound) {
+            link.send(encode(AUTH, 0, link.proof(CONNECTOR)));
+        } else {
+            link.send(encode(HELLO, 0, nodeId, link.challenge));
+        }
+    }
+
+    /**
+     * Prueba del otro nodo. Si es correcta, el enlace queda autenticado; quien
+     * acepta responde entonces con la suya.
+     */
+    private void onAuth(Link link, String answer) {
+        String remoteId = link.claimedId;
+        if (remoteId == null || link.remoteId != null) {
+            ServerLog.warn("[!] Autenticación fuera de orden desde {}, se cierra el enlace", link.peerAddress());
+            link.close();
+            return;
+        }
+        byte[] expected = link.proof(link.outbound ? ACCEPTOR : CONNECTOR).getBytes(StandardCharsets.UTF_8);
+        if (!MessageDigest.isEqual(expected, answer.getBytes(StandardCharsets.UTF_8))) {
+            ServerLog.warn("[!] Nodo {} rechazado desde {}: clave del clúster incorrecta", remoteId, link.peerAddress());
+            link.close();
+            return;
+        }
+        if (!link.outbound) {
+            link.send(encode(AUTH, 0, link.proof(ACCEPTOR)));
+        }
+        link.remoteId = remoteId;
+        if (link.address != null) {
+            nodeAt.put(link.address, remoteId);
+        }
+
+        // Si los dos nodos se conectan a la vez se queda el enlace que abrió el de id menor
+        Link existing = links.putIfAbsent(remoteId, link);
+        if (existing != null && existing != link) {
+            boolean keepNew = link.outbound == (nodeId.compareTo(remoteId) < 0);
+            if (!keepNew) {
+                link.close();
+                return;
+            }
+            links.put(remoteId, link);
+            existing.close();
+        }
+        ServerLog.info("[+] Nodo conectado: {}", remoteId);
+
+        // Darle a conocer los clientes de este nodo
+        for (ClientHandler client : servidor.clients.snapshot()) {
+            String name = client.clientName;
+            if (name != null) {
+                link.send(encodePresence(name, client.getRoomNames()));
+            }
+        }
+    }
+
+    /**
+     * HMAC-SHA256 con la clave del clúster del papel de quien firma y de los
+     * ids y retos de los dos extremos de un enlace
+     */
+    static String proof(byte[] secret, String role, String connectorId, String connectorChallenge,
+                        String acceptorId, String acceptorChallenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            for (String field : new String[] {role, connectorId, connectorChallenge, acceptorId, acceptorChallenge}) {
+                // Cada cadena con su longitud, para que no se puedan mover bytes de una a otra
+                byte[] data = field.getBytes(StandardCharsets.UTF_8);
+                mac.update(new byte[] {(byte) (data.length >>> 8), (byte) data.length});
+                mac.update(data);
+            }
+            return HexFormat.of().formatHex(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String newChallenge() {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        return HexFormat.of().formatHex(bytes);
+    }
+
+    private byte[] encodePresence(String name, List<String> rooms) {
+        // Las salas que no caben en un mensaje no se anuncian
+        int count = Math.min(rooms.size(), MAX_FIELDS - 1);
+        String[] fields = new String[count + 1];
+        fields[0] = name;
+        for (int i = 0; i < count; i++) {
+            fields[i + 1] = rooms.get(i);
+        }
+        return encode(PRESENCE, 0, fields);
+    }
+
+    /**
+     * Otro nodo pide un nombre: se concede si no lo tiene nadie más, y si
+     * este nodo lo está pidiendo a la vez, gana el identificador menor
+     */
+    private void onClaim(Link link, long id, String name) {
+        String key = ClientRegistry.normalize(name);
+        String from = link.remoteId;
+        boolean granted;
+        if (servidor.isClientNameTaken(name)) {
+            granted = localClaims.containsKey(key) && from.compareTo(nodeId) < 0;
+        } else {
+            RemoteClient owner = remoteClients.get(key);
+            granted = owner == null || owner.nodeId.equals(from);
+        }
+        if (granted) {
+            // Provisional hasta que llegue su PRESENCE (o un RELEASE si no se queda con él)
+            remoteClients.putIfAbsent(key, new RemoteClient(name, from, Collections.emptyList()));
+        }
+        link.send(encode(granted ? GRANT : DENY, id));
+    }
+
+    /**
+     * Un enlace se ha cerrado: sus clientes dejan de existir para este nodo
+     */
+    private void onLinkClosed(Link link) {
+        String remoteId = link.remoteId;
+        if (remoteId == null || !links.remove(remoteId, link)) {
+            return;
+        }
+        ServerLog.warn("[!] Nodo desconectado: {}", remoteId);
+        remoteClients.values().removeIf(remote -> remote.nodeId.equals(remoteId));
+        for (Claim claim : claims.values()) {
+            claim.answer(remoteId, true);
+        }
+    }
+
+    private static byte[] encode(int type, long number, String... fields) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeLong(number);
+            out.writeShort(fields.length);
+            for (String field : fields) {
+                byte[] data = field.getBytes(StandardCharsets.UTF_8);
+                if (data.length > MAX_FIELD_BYTES) {
+                    throw new IllegalArgumentException("Mensaje demasiado grande para el bus: " + data.length + " bytes");
+                }
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Enlace con otro nodo: un lector y un escritor que envía en lotes
+     */
+    private final class Link {
+        final Socket socket;
+        final boolean outbound;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+        final InetSocketAddress address;
+        // Reto que se envía en HELLO, y el id y el reto del otro nodo (sin verificar)
+        final String challenge = newChallenge();
+        volatile String claimedId;
+        volatile String peerChallenge;
+        // Id del otro nodo una vez autenticado
+        volatile String remoteId;
+        private volatile boolean closed = false;
+
+        Link(Socket socket, boolean outbound, InetSocketAddress address) throws IOException {
+            this.socket = socket;
+            this.outbound = outbound;
+            this.address = address;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+
+        void start() {
+            String suffix = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+            Thread reader = new Thread(this::readLoop, "bus-lector-" + suffix);
+            reader.setDaemon(true);
+            reader.start();
+            Thread writer = new Thread(this::writeLoop, "bus-escritor-" + suffix);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void send(byte[] message) {
+            if (!closed) {
+                queue.offer(message);
+            }
+        }
+
+        /**
+         * Prueba de este enlace firmada por uno de sus extremos
+         */
+        String proof(String role) {
+            return outbound
+                ? ClusterBus.proof(secret, role, nodeId, challenge, claimedId, peerChallenge)
+                : ClusterBus.proof(secret, role, claimedId, peerChallenge, nodeId, challenge);
+        }
+
+        String peerAddress() {
+            return socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        }
+
+        /**
+         * Leer lotes comprobando cada tamaño contra lo que queda del lote y
+         * contra los límites antes de reservar nada
+         */
+        private void readLoop() {
+            try {
+                while (!closed) {
+                    int length = in.readInt();
+                    if (length < 4 || length > MAX_BATCH_BYTES) {
+                        throw new IOException("Lote de " + length + " bytes");
+                    }
+                    int count = in.readInt();
+                    int remaining = length - 4;
+                    if (count < 1 || count > MAX_BATCH || count > remaining / MESSAGE_HEADER) {
+                        throw new IOException("Lote de " + count + " mensajes en " + length + " bytes");
+                    }
+                    for (int i = 0; i < count; i++) {
+                        remaining -= MESSAGE_HEADER;
+                        if (remaining < 0) {
+                            throw new IOException("Mensaje más largo que su lote");
+                        }
+                        int type = in.readUnsignedByte();
+                        long number = in.readLong();
+                        int fieldCount = in.readUnsignedShort();
+                        if (fieldCount > MAX_FIELDS || type >= MIN_FIELDS.length || MIN_FIELDS[type] < 0
+                                || fieldCount < MIN_FIELDS[type]) {
+                            throw new IOException("Mensaje mal formado (tipo " + type + ", " + fieldCount + " cadenas)");
+                        }
+                        int fieldLimit = remoteId != null ? MAX_FIELD_BYTES : MAX_HANDSHAKE_FIELD_BYTES;
+                        String[] fields = new String[fieldCount];
+                        for (int f = 0; f < fields.length; f++) {
+                            remaining -= 4;
+                            int size = remaining >= 0 ? in.readInt() : -1;
+                            if (size < 0 || size > fieldLimit || size > remaining) {
+                                throw new IOException("Cadena de " + size + " bytes fuera de límites");
+                            }
+                            remaining -= size;
+                            byte[] data = new byte[size];
+                            in.readFully(data);
+                            fields[f] = new String(data, StandardCharsets.UTF_8);
+                        }
+                        handle(this, type, number, fields);
+                        if (closed) {
+                            return;
+                        }
+                    }
+                    if (remaining != 0) {
+                        throw new IOException("La longitud del lote no cuadra con su contenido");
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed && running) {
+                    ServerLog.debug("Enlace con {} cerrado: {}", remoteId != null ? remoteId : peerAddress(),
+                        e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                ServerLog.error("[!] Error en el enlace con {}: {}", remoteId, e);
+            }
+            close();
+        }
+
+        /**
+         * Sacar lo que haya en la cola (esperando como mucho batchLingerMs a
+         * que llegue más) y escribirlo en un solo lote
+         */
+        private void writeLoop() {
+            List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+            try {
+                while (!closed) {
+                    byte[] first = queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchLingerMs);
+                    while (batch.size() < MAX_BATCH && batchLingerMs > 0) {
+                        long remaining = deadline - System.nanoTime();
+                        byte[] next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                        queue.drainTo(batch, MAX_BATCH - batch.size());
+                    }
+
+                    writeBatch(batch);
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                if (!closed && running) {
+                    ServerLog.debug("Error al escribir a {}: {}", remoteId, e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            close();
+        }
+
+        /**
+         * Escribir los mensajes en uno o más lotes de como mucho MAX_BATCH_BYTES
+         */
+        private void writeBatch(List<byte[]> batch) throws IOException {
+            int from = 0;
+            while (from < batch.size()) {
+                int to = from;
+                int length = 4;
+                while (to < batch.size() && (to == from || length + batch.get(to).length <= MAX_BATCH_BYTES)) {
+                    length += batch.get(to++).length;
+                }
+                out.writeInt(length);
+                out.writeInt(to - from);
+                for (int i = from; i < to; i++) {
+                    out.write(batch.get(i));
+                }
+                batchesSent.increment();
+                messagesSent.add(to - from);
+                from = to;
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ya estaba cerrado
+            }
+            onLinkClosed(this);
+        }
+    }
+}
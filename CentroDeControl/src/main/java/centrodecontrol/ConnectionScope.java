@@ -0,0 +1,158 @@
+package centrodecontrol;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ámbito de concurrencia estructurada para las conexiones del servidor.
+ *
+ * Sigue el modelo de StructuredTaskScope (fork / shutdown / join): cada
+ * conexión es un ámbito hijo del ámbito del servidor, de modo que cancelar un
+ * ámbito cancela todos sus hilos y sus ámbitos hijos. Se implementa aquí porque
+ * StructuredTaskScope sigue siendo API en preview y el servidor compila con JDK 17.
+ */
+class ConnectionScope {
+
+    private final String name;
+    private final ConnectionScope parent;
+    private final ThreadFactory factory;
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final Set<ConnectionScope> children = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger running = new AtomicInteger(0);
+    private volatile boolean shutdown = false;
+
+    public ConnectionScope(String name, ThreadFactory factory) {
+        this(name, null, factory);
+    }
+
+    private ConnectionScope(String name, ConnectionScope parent, ThreadFactory factory) {
+        this.name = name;
+        this.parent = parent;
+        this.factory = factory;
+    }
+
+    /**
+     * Crear un ámbito hijo que comparte la fábrica de hilos
+     */
+    public ConnectionScope child(String childName) {
+        ConnectionScope child = new ConnectionScope(childName, this, factory);
+        if (shutdown) {
+            child.shutdown = true;
+        } else {
+            children.add(child);
+        }
+        return child;
+    }
+
+    /**
+     * Lanzar una tarea en un hilo nuevo de este ámbito
+     */
+    public boolean fork(Runnable task) {
+        if (shutdown) {
+            return false;
+        }
+        running.incrementAndGet();
+        Thread thread = factory.newThread(() -> {
+            try {
+                task.run();
+            } finally {
+                threads.remove(Thread.currentThread());
+                finished();
+            }
+        });
+        threads.add(thread);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Cancelar este ámbito: interrumpe sus hilos y cancela los ámbitos hijos
+     */
+    public void shutdown() {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        for (ConnectionScope child : children) {
+            child.shutdown();
+        }
+        for (Thread thread : threads) {
+            if (thread != Thread.currentThread()) {
+                thread.interrupt();
+            }
+        }
+        if (running.get() == 0) {
+            detach();
+        }
+    }
+
+    /**
+     * Esperar a que terminen todos los hilos del ámbito y de sus hijos
+     * @return true si todo terminó antes del tiempo indicado
+     */
+    public boolean join(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ConnectionScope child : children) {
+            if (!child.join(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        for (Thread thread : threads) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedJoin(thread, remaining);
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fábrica de hilos virtuales (JDK 21+). En JDKs anteriores devuelve hilos
+     * de plataforma con nombre, para que el modo siga funcionando.
+     */
+    static ThreadFactory virtualThreads(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            ServerLog.warn("[!] Hilos virtuales no disponibles en este JDK, usando hilos de plataforma");
+            AtomicInteger counter = new AtomicInteger(0);
+            return task -> new Thread(task, prefix + counter.getAndIncrement());
+        }
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public int activeChildren() {
+        return children.size();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void finished() {
+        // Un ámbito hijo sin hilos vivos se retira de su padre
+        if (running.decrementAndGet() == 0 && parent != null) {
+            detach();
+        }
+    }
+
+    private void detach() {
+        if (parent != null) {
+            parent.children.remove(this);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package centrodecontrol;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Mensaje saliente, inmutable y compartible entre clientes.
+ *
+ * Guarda el opcode y el cuerpo, y codifica cada versión del protocolo como
+ * mucho una vez, la primera vez que un cliente de esa versión la necesita
+ * (v1: formato writeUTF, v2: trama binaria). Un broadcast crea una trama y
+ * entrega la misma instancia a todos los destinatarios, así que el coste de
+ * codificar no crece con su número.
+ */
+final class Frame {
+
+    private final int opcode;
+    private final String body;
+    private final OutboundQueue.MessageClass messageClass;
+    private final boolean switchesToBinary;
+
+    // Offset en el diario (-1 si el mensaje no está en el diario)
+    private final long offset;
+
+    // Codificaciones perezosas, una por versión
+    private volatile byte[] legacy;
+    private volatile byte[] binary;
+
+    // Copias directas para escrituras NIO sin copia intermedia (opcional)
+    private volatile boolean shareDirect;
+    private volatile ByteBuffer legacyDirect;
+    private volatile ByteBuffer binaryDirect;
+
+    private Frame(int opcode, String body, boolean switchesToBinary, long offset) {
+        this.opcode = opcode;
+        this.body = body;
+        this.messageClass = OutboundQueue.MessageClass.of(opcode, offset >= 0);
+        this.switchesToBinary = switchesToBinary;
+        this.offset = offset;
+    }
+
+    /**
+     * Trama a partir de un mensaje legacy con prefijo ("[SYSTEM]...")
+     */
+    static Frame of(String message) {
+        int opcode = Protocol.opcodeOf(message);
+        return new Frame(opcode, Protocol.bodyOf(message, opcode), false, -1);
+    }
+
+    static Frame of(int opcode, String body) {
+        return new Frame(opcode, body, false, -1);
+    }
+
+    /**
+     * Mensaje del diario: los clientes v2 reciben también su offset para
+     * poder pedir con [REPLAY] lo que se pierdan al reconectar
+     */
+    static Frame journaled(int opcode, String body, long offset) {
+        return new Frame(opcode, body, false, offset);
+    }
+
+    /**
+     * Respuesta a [HELLO]. Se escribe siempre en v1; si acepta la v2, las
+     * tramas siguientes de esa conexión se escriben ya en binario.
+     */
+    static Frame helloAck(int version) {
+        return new Frame(Protocol.HELLO, String.valueOf(version), version >= Protocol.VERSION_BINARY, -1);
+    }
+
+    /**
+     * Preparar la trama para repartirla entre muchos clientes NIO: cada
+     * codificación se copia una vez a memoria directa y cada envío usa una
+     * vista de solo lectura, evitando la copia a un buffer temporal que el
+     * JDK hace con buffers de heap.
+     */
+    Frame shareDirect() {
+        shareDirect = true;
+        return this;
+    }
+
+    public int opcode() {
+        return opcode;
+    }
+
+    public String body() {
+        return body;
+    }
+
+    /**
+     * Representación legacy del mensaje ("[MSG]hola")
+     */
+    public String message() {
+        return Protocol.toLegacy(opcode, body);
+    }
+
+    public OutboundQueue.MessageClass messageClass() {
+        return messageClass;
+    }
+
+    public boolean switchesToBinary() {
+        return switchesToBinary;
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    /**
+     * Tamaño aproximado en el socket (cuerpo más cabeceras), sin codificar
+     */
+    int sizeHint() {
+        return body.length() + 16;
+    }
+
+    /**
+     * Bytes codificados para una versión del protocolo. Compartidos: no modificar.
+     * @throws UTFDataFormatException si el mensaje no cabe en una trama v1 (64 KB)
+     */
+    byte[] bytes(int version) throws UTFDataFormatException {
+        if (version >= Protocol.VERSION_BINARY && !switchesToBinary) {
+            byte[] encoded = binary;
+            if (encoded == null) {
+                encoded = offset >= 0
+                    ? Protocol.encodeBinary(opcode, Protocol.FLAG_OFFSET, offset, body)
+                    : Protocol.encodeBinary(opcode, Protocol.FLAGS_NONE, body);
+                binary = encoded;
+            }
+            return encoded;
+        }
+        byte[] encoded = legacy;
+        if (encoded == null) {
+            encoded = Protocol.encodeUTF(message());
+            legacy = encoded;
+        }
+        return encoded;
+    }
+
+    /**
+     * Vista de solo lectura con posición propia, para un único envío
+     */
+    ByteBuffer buffer(int version) throws UTFDataFormatException {
+        if (!shareDirect) {
+            return ByteBuffer.wrap(bytes(version)).asReadOnlyBuffer();
+        }
+        boolean isBinary = version >= Protocol.VERSION_BINARY && !switchesToBinary;
+        ByteBuffer shared = isBinary ? binaryDirect : legacyDirect;
+        if (shared == null) {
+            synchronized (this) {
+                shared = isBinary ? binaryDirect : legacyDirect;
+                if (shared == null) {
+                    byte[] encoded = bytes(version);
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+                    buffer.put(encoded).flip();
+                    shared = buffer.asReadOnlyBuffer();
+                    if (isBinary) {
+                        binaryDirect = shared;
+                    } else {
+                        legacyDirect = shared;
+                    }
+                }
+            }
+        }
+        return shared.duplicate();
+    }
+}
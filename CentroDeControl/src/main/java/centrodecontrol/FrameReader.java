@@ -0,0 +1,192 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Lector de tramas entrantes de una conexión, común a los dos transportes.
+ *
+ * Lee del socket a un buffer tomado de un pool y recorre las tramas
+ * completas sin copiarlas: cada una se despacha como InboundFrame, una vista
+ * sobre el buffer. Las tramas que no caben en el buffer normal se leen en uno
+ * grande del segundo pool, que se devuelve en cuanto se han procesado. La
+ * longitud se comprueba en la cabecera, antes de leer el resto, así que una
+ * trama demasiado grande se rechaza sin reservar memoria para ella.
+ *
+ * Solo lo usa el hilo que lee de la conexión.
+ */
+final class FrameReader {
+
+    private final BufferPool pool;
+    private final BufferPool largePool;
+    private final int maxLegacyFrame;
+    private final int maxBinaryFrame;
+    private final ServerMetrics metrics;
+    private final InboundFrame frame = new InboundFrame();
+
+    private byte[] buffer;
+    private ByteBuffer view;
+    private int position;
+    private int limit;
+
+    // Bytes que necesita la trama incompleta del final del buffer (0 si no se sabe)
+    private int pending;
+
+    FrameReader(BufferPool pool, BufferPool largePool, int maxLegacyFrame, int maxBinaryFrame,
+                ServerMetrics metrics) {
+        this.pool = pool;
+        this.largePool = largePool;
+        this.maxLegacyFrame = maxLegacyFrame;
+        this.maxBinaryFrame = maxBinaryFrame;
+        this.metrics = metrics;
+        this.buffer = pool.acquire();
+    }
+
+    /**
+     * Leer lo disponible de un stream bloqueante (espera a que llegue algo)
+     * @return bytes leídos, o -1 al cerrarse la conexión
+     */
+    int readFrom(InputStream in) throws IOException {
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read > 0) {
+            limit += read;
+            metrics.bytesIn.add(read);
+        }
+        return read;
+    }
+
+    /**
+     * Leer lo disponible de un canal no bloqueante
+     * @return bytes leídos (0 si no había nada), o -1 al cerrarse la conexión
+     */
+    int readFrom(ReadableByteChannel channel) throws IOException {
+        if (view == null) {
+            view = ByteBuffer.wrap(buffer);
+        }
+        view.limit(buffer.length).position(limit);
+        int read = channel.read(view);
+        if (read > 0) {
+            limit += read;
+            metrics.bytesIn.add(read);
+        }
+        return read;
+    }
+
+    /**
+     * Siguiente trama completa del buffer, en la versión indicada (puede
+     * cambiar entre una trama y la siguiente tras [HELLO])
+     * @return null si hace falta leer más
+     * @throws IOException si la trama es demasiado grande o está mal formada
+     */
+    InboundFrame next(int version) throws IOException {
+        int available = limit - position;
+        int header;
+        int length;
+        if (version == Protocol.VERSION_BINARY) {
+            header = 4;
+            if (available < header) {
+                pending = header;
+                return null;
+            }
+            length = ((buffer[position] & 0xFF) << 24) | ((buffer[position + 1] & 0xFF) << 16)
+                | ((buffer[position + 2] & 0xFF) << 8) | (buffer[position + 3] & 0xFF);
+            if (length < 3) {
+                throw new IOException("Trama binaria demasiado corta");
+            }
+            if (length > maxBinaryFrame) {
+                throw oversized(length);
+            }
+        } else {
+            header = 2;
+            if (available < header) {
+                pending = header;
+                return null;
+            }
+            length = ((buffer[position] & 0xFF) << 8) | (buffer[position + 1] & 0xFF);
+            if (length > maxLegacyFrame) {
+                throw oversized(length);
+            }
+        }
+
+        int total = header + length;
+        if (available < total) {
+            pending = total;
+            ensureCapacity(total);
+            return null;
+        }
+        pending = 0;
+        int start = position + header;
+        position += total;
+        if (header == 4) {
+            Protocol.parseBinary(buffer, start, length, frame);
+        } else {
+            Protocol.parseLegacy(buffer, start, length, frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Dejar al principio del buffer lo que quede sin procesar, volviendo al
+     * buffer normal si se estaba usando uno grande y la trama pendiente ya
+     * cabe en él. Se llama tras despachar todas las tramas completas de una
+     * lectura, antes de la siguiente.
+     */
+    void compact() {
+        int remaining = limit - position;
+        if (buffer.length != pool.bufferSize() && remaining <= pool.bufferSize()
+                && pending <= pool.bufferSize()) {
+            replaceBuffer(pool.acquire(), largePool);
+        } else {
+            moveToStart();
+        }
+    }
+
+    /**
+     * Devolver el buffer a su pool (al cerrar la conexión)
+     */
+    void release() {
+        if (buffer == null) {
+            return;
+        }
+        (buffer.length == pool.bufferSize() ? pool : largePool).release(buffer);
+        buffer = null;
+        view = null;
+    }
+
+    /**
+     * Asegurar hueco para una trama entera a partir del principio del buffer
+     */
+    private void ensureCapacity(int total) {
+        if (total > buffer.length) {
+            replaceBuffer(largePool.acquire(), pool);
+        } else if (position + total > buffer.length) {
+            moveToStart();
+        }
+    }
+
+    private void moveToStart() {
+        int remaining = limit - position;
+        if (remaining > 0 && position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining);
+        }
+        position = 0;
+        limit = remaining;
+    }
+
+    private void replaceBuffer(byte[] replacement, BufferPool owner) {
+        int remaining = limit - position;
+        System.arraycopy(buffer, position, replacement, 0, remaining);
+        owner.release(buffer);
+        buffer = replacement;
+        view = null;
+        position = 0;
+        limit = remaining;
+    }
+
+    private IOException oversized(int length) {
+        metrics.framesOversized.increment();
+        return new IOException("Tamaño de trama no permitido: " + length);
+    }
+}
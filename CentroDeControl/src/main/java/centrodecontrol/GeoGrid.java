@@ -0,0 +1,158 @@
+package centrodecontrol;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Índice espacial de las suscripciones a alertas.
+ *
+ * Divide el mapa en una rejilla de celdas de cellMeters de lado (en grados:
+ * las mismas divisiones en latitud y en longitud) y guarda cada suscripción
+ * en la celda de su centro. Una alerta solo recorre las celdas que quedan a
+ * menos del radio máximo de su punto y comprueba la distancia a las
+ * suscripciones que hay en ellas, así que su coste depende de los
+ * suscriptores cercanos y no del total de conexiones.
+ */
+final class GeoGrid {
+
+    private static final double EARTH_RADIUS_METERS = 6_371_000;
+    private static final double METERS_PER_DEGREE = Math.PI * EARTH_RADIUS_METERS / 180;
+
+    /**
+     * Suscripción de un cliente: recibe las alertas a menos de radiusMeters del centro
+     */
+    static final class Subscription {
+        final ClientHandler client;
+        final double latitude;
+        final double longitude;
+        final int radiusMeters;
+        private final long cell;
+
+        private Subscription(ClientHandler client, double latitude, double longitude, int radiusMeters, long cell) {
+            this.client = client;
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.radiusMeters = radiusMeters;
+            this.cell = cell;
+        }
+    }
+
+    private final double cellDegrees;
+    private final int maxRadiusMeters;
+    private final int rows;
+    private final int columns;
+    private final ConcurrentHashMap<Long, Set<Subscription>> cells = new ConcurrentHashMap<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    GeoGrid(int cellMeters, int maxRadiusMeters) {
+        this.cellDegrees = Math.max(1, cellMeters) / METERS_PER_DEGREE;
+        this.maxRadiusMeters = Math.max(1, maxRadiusMeters);
+        this.rows = (int) Math.ceil(180 / cellDegrees);
+        this.columns = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    /**
+     * Suscribir a un cliente (el radio se recorta al máximo)
+     */
+    Subscription add(ClientHandler client, double latitude, double longitude, int radiusMeters) {
+        Subscription subscription = new Subscription(client, latitude, longitude,
+            Math.max(1, Math.min(radiusMeters, maxRadiusMeters)), cellOf(row(latitude), column(longitude)));
+        cells.compute(subscription.cell, (key, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(subscription);
+            return set;
+        });
+        size.incrementAndGet();
+        return subscription;
+    }
+
+    void remove(Subscription subscription) {
+        if (subscription == null) {
+            return;
+        }
+        boolean[] removed = new boolean[1];
+        cells.computeIfPresent(subscription.cell, (key, set) -> {
+            removed[0] = set.remove(subscription);
+            return set.isEmpty() ? null : set;
+        });
+        if (removed[0]) {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Recorrer las suscripciones que cubren un punto
+     * @return cuántas lo cubren
+     */
+    int match(double latitude, double longitude, Consumer<Subscription> action) {
+        int row = row(latitude);
+        int rowSpan = (int) Math.ceil(maxRadiusMeters / METERS_PER_DEGREE / cellDegrees);
+
+        // Hacia los polos una celda abarca menos metros de longitud: más columnas
+        double farthest = Math.min(90, Math.abs(latitude) + maxRadiusMeters / METERS_PER_DEGREE);
+        double cos = Math.cos(Math.toRadians(farthest));
+        int columnSpan = cos > 1e-6
+            ? (int) Math.ceil(maxRadiusMeters / (METERS_PER_DEGREE * cos) / cellDegrees) : columns;
+        int column = column(longitude);
+        int firstColumn = column - columnSpan;
+        int lastColumn = column + columnSpan;
+        if (2 * columnSpan + 1 >= columns) {
+            // Cerca de los polos: todas las columnas, cada una una sola vez
+            firstColumn = 0;
+            lastColumn = columns - 1;
+        }
+
+        int matched = 0;
+        for (int r = Math.max(0, row - rowSpan); r <= Math.min(rows - 1, row + rowSpan); r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                Set<Subscription> set = cells.get(cellOf(r, Math.floorMod(c, columns)));
+                if (set == null) {
+                    continue;
+                }
+                for (Subscription subscription : set) {
+                    if (distanceMeters(latitude, longitude, subscription.latitude, subscription.longitude)
+                            <= subscription.radiusMeters) {
+                        action.accept(subscription);
+                        matched++;
+                    }
+                }
+            }
+        }
+        return matched;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    int getMaxRadiusMeters() {
+        return maxRadiusMeters;
+    }
+
+    /**
+     * Distancia sobre la esfera terrestre (haversine)
+     */
+    static double distanceMeters(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+            + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private int row(double latitude) {
+        return Math.min(rows - 1, (int) Math.floor((latitude + 90) / cellDegrees));
+    }
+
+    private int column(double longitude) {
+        return Math.floorMod((int) Math.floor((longitude + 180) / cellDegrees), columns);
+    }
+
+    private long cellOf(int row, int column) {
+        return (long) row * columns + column;
+    }
+}
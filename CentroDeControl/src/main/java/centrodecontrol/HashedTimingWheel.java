@@ -0,0 +1,243 @@
+package centrodecontrol;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rueda de temporizadores con hash (Varghese y Lauck).
+ *
+ * El tiempo se divide en ticks y cada temporizador se guarda en la casilla
+ * (deadline / tick) mod tamaño, con el número de vueltas que le faltan. Armar
+ * y cancelar cuestan O(1), sin importar cuántos temporizadores haya, a cambio
+ * de una precisión de un tick. Sirve para los temporizadores de cada conexión
+ * (latidos, inactividad): decenas de miles que casi nunca llegan a vencer.
+ *
+ * Un solo hilo avanza la rueda y ejecuta las tareas vencidas, que deben ser
+ * cortas (encolar un mensaje, cerrar una conexión...).
+ */
+class HashedTimingWheel {
+
+    /**
+     * Temporizador armado
+     */
+    interface Timeout {
+        /**
+         * @return false si ya había vencido o estaba cancelado
+         */
+        boolean cancel();
+    }
+
+    private static final int ST_ARMED = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    // Altas y bajas desde otros hilos; las aplica el hilo de la rueda
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicLong armed = new AtomicLong();
+
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean running = true;
+
+    // Tick actual (solo lo toca el hilo de la rueda)
+    private long tick;
+
+    /**
+     * @param tickDuration duración de un tick (la precisión de la rueda)
+     * @param ticksPerWheel número de casillas, se redondea a potencia de 2
+     */
+    HashedTimingWheel(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.startTime = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Armar un temporizador que ejecuta la tarea pasado el retardo
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+        Entry entry = new Entry(task, deadline);
+        armed.incrementAndGet();
+        pending.add(entry);
+        return entry;
+    }
+
+    /**
+     * Temporizadores armados y aún no vencidos ni cancelados
+     */
+    long armedCount() {
+        return armed.get();
+    }
+
+    void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            removeCancelled();
+            transferPending();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Colocar los temporizadores nuevos en su casilla
+     */
+    private void transferPending() {
+        // Límite por tick para que una ráfaga de altas no retrase la rueda
+        for (int i = 0; i < 100_000; i++) {
+            Entry entry = pending.poll();
+            if (entry == null) {
+                return;
+            }
+            if (entry.state.get() == ST_CANCELLED) {
+                continue;
+            }
+            long calculated = entry.deadline / tickNanos;
+            entry.rounds = (calculated - tick) / wheel.length;
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(entry);
+        }
+    }
+
+    private void removeCancelled() {
+        Entry entry;
+        while ((entry = cancelled.poll()) != null) {
+            if (entry.bucket != null) {
+                entry.bucket.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Temporizador: nodo de la lista doblemente enlazada de su casilla
+     */
+    private final class Entry implements Timeout {
+        final Runnable task;
+        final long deadline;
+        final AtomicInteger state = new AtomicInteger(ST_ARMED);
+
+        long rounds;
+        Bucket bucket;
+        Entry prev;
+        Entry next;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(ST_ARMED, ST_CANCELLED)) {
+                return false;
+            }
+            armed.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        void expire() {
+            if (!state.compareAndSet(ST_ARMED, ST_EXPIRED)) {
+                return;
+            }
+            armed.decrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ServerLog.error("[!] Error en temporizador: {}", e);
+            }
+        }
+    }
+
+    /**
+     * Casilla de la rueda (solo la toca el hilo de la rueda)
+     */
+    private final class Bucket {
+        private Entry head;
+        private Entry tail;
+
+        void add(Entry entry) {
+            entry.bucket = this;
+            if (head == null) {
+                head = tail = entry;
+            } else {
+                tail.next = entry;
+                entry.prev = tail;
+                tail = entry;
+            }
+        }
+
+        void expire(long deadline) {
+            Entry entry = head;
+            while (entry != null) {
+                Entry next = entry.next;
+                if (entry.rounds <= 0) {
+                    remove(entry);
+                    if (entry.deadline <= deadline) {
+                        entry.expire();
+                    } else {
+                        // No debería pasar: se vuelve a colocar en el siguiente tick
+                        pending.add(entry);
+                    }
+                } else if (entry.state.get() == ST_CANCELLED) {
+                    remove(entry);
+                } else {
+                    entry.rounds--;
+                }
+                entry = next;
+            }
+        }
+
+        void remove(Entry entry) {
+            if (entry.bucket != this) {
+                return;
+            }
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            } else {
+                tail = entry.prev;
+            }
+            entry.prev = null;
+            entry.next = null;
+            entry.bucket = null;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latidos y expulsión de conexiones inactivas.
+ *
+ * Cada conexión tiene un temporizador en la rueda que vence cada intervalo de
+ * latido. Al vencer se mira cuánto hace que llegó la última trama del
+ * cliente: si supera el tiempo de inactividad se le expulsa; si no, a los
+ * clientes v2 se les envía [PING] (que responden con [PONG]) y se vuelve a
+ * armar. Recibir mensajes no toca la rueda, solo actualiza una marca de
+ * tiempo, así que el coste es un temporizador por conexión y intervalo.
+ *
+ * Los clientes v1 no entienden [PING]: una vez identificados solo se les
+ * aplica el keepalive de TCP (con tiempos cortos donde el sistema lo permite).
+ * Antes de identificarse se les expulsa por inactividad igual que a los v2.
+ */
+class HeartbeatMonitor {
+
+    private final HashedTimingWheel wheel;
+    private final long intervalMs;
+    private final long idleTimeoutNanos;
+    private final Frame ping;
+    private final AtomicLong evicted = new AtomicLong();
+
+    HeartbeatMonitor(long intervalMs, long idleTimeoutMs, boolean shareDirect) {
+        this.intervalMs = intervalMs;
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.wheel = new HashedTimingWheel("latidos", 100, TimeUnit.MILLISECONDS, 512);
+        // La misma trama para todos: se codifica una sola vez
+        Frame frame = Frame.of(Protocol.PING, String.valueOf(intervalMs));
+        this.ping = shareDirect ? frame.shareDirect() : frame;
+    }
+
+    /**
+     * Empezar a vigilar una conexión nueva
+     */
+    void watch(ClientHandler client) {
+        client.touch();
+        arm(client);
+    }
+
+    /**
+     * Dejar de vigilar una conexión (al desconectarse)
+     */
+    void unwatch(ClientHandler client) {
+        client.heartbeatStopped = true;
+        HashedTimingWheel.Timeout timeout = client.heartbeat;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    long getEvicted() {
+        return evicted.get();
+    }
+
+    long getWatched() {
+        return wheel.armedCount();
+    }
+
+    void stop() {
+        wheel.stop();
+    }
+
+    private void arm(ClientHandler client) {
+        HashedTimingWheel.Timeout timeout = wheel.schedule(() -> check(client), intervalMs, TimeUnit.MILLISECONDS);
+        client.heartbeat = timeout;
+        // unwatch() puede haber leído el temporizador anterior
+        if (client.heartbeatStopped) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Vence el intervalo de una conexión (hilo de la rueda)
+     */
+    private void check(ClientHandler client) {
+        if (client.heartbeatStopped) {
+            return;
+        }
+        boolean binary = client.getProtocolVersion() >= Protocol.VERSION_BINARY;
+        boolean checkIdle = binary || client.clientName == null;
+        if (checkIdle && client.idleNanos() >= idleTimeoutNanos) {
+            evicted.incrementAndGet();
+            ServerLog.warn("[!] Conexión inactiva, desconectando a {} ({})",
+                client.getClientName(), client.getIpAddress());
+            client.abort();
+            return;
+        }
+        if (binary) {
+            client.sendFrame(ping);
+        }
+        arm(client);
+    }
+
+    /**
+     * Activar el keepalive de TCP en un socket bloqueante
+     */
+    void keepAlive(Socket socket) {
+        try {
+            socket.setKeepAlive(true);
+            setKeepAliveTimes(socket.supportedOptions(), new OptionSetter() {
+                @Override
+                public <T> void set(SocketOption<T> option, T value) throws IOException {
+                    socket.setOption(option, value);
+                }
+            });
+        } catch (IOException e) {
+            ServerLog.warn("[!] No se pudo activar el keepalive: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Activar el keepalive de TCP en un canal NIO
+     */
+    void keepAlive(NetworkChannel channel) {
+        try {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            setKeepAliveTimes(channel.supportedOptions(), new OptionSetter() {
+                @Override
+                public <T> void set(SocketOption<T> option, T value) throws IOException {
+                    channel.setOption(option, value);
+                }
+            });
+        } catch (IOException e) {
+            ServerLog.warn("[!] No se pudo activar el keepalive: {}", e.getMessage());
+        }
+    }
+
+    private interface OptionSetter {
+        <T> void set(SocketOption<T> option, T value) throws IOException;
+    }
+
+    /**
+     * Sondas de keepalive cada intervalo de latido, tres como máximo
+     * (solo en sistemas que admiten las opciones extendidas)
+     */
+    private void setKeepAliveTimes(Set<SocketOption<?>> supported, OptionSetter setter) throws IOException {
+        int seconds = (int) Math.max(1, intervalMs / 1000);
+        if (supported.contains(jdk.net.ExtendedSocketOptions.TCP_KEEPIDLE)) {
+            setter.set(jdk.net.ExtendedSocketOptions.TCP_KEEPIDLE, seconds);
+        }
+        if (supported.contains(jdk.net.ExtendedSocketOptions.TCP_KEEPINTERVAL)) {
+            setter.set(jdk.net.ExtendedSocketOptions.TCP_KEEPINTERVAL, seconds);
+        }
+        if (supported.contains(jdk.net.ExtendedSocketOptions.TCP_KEEPCOUNT)) {
+            setter.set(jdk.net.ExtendedSocketOptions.TCP_KEEPCOUNT, 3);
+        }
+    }
+}
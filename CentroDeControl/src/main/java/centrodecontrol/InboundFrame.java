@@ -0,0 +1,69 @@
+package centrodecontrol;
+
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Trama recibida, vista sobre el buffer de lectura de la conexión.
+ *
+ * Cada conexión reutiliza la misma instancia para todas sus tramas: el
+ * opcode se obtiene sin copiar nada y el cuerpo solo se convierte en String
+ * si el comando lo pide. Solo es válida mientras se despacha la trama; el
+ * siguiente read sobrescribe el buffer.
+ */
+final class InboundFrame {
+
+    private int opcode;
+    private int flags;
+    private byte[] data;
+    private int bodyOffset;
+    private int bodyLength;
+
+    // v1: cuerpo en UTF-8 modificado (writeUTF); v2: UTF-8 estándar
+    private boolean legacy;
+
+    // Caracteres para decodificar cuerpos v1 no ASCII (se crea al primero y crece con el mayor)
+    private char[] chars;
+
+    void set(int opcode, int flags, byte[] data, int bodyOffset, int bodyLength, boolean legacy) {
+        this.opcode = opcode;
+        this.flags = flags;
+        this.data = data;
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength;
+        this.legacy = legacy;
+    }
+
+    int opcode() {
+        return opcode;
+    }
+
+    int flags() {
+        return flags;
+    }
+
+    int bodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Cuerpo de la trama (crea el String en cada llamada; "" si está vacío)
+     * @throws UTFDataFormatException si un cuerpo v1 no es UTF-8 modificado válido
+     */
+    String body() throws UTFDataFormatException {
+        if (bodyLength == 0) {
+            return "";
+        }
+        if (!legacy) {
+            return new String(data, bodyOffset, bodyLength, StandardCharsets.UTF_8);
+        }
+        if (Protocol.isAscii(data, bodyOffset, bodyLength)) {
+            // Mismo resultado en UTF-8 modificado y en Latin-1, que se copia sin decodificar
+            return new String(data, bodyOffset, bodyLength, StandardCharsets.ISO_8859_1);
+        }
+        if (chars == null || chars.length < bodyLength) {
+            chars = new char[Math.max(bodyLength, 256)];
+        }
+        return Protocol.decodeUTF(data, bodyOffset, bodyLength, chars);
+    }
+}
@@ -0,0 +1,97 @@
+package centrodecontrol;
+
+import java.util.Locale;
+
+/**
+ * Alerta de incidencia ([ALERT]), con los campos de model.Incidencia que
+ * hacen falta para avisar a los vecinos: posición, categoría, urgencia y
+ * título.
+ *
+ * Formato del cuerpo, el mismo al recibirla y al repartirla:
+ *   latitud;longitud;categoría;urgencia;título
+ * con las coordenadas en grados decimales con punto. El título va al final
+ * y puede contener ';'.
+ */
+final class IncidentAlert {
+
+    /** Urgencias admitidas (las del formulario de incidencias de la app) */
+    private static final String[] URGENCIES = {"Baja", "Media", "Alta"};
+
+    private static final int MAX_CATEGORY = 64;
+    private static final int MAX_TITLE = 200;
+
+    final double latitude;
+    final double longitude;
+    final String category;
+    final String urgency;
+    final String title;
+
+    private IncidentAlert(double latitude, double longitude, String category, String urgency, String title) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.category = category;
+        this.urgency = urgency;
+        this.title = title;
+    }
+
+    /**
+     * Validar y crear una alerta
+     * @throws IllegalArgumentException con el motivo, para devolvérselo a quien la envía
+     */
+    static IncidentAlert of(double latitude, double longitude, String category, String urgency, String title) {
+        if (!(latitude >= -90 && latitude <= 90) || !(longitude >= -180 && longitude <= 180)) {
+            throw new IllegalArgumentException("Coordenadas fuera de rango");
+        }
+        category = category.trim();
+        if (category.isEmpty() || category.length() > MAX_CATEGORY || category.indexOf(';') >= 0) {
+            throw new IllegalArgumentException("Categoría no válida");
+        }
+        String normalized = null;
+        for (String candidate : URGENCIES) {
+            if (candidate.equalsIgnoreCase(urgency.trim())) {
+                normalized = candidate;
+            }
+        }
+        if (normalized == null) {
+            throw new IllegalArgumentException("Urgencia no válida (Baja, Media o Alta)");
+        }
+        title = title.trim();
+        if (title.isEmpty() || title.length() > MAX_TITLE) {
+            throw new IllegalArgumentException("Título no válido");
+        }
+        return new IncidentAlert(latitude, longitude, category, normalized, title);
+    }
+
+    /**
+     * Leer el cuerpo de un [ALERT]
+     * @throws IllegalArgumentException si el formato o algún campo no es válido
+     */
+    static IncidentAlert parse(String body) {
+        String[] fields = body.split(";", 5);
+        if (fields.length < 5) {
+            throw new IllegalArgumentException("Formato: latitud;longitud;categoría;urgencia;título");
+        }
+        double latitude;
+        double longitude;
+        try {
+            latitude = Double.parseDouble(fields[0].trim());
+            longitude = Double.parseDouble(fields[1].trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Coordenadas no válidas");
+        }
+        return of(latitude, longitude, fields[2], fields[3], fields[4]);
+    }
+
+    /**
+     * Cuerpo del [ALERT] que se reparte
+     */
+    String toBody() {
+        return String.format(Locale.ROOT, "%.6f;%.6f;%s;%s;%s", latitude, longitude, category, urgency, title);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s [%s] en (%.5f, %.5f): %s",
+            category, urgency, latitude, longitude, title);
+    }
+}
@@ -0,0 +1,128 @@
+package centrodecontrol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias con buckets logarítmicos (al estilo de HdrHistogram).
+ *
+ * Cada potencia de 2 se divide en 128 sub-buckets lineales, así que el
+ * error relativo de un percentil es menor del 1% en todo el rango, con un
+ * array fijo de contadores. Registrar un valor es un incremento atómico, sin
+ * bloqueos ni reservas de memoria, y se puede hacer desde cualquier hilo; el
+ * total y la suma son LongAdder para no competir todos por la misma celda.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Registrar un valor (negativos cuentan como 0)
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // reintentar
+        }
+    }
+
+    long count() {
+        return total.sum();
+    }
+
+    long sum() {
+        return sum.sum();
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    double mean() {
+        long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Valor del percentil indicado (0-100), redondeado al límite superior de su bucket
+     */
+    long percentile(double percentile) {
+        long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Sumar los contadores de otro histograma
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        long otherMax = other.max.get();
+        long current;
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+            // reintentar
+        }
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * Los valores menores que SUB_COUNT tienen bucket propio; el resto se
+     * agrupa por su bit más alto y los SUB_BITS bits siguientes
+     */
+    static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+        return (shift + 1) * SUB_COUNT + sub;
+    }
+
+    static long upperBound(int index) {
+        int magnitude = index / SUB_COUNT;
+        long sub = index % SUB_COUNT;
+        if (magnitude == 0) {
+            return sub;
+        }
+        long base = (SUB_COUNT | sub) << (magnitude - 1);
+        return base + (1L << (magnitude - 1)) - 1;
+    }
+}
@@ -0,0 +1,369 @@
+package centrodecontrol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generador de carga para el Centro de Control.
+ *
+ * Abre N clientes simulados contra un ServidorChat local con el mismo
+ * protocolo que SocketCliente ([HELLO], [LOGIN], [JOIN], [MSG]), los reparte
+ * en salas y hace que cada uno envíe mensajes a un ritmo fijo. Cada mensaje
+ * lleva el instante de envío, así que los receptores miden la latencia de
+ * entrega de extremo a extremo (mismo proceso, mismo reloj).
+ *
+ * Informa del tiempo de conexión, los percentiles de latencia (p50/p99/p999)
+ * y el rendimiento, periódicamente durante la prueba y al final.
+ *
+ * Uso: java centrodecontrol.LoadTest [host] [puerto] [--clients=N] [--room-size=N] [--rate=MSG/S]
+ *        [--duration=S] [--warmup=S] [--size=BYTES] [--protocol=1|2] [--report=S]
+ */
+public class LoadTest {
+
+    private static final String STAMP = "t=";
+
+    // Opciones
+    private String host = "localhost";
+    private int port = 5555;
+    private int clients = 100;
+    private int roomSize = 10;
+    private double rate = 1.0;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int messageSize = 64;
+    private int protocol = Protocol.VERSION_BINARY;
+    private int reportSeconds = 10;
+
+    // Resultados
+    private final LatencyHistogram connectTimes = new LatencyHistogram();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LatencyHistogram intervalLatencies = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile boolean measuring = false;
+    private volatile boolean stopping = false;
+
+    private final List<SimulatedClient> connected = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        if (!test.parse(args)) {
+            return;
+        }
+        test.run();
+    }
+
+    private boolean parse(String[] args) {
+        int positional = 0;
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--clients=")) {
+                    clients = Integer.parseInt(arg.substring(10));
+                } else if (arg.startsWith("--room-size=")) {
+                    roomSize = Integer.parseInt(arg.substring(12));
+                } else if (arg.startsWith("--rate=")) {
+                    rate = Double.parseDouble(arg.substring(7));
+                } else if (arg.startsWith("--duration=")) {
+                    durationSeconds = Integer.parseInt(arg.substring(11));
+                } else if (arg.startsWith("--warmup=")) {
+                    warmupSeconds = Integer.parseInt(arg.substring(9));
+                } else if (arg.startsWith("--size=")) {
+                    messageSize = Integer.parseInt(arg.substring(7));
+                } else if (arg.startsWith("--protocol=")) {
+                    protocol = Integer.parseInt(arg.substring(11)) >= 2 ? Protocol.VERSION_BINARY : Protocol.VERSION_LEGACY;
+                } else if (arg.startsWith("--report=")) {
+                    reportSeconds = Integer.parseInt(arg.substring(9));
+                } else if (arg.startsWith("--")) {
+                    System.err.println("[!] Opción desconocida: " + arg);
+                    return false;
+                } else if (positional++ == 0) {
+                    host = arg;
+                } else {
+                    port = Integer.parseInt(arg);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("[!] Valor inválido: " + arg);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void run() throws Exception {
+        int rooms = roomSize > 0 ? (clients + roomSize - 1) / roomSize : 0;
+        System.out.println("========================================");
+        System.out.println("  PRUEBA DE CARGA - Centro de Control");
+        System.out.println("========================================");
+        System.out.println("Servidor: " + host + ":" + port + " (protocolo v" + protocol + ")");
+        System.out.println("Clientes: " + clients + ", salas: " + (rooms > 0 ? rooms + " de " + roomSize : "solo lobby"));
+        System.out.println("Ritmo: " + rate + " msg/s por cliente, " + messageSize + " bytes, " +
+            warmupSeconds + " s de calentamiento + " + durationSeconds + " s");
+        System.out.println("----------------------------------------");
+
+        connectAll();
+        if (connected.isEmpty()) {
+            System.err.println("[!] No se pudo conectar ningún cliente");
+            return;
+        }
+        System.out.printf("Conectados %d/%d. Conexión: p50=%s p99=%s max=%s%n", connected.size(), clients,
+            millis(connectTimes.percentile(50)), millis(connectTimes.percentile(99)), millis(connectTimes.max()));
+
+        // Un hilo de envío por núcleo; cada cliente envía a ritmo fijo con un desfase aleatorio
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(
+            Runtime.getRuntime().availableProcessors(), daemon("carga-envio"));
+        long periodNanos = rate > 0 ? (long) (1_000_000_000L / rate) : 0;
+        if (periodNanos > 0) {
+            for (SimulatedClient client : connected) {
+                senders.scheduleAtFixedRate(client::sendChat,
+                    ThreadLocalRandom.current().nextLong(periodNanos), periodNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        Thread.sleep(warmupSeconds * 1000L);
+        sent.set(0);
+        received.set(0);
+        measuring = true;
+        long start = System.nanoTime();
+
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long lastReport = start;
+        long lastReceived = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(reportSeconds * 1000L, Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+            long now = System.nanoTime();
+            if (now - lastReport >= TimeUnit.SECONDS.toNanos(reportSeconds) && now < end) {
+                long delivered = received.get();
+                System.out.printf("[%3d s] %,.0f msg/s entregados, latencia p50=%s p99=%s p999=%s%n",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start),
+                    (delivered - lastReceived) / ((now - lastReport) / 1e9),
+                    millis(intervalLatencies.percentile(50)), millis(intervalLatencies.percentile(99)),
+                    millis(intervalLatencies.percentile(99.9)));
+                intervalLatencies.reset();
+                lastReport = now;
+                lastReceived = delivered;
+            }
+        }
+
+        senders.shutdownNow();
+        long elapsed = System.nanoTime() - start;
+        measuring = false;
+        long totalSent = sent.get();
+        // Dar tiempo a que lleguen los mensajes en vuelo (no cuentan para el rendimiento)
+        Thread.sleep(1000);
+        stopping = true;
+        for (SimulatedClient client : connected) {
+            client.close();
+        }
+
+        double seconds = elapsed / 1e9;
+        long expected = rooms > 0 ? totalSent * (Math.min(roomSize, connected.size()) - 1) : totalSent * (connected.size() - 1);
+        System.out.println("----------------------------------------");
+        System.out.println("RESULTADOS (" + durationSeconds + " s)");
+        System.out.printf("Enviados:    %,d (%,.0f msg/s)%n", totalSent, totalSent / seconds);
+        System.out.printf("Entregados:  %,d (%,.0f msg/s), esperados ~%,d%n", latencies.count(), latencies.count() / seconds, expected);
+        System.out.printf("Latencia:    p50=%s p99=%s p999=%s max=%s media=%s%n",
+            millis(latencies.percentile(50)), millis(latencies.percentile(99)), millis(latencies.percentile(99.9)),
+            millis(latencies.max()), millis((long) latencies.mean()));
+        System.out.printf("Conexión:    p50=%s p99=%s max=%s%n",
+            millis(connectTimes.percentile(50)), millis(connectTimes.percentile(99)), millis(connectTimes.max()));
+        System.out.printf("Errores:     %d%n", errors.get());
+    }
+
+    /**
+     * Conectar e identificar a todos los clientes, 64 a la vez
+     */
+    private void connectAll() throws InterruptedException {
+        ExecutorService connector = Executors.newFixedThreadPool(64, daemon("carga-conexion"));
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            int id = i;
+            connector.execute(() -> {
+                try {
+                    SimulatedClient client = new SimulatedClient(id);
+                    client.connect();
+                    synchronized (connected) {
+                        connected.add(client);
+                    }
+                } catch (IOException | InterruptedException e) {
+                    errors.incrementAndGet();
+                    System.err.println("[!] Cliente " + id + ": " + e.getMessage());
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        connector.shutdown();
+    }
+
+    /**
+     * Un dispositivo simulado: un socket, su hilo lector y su sala
+     */
+    private final class SimulatedClient {
+        private final String name;
+        private final String room;
+        private final String padding;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+        private int version = Protocol.VERSION_LEGACY;
+        private final CountDownLatch ready = new CountDownLatch(1);
+
+        SimulatedClient(int id) {
+            this.name = "carga-" + id;
+            this.room = roomSize > 0 ? "carga-" + (id / roomSize) : null;
+            StringBuilder sb = new StringBuilder();
+            while (sb.length() < messageSize) {
+                sb.append('x');
+            }
+            this.padding = sb.toString();
+        }
+
+        void connect() throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), 10_000);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+            if (protocol >= Protocol.VERSION_BINARY) {
+                // Igual que SocketCliente: pedir la v2 y esperar la respuesta
+                write("[HELLO]" + Protocol.VERSION_BINARY);
+                socket.setSoTimeout(2000);
+                String message;
+                while (!(message = in.readUTF()).startsWith("[HELLO]")) {
+                    // mensajes de bienvenida
+                }
+                if (message.endsWith(String.valueOf(Protocol.VERSION_BINARY))) {
+                    version = Protocol.VERSION_BINARY;
+                }
+                socket.setSoTimeout(0);
+            }
+
+            Thread reader = new Thread(this::readLoop, "carga-lector-" + name);
+            reader.setDaemon(true);
+            reader.start();
+
+            write("[LOGIN]" + name);
+            if (!ready.await(10, TimeUnit.SECONDS)) {
+                throw new IOException("Sin respuesta al [LOGIN]");
+            }
+            if (room != null) {
+                write("[JOIN]" + room);
+            }
+            connectTimes.record(System.nanoTime() - start);
+        }
+
+        void sendChat() {
+            try {
+                write("[MSG]" + STAMP + System.nanoTime() + " " + padding);
+                if (measuring) {
+                    sent.incrementAndGet();
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+
+        private void write(String message) throws IOException {
+            synchronized (this) {
+                if (version >= Protocol.VERSION_BINARY) {
+                    int opcode = Protocol.opcodeOf(message);
+                    out.write(Protocol.encodeBinary(opcode, Protocol.FLAGS_NONE, Protocol.bodyOf(message, opcode)));
+                } else {
+                    out.writeUTF(message);
+                }
+                out.flush();
+            }
+        }
+
+        private void readLoop() {
+            try {
+                while (!stopping) {
+                    int opcode;
+                    String body;
+                    if (version >= Protocol.VERSION_BINARY) {
+                        int length = in.readInt();
+                        byte[] data = new byte[length];
+                        in.readFully(data);
+                        Protocol.Decoded decoded = Protocol.decodeBinary(data, 0, length);
+                        opcode = decoded.opcode;
+                        body = decoded.body;
+                    } else {
+                        String message = in.readUTF();
+                        opcode = Protocol.opcodeOf(message);
+                        body = Protocol.bodyOf(message, opcode);
+                    }
+                    onMessage(opcode, body);
+                }
+            } catch (IOException e) {
+                if (!stopping) {
+                    errors.incrementAndGet();
+                    System.err.println("[!] " + name + " desconectado: " + e.getMessage());
+                }
+            }
+        }
+
+        private void onMessage(int opcode, String body) throws IOException {
+            if (opcode == Protocol.MSG && body.startsWith(STAMP)) {
+                int end = body.indexOf(' ');
+                long stamp = Long.parseLong(body.substring(STAMP.length(), end < 0 ? body.length() : end));
+                received.incrementAndGet();
+                if (measuring) {
+                    long latency = System.nanoTime() - stamp;
+                    latencies.record(latency);
+                    intervalLatencies.record(latency);
+                }
+            } else if (opcode == Protocol.PING) {
+                write("[PONG]");
+            } else if (opcode == Protocol.SYSTEM && ready.getCount() > 0) {
+                if (body.startsWith("Error")) {
+                    System.err.println("[!] " + name + ": " + body);
+                    ready.countDown();
+                } else if (body.startsWith("Conexión exitosa")) {
+                    ready.countDown();
+                }
+            }
+        }
+
+        void close() {
+            try {
+                write("[LOGOUT]");
+                socket.close();
+            } catch (IOException e) {
+                // ya cerrado
+            }
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,186 @@
+package centrodecontrol;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Buzones de los clientes desconectados.
+ *
+ * Un /msg a alguien que no está conectado se escribe en el diario con la
+ * clave "@nombre" (que ninguna reproducción de sala devuelve) y su buzón solo
+ * anota el offset y la hora: dos long por mensaje, en un anillo que crece
+ * hasta maxMessages. Lleno, se descarta el más antiguo; los de más de maxAgeMs
+ * caducan. Al iniciar sesión el buzón se vacía de golpe: sus mensajes se
+ * leen del diario por offset y se encolan juntos, para que salgan en una
+ * sola escritura. Los buzones viven en memoria y son de este nodo.
+ */
+final class Mailboxes {
+
+    /** Prefijo de la clave de los buzones en el diario */
+    static final String KEY_PREFIX = "@";
+
+    /** Buzones como mucho, para que /msg a nombres inventados no llene la memoria */
+    private static final int MAX_MAILBOXES = 10_000;
+
+    private static final long[] EMPTY = new long[0];
+
+    /**
+     * Anillo de offsets del diario y horas de llegada
+     */
+    private static final class Mailbox {
+        long[] offsets = new long[4];
+        long[] times = new long[4];
+        int head;
+        int size;
+
+        /**
+         * @return true si ha descartado el más antiguo para hacer hueco
+         */
+        boolean add(long offset, long time, int max) {
+            boolean full = size == max;
+            if (full) {
+                head = (head + 1) % offsets.length;
+                size--;
+            } else if (size == offsets.length) {
+                grow(Math.min(max, offsets.length * 2));
+            }
+            int tail = (head + size) % offsets.length;
+            offsets[tail] = offset;
+            times[tail] = time;
+            size++;
+            return full;
+        }
+
+        /**
+         * Quitar los anteriores a un instante
+         * @return cuántos se han quitado
+         */
+        int expire(long minTime) {
+            int expired = 0;
+            while (size > 0 && times[head] < minTime) {
+                head = (head + 1) % offsets.length;
+                size--;
+                expired++;
+            }
+            return expired;
+        }
+
+        long[] toArray() {
+            long[] result = new long[size];
+            for (int i = 0; i < size; i++) {
+                result[i] = offsets[(head + i) % offsets.length];
+            }
+            return result;
+        }
+
+        private void grow(int capacity) {
+            long[] newOffsets = new long[capacity];
+            long[] newTimes = new long[capacity];
+            for (int i = 0; i < size; i++) {
+                newOffsets[i] = offsets[(head + i) % offsets.length];
+                newTimes[i] = times[(head + i) % offsets.length];
+            }
+            offsets = newOffsets;
+            times = newTimes;
+            head = 0;
+        }
+    }
+
+    private final Map<String, Mailbox> boxes = new HashMap<>();
+    private final int maxMessages;
+    private final long maxAgeMs;
+    private final ServerMetrics metrics;
+    private long pending = 0;
+
+    Mailboxes(int maxMessages, long maxAgeMs, ServerMetrics metrics) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxAgeMs = maxAgeMs;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Clave en el diario del buzón de un nombre
+     */
+    static String keyOf(String name) {
+        return KEY_PREFIX + ClientRegistry.normalize(name);
+    }
+
+    static boolean isMailboxKey(String room) {
+        return room.startsWith(KEY_PREFIX);
+    }
+
+    /**
+     * ¿Se admite un mensaje más para este nombre? (falso si habría que crear
+     * un buzón y ya hay demasiados)
+     */
+    synchronized boolean canAccept(String name) {
+        return boxes.size() < MAX_MAILBOXES || boxes.containsKey(keyOf(name));
+    }
+
+    /**
+     * Anotar un mensaje ya escrito en el diario
+     * @return mensajes en el buzón
+     */
+    synchronized int add(String name, long offset, long now) {
+        Mailbox box = boxes.computeIfAbsent(keyOf(name), key -> new Mailbox());
+        int expired = box.expire(now - maxAgeMs);
+        pending -= expired;
+        metrics.mailboxDropped.add(expired);
+        if (box.add(offset, now, maxMessages)) {
+            metrics.mailboxDropped.increment();
+        } else {
+            pending++;
+        }
+        metrics.mailboxQueued.increment();
+        return box.size;
+    }
+
+    /**
+     * Sacar todo el buzón de un nombre
+     * @return offsets en el diario, de más antiguo a más reciente (vacío si no hay nada)
+     */
+    synchronized long[] take(String name, long now) {
+        Mailbox box = boxes.remove(keyOf(name));
+        if (box == null) {
+            return EMPTY;
+        }
+        int expired = box.expire(now - maxAgeMs);
+        metrics.mailboxDropped.add(expired);
+        pending -= box.size + expired;
+        return box.toArray();
+    }
+
+    /**
+     * Quitar los mensajes caducados y los buzones que se quedan vacíos (lo
+     * llama un temporizador)
+     */
+    synchronized void expire(long now) {
+        Iterator<Mailbox> it = boxes.values().iterator();
+        while (it.hasNext()) {
+            Mailbox box = it.next();
+            int expired = box.expire(now - maxAgeMs);
+            pending -= expired;
+            metrics.mailboxDropped.add(expired);
+            if (box.size == 0) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return boxes.size();
+    }
+
+    synchronized long pending() {
+        return pending;
+    }
+
+    int getMaxMessages() {
+        return maxMessages;
+    }
+
+    long getMaxAgeMs() {
+        return maxAgeMs;
+    }
+}
@@ -0,0 +1,321 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handler no bloqueante para un cliente conectado (modo NIO).
+ *
+ * Todo el acceso al canal ocurre en el hilo de eventos que tiene asignado.
+ * Los mensajes que otros hilos envían se dejan en la cola de salida y el
+ * hilo de eventos los escribe cuando el canal admite datos, sin bloquear
+ * nunca al emisor.
+ */
+class NioClientHandler extends ClientHandler {
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final String ipAddress;
+
+    private SelectionKey key;
+
+    // Lector de tramas con buffers del pool (solo hilo de eventos)
+    private final FrameReader reader;
+
+    /** Máximo de tramas por escritura con gathering (una sola llamada al sistema) */
+    private static final int MAX_GATHER = 64;
+
+    // Tramas en curso de escritura (solo hilo de eventos)
+    private final Frame[] drained = new Frame[MAX_GATHER];
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private int gatherOffset = 0;
+    private int gatherCount = 0;
+
+    // Versión en la que se escriben las tramas salientes (solo hilo de eventos)
+    private int outboundVersion = Protocol.VERSION_LEGACY;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // Ventana de agrupación: última escritura y retención en curso
+    private long lastWriteNanos;
+    private long holdStartNanos;
+    private volatile boolean holding = false;
+    private final AtomicBoolean closing = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    public NioClientHandler(SocketChannel channel, NioServer.EventLoop loop, ServidorChat servidor) {
+        super(servidor);
+        this.channel = channel;
+        this.loop = loop;
+        String ip;
+        try {
+            ip = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        } catch (IOException e) {
+            ip = "desconocida";
+        }
+        this.ipAddress = ip;
+        this.reader = servidor.newFrameReader();
+    }
+
+    /**
+     * Registrar el canal en el selector (se ejecuta en el hilo de eventos)
+     */
+    void open() {
+        try {
+            key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+            connected = true;
+
+            // Enviar mensaje de bienvenida
+            sendMessage("[SYSTEM]Bienvenido al Centro de Control de CityCare");
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al registrar canal: {}", e.getMessage());
+            closeNow();
+        }
+    }
+
+    NioServer.EventLoop loop() {
+        return loop;
+    }
+
+    /**
+     * Leer todas las tramas completas disponibles en el canal
+     */
+    void onReadable() {
+        if (closed.get()) {
+            return;
+        }
+        int read;
+        try {
+            read = reader.readFrom(channel);
+        } catch (IOException e) {
+            if (connected) {
+                servidor.getMetrics().handlerErrors.increment();
+                ServerLog.warn("[!] Error con cliente {}: {}", clientName, e.getMessage());
+            }
+            closeNow();
+            return;
+        }
+        if (read < 0) {
+            closeNow();
+            return;
+        }
+
+        try {
+            // Despachar las tramas completas en la versión negociada
+            InboundFrame frame;
+            while (connected && (frame = reader.next(protocolVersion)) != null) {
+                dispatch(frame);
+            }
+            flushAck();
+        } catch (IOException e) {
+            servidor.getMetrics().handlerErrors.increment();
+            ServerLog.warn("[!] Trama inválida de {}: {}", getClientName(), e.getMessage());
+            closeNow();
+            return;
+        }
+        if (!closed.get()) {
+            reader.compact();
+        }
+    }
+
+    /**
+     * El canal vuelve a admitir datos: continuar con las escrituras pendientes
+     */
+    void onWritable() {
+        flush();
+    }
+
+    @Override
+    protected void onQueued() {
+        if (holding && outbound.pendingBytes() < servidor.getCoalesceBytes() && !outbound.hasUrgent()) {
+            // La ventana de agrupación ya tiene programado el volcado
+            return;
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(this::flush, outbound.hasUrgent());
+        }
+    }
+
+    /**
+     * Volcar la cola de salida al canal sin bloquear
+     */
+    private void flush() {
+        flushScheduled.set(false);
+        if (closed.get()) {
+            return;
+        }
+        if (holding) {
+            holding = false;
+            servidor.getMetrics().coalesceNanos.record(System.nanoTime() - holdStartNanos);
+        } else if (gatherCount == 0 && startHold()) {
+            return;
+        }
+
+        ServerMetrics metrics = servidor.getMetrics();
+        try {
+            while (true) {
+                if (gatherCount == 0 && !fillGather()) {
+                    break;
+                }
+
+                // Escritura con gathering: varias tramas en una sola llamada
+                metrics.framesPerWrite.record(gatherCount);
+                metrics.socketWrites.increment();
+                channel.write(gather, gatherOffset, gatherCount);
+                lastWriteNanos = System.nanoTime();
+                while (gatherCount > 0 && !gather[gatherOffset].hasRemaining()) {
+                    gather[gatherOffset++] = null;
+                    gatherCount--;
+                }
+                if (gatherCount > 0) {
+                    // El socket no admite más datos por ahora
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            servidor.getMetrics().handlerErrors.increment();
+            ServerLog.error("[!] Error al enviar mensaje a {}: {}", clientName, e.getMessage());
+            closeNow();
+            return;
+        }
+
+        if (gatherCount == 0 && closing.get() && outbound.isEmpty()) {
+            // Desconexión pedida y cola vacía: ya se puede cerrar
+            closeNow();
+            return;
+        }
+
+        // Esperar a OP_WRITE solo mientras quede algo por escribir
+        if (key != null && key.isValid()) {
+            int ops = gatherCount == 0 ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+    }
+
+    /**
+     * Con tráfico intenso (la escritura anterior fue hace menos de una
+     * ventana) se retiene la cola hasta el final de la ventana, o hasta que
+     * junte los bytes máximos, para escribirla de una vez. Con tráfico
+     * ligero, o si espera un mensaje de sistema, no se retiene nada.
+     * @return true si se ha empezado a retener
+     */
+    private boolean startHold() {
+        long window = servidor.getCoalesceNanos();
+        if (window <= 0 || closing.get()) {
+            return false;
+        }
+        long now = System.nanoTime();
+        if (now - lastWriteNanos >= window || outbound.isEmpty()
+                || outbound.pendingBytes() >= servidor.getCoalesceBytes() || outbound.hasUrgent()) {
+            return false;
+        }
+        holdStartNanos = now;
+        holding = true;
+        servidor.schedule(this::scheduleFlush, window, TimeUnit.NANOSECONDS);
+        return true;
+    }
+
+    /**
+     * Sacar un lote de tramas de la cola de salida. Cada destinatario usa su
+     * propia vista de la trama compartida; los bytes no se copian.
+     * @return false si la cola está vacía
+     */
+    private boolean fillGather() {
+        int count = outbound.drainTo(drained, 0, MAX_GATHER);
+        int buffers = 0;
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            Frame frame = drained[i];
+            drained[i] = null;
+            try {
+                ByteBuffer buffer = frame.buffer(outboundVersion);
+                bytes += buffer.remaining();
+                gather[buffers++] = buffer;
+            } catch (UTFDataFormatException e) {
+                servidor.getMetrics().handlerErrors.increment();
+                ServerLog.error("[!] Mensaje no enviado a {}: {}", clientName, e.getMessage());
+            }
+            if (frame.switchesToBinary()) {
+                outboundVersion = Protocol.VERSION_BINARY;
+            }
+        }
+        gatherOffset = 0;
+        gatherCount = buffers;
+        if (buffers > 0) {
+            ServerMetrics metrics = servidor.getMetrics();
+            metrics.messagesOut.add(buffers);
+            metrics.bytesOut.add(bytes);
+        }
+        return count > 0;
+    }
+
+    /**
+     * Desconectar cliente. La cola de salida se intenta vaciar antes de cerrar,
+     * como mucho durante LINGER_MS.
+     */
+    @Override
+    public void disconnect() {
+        connected = false;
+        if (!closing.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.close();
+        servidor.removeClient(this);
+        // Lo último que recibe (el motivo de un /kick) no espera detrás del chat de otros
+        loop.execute(this::flush, true);
+        servidor.schedule(() -> loop.execute(this::closeNow), ServidorChat.LINGER_MS);
+    }
+
+    @Override
+    protected void abort() {
+        connected = false;
+        closing.set(true);
+        outbound.clear();
+        if (loop.inEventLoop()) {
+            closeNow();
+        } else {
+            loop.execute(this::closeNow);
+        }
+    }
+
+    /**
+     * Cerrar el canal inmediatamente (solo desde el hilo de eventos)
+     */
+    void closeNow() {
+        connected = false;
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al cerrar conexión: {}", e.getMessage());
+        }
+        outbound.clear();
+        reader.release();
+        gatherOffset = 0;
+        gatherCount = 0;
+
+        loop.clients.remove(this);
+        servidor.removeClient(this);
+    }
+
+    @Override
+    public String getIpAddress() {
+        return ipAddress;
+    }
+}
@@ -0,0 +1,398 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servidor no bloqueante basado en ServerSocketChannel y Selector.
+ *
+ * Uno o varios hilos aceptadores reciben las conexiones y las reparten
+ * (round-robin) entre un número fijo de hilos de eventos. Con varios
+ * aceptadores, si el sistema admite SO_REUSEPORT cada uno escucha en su
+ * propio canal y el kernel reparte las conexiones entre ellos; si no,
+ * comparten el canal. Cada cliente queda asignado a un único hilo de
+ * eventos durante toda su vida, que es el único que toca su canal.
+ * Usa el mismo framing writeUTF que el modo de un hilo por cliente.
+ */
+class NioServer {
+
+    private final int port;
+    private final ServidorChat servidor;
+    private final EventLoop[] loops;
+    private final Acceptor[] acceptors;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    private volatile boolean running = false;
+
+    public NioServer(int port, int acceptors, int ioLoops, ServidorChat servidor) {
+        this.port = port;
+        this.servidor = servidor;
+        this.loops = new EventLoop[Math.max(1, ioLoops)];
+        this.acceptors = new Acceptor[Math.max(1, acceptors)];
+    }
+
+    /**
+     * Abrir los canales de escucha y arrancar los hilos de eventos
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop("nio-loop-" + i, i);
+            loops[i].start();
+        }
+
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = acceptors.length > 1
+            && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        if (reusePort) {
+            first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        first.bind(new InetSocketAddress(port));
+        int boundPort = first.socket().getLocalPort();
+
+        for (int i = 0; i < acceptors.length; i++) {
+            ServerSocketChannel channel = first;
+            if (i > 0 && reusePort) {
+                channel = ServerSocketChannel.open();
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(new InetSocketAddress(boundPort));
+            }
+            acceptors[i] = new Acceptor("nio-accept-" + i, channel);
+        }
+
+        running = true;
+        for (Acceptor acceptor : acceptors) {
+            acceptor.start();
+        }
+    }
+
+    /**
+     * Hilo aceptador: espera conexiones en su selector y las asigna a un hilo
+     * de eventos
+     */
+    private class Acceptor extends Thread {
+
+        private final ServerSocketChannel channel;
+        private final Selector selector;
+
+        Acceptor(String name, ServerSocketChannel channel) throws IOException {
+            super(name);
+            this.channel = channel;
+            this.selector = Selector.open();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    selector.selectedKeys().clear();
+
+                    // Aceptar todas las conexiones pendientes (con el canal
+                    // compartido, otro aceptador puede haberse llevado alguna)
+                    SocketChannel accepted;
+                    while ((accepted = channel.accept()) != null) {
+                        register(accepted);
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (IOException e) {
+                    if (running) {
+                        ServerLog.error("[!] Error al aceptar conexión: {}", e.getMessage());
+                    }
+                }
+            }
+        }
+
+        void close() throws IOException {
+            selector.close();
+            channel.close();
+        }
+    }
+
+    private void register(SocketChannel channel) throws IOException {
+        if (!servidor.admitConnection()) {
+            // Aviso en una sola escritura (cabe en el buffer del socket recién abierto) y cierre
+            try (SocketChannel rejected = channel) {
+                rejected.write(ByteBuffer.wrap(servidor.overloadFrame()));
+                rejected.shutdownOutput();
+            }
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        if (servidor.getHeartbeats() != null) {
+            servidor.getHeartbeats().keepAlive(channel);
+        }
+
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+
+        NioClientHandler handler = new NioClientHandler(channel, loop, servidor);
+        ServerLog.info("[+] Nueva conexión desde: {}", handler.getIpAddress());
+        servidor.addClient(handler);
+        loop.clients.add(handler);
+        loop.execute(handler::open);
+    }
+
+    /**
+     * Encolar una trama a todos los clientes (menos al emisor). Cada hilo de
+     * eventos recibe una sola tarea por su cola y la reparte entre sus
+     * propios clientes; done se ejecuta cuando han terminado todos. Las
+     * tramas de sistema van por la cola urgente y adelantan al chat.
+     */
+    void fanOutAll(Frame frame, ClientHandler sender, Runnable done) {
+        AtomicInteger pending = new AtomicInteger(loops.length);
+        boolean urgent = frame.messageClass() == OutboundQueue.MessageClass.SYSTEM;
+        for (EventLoop loop : loops) {
+            loop.deliver(() -> {
+                loop.sendToAll(frame, sender);
+                if (pending.decrementAndGet() == 0) {
+                    done.run();
+                }
+            }, urgent);
+        }
+    }
+
+    /**
+     * Encolar una trama a unos clientes concretos (menos al emisor): se
+     * agrupan por hilo de eventos y cada grupo se entrega en una sola tarea
+     */
+    void fanOut(ClientHandler[] targets, Frame frame, ClientHandler sender, Runnable done) {
+        int[] counts = new int[loops.length];
+        for (ClientHandler target : targets) {
+            if (target != sender) {
+                counts[((NioClientHandler) target).loop().index]++;
+            }
+        }
+        ClientHandler[][] groups = new ClientHandler[loops.length][];
+        int nonEmpty = 0;
+        for (int i = 0; i < loops.length; i++) {
+            groups[i] = new ClientHandler[counts[i]];
+            if (counts[i] > 0) {
+                nonEmpty++;
+            }
+            counts[i] = 0;
+        }
+        if (nonEmpty == 0) {
+            done.run();
+            return;
+        }
+        for (ClientHandler target : targets) {
+            if (target != sender) {
+                int index = ((NioClientHandler) target).loop().index;
+                groups[index][counts[index]++] = target;
+            }
+        }
+        AtomicInteger pending = new AtomicInteger(nonEmpty);
+        boolean urgent = frame.messageClass() == OutboundQueue.MessageClass.SYSTEM;
+        for (int i = 0; i < loops.length; i++) {
+            ClientHandler[] group = groups[i];
+            if (group.length > 0) {
+                loops[i].deliver(() -> {
+                    for (ClientHandler target : group) {
+                        target.sendFrame(frame);
+                    }
+                    if (pending.decrementAndGet() == 0) {
+                        done.run();
+                    }
+                }, urgent);
+            }
+        }
+    }
+
+    /**
+     * Puerto en el que escucha (útil si se pidió el 0)
+     */
+    public int getLocalPort() {
+        return acceptors[0].channel.socket().getLocalPort();
+    }
+
+    int getAcceptorCount() {
+        return acceptors.length;
+    }
+
+    /**
+     * Clientes asignados a cada hilo de eventos
+     */
+    int[] loopSizes() {
+        int[] sizes = new int[loops.length];
+        for (int i = 0; i < loops.length; i++) {
+            sizes[i] = loops[i].clients.size();
+        }
+        return sizes;
+    }
+
+    /**
+     * Cerrar los canales de escucha y detener los hilos de eventos
+     */
+    public void close() throws IOException {
+        running = false;
+        for (Acceptor acceptor : acceptors) {
+            if (acceptor != null) {
+                acceptor.close();
+            }
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Hilo de eventos: un Selector propio más una cola de tareas que otros
+     * hilos usan para pedirle trabajo (registrar canales, escribir, cerrar).
+     * Las tareas urgentes (repartos de sistema) tienen su propia cola, que se
+     * atiende antes, salvo una tarea normal tras cada URGENT_BURST urgentes.
+     */
+    static class EventLoop extends Thread {
+
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> urgentTasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+        private volatile boolean running = true;
+
+        /** Posición en el grupo de hilos de eventos */
+        final int index;
+
+        /** Clientes asignados a este hilo */
+        final ClientSet clients = new ClientSet();
+
+        EventLoop(String name, int index) throws IOException {
+            super(name);
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        Selector selector() {
+            return selector;
+        }
+
+        boolean inEventLoop() {
+            return Thread.currentThread() == this;
+        }
+
+        /**
+         * Encolar una tarea para ejecutarla en este hilo de eventos
+         */
+        void execute(Runnable task) {
+            execute(task, false);
+        }
+
+        /**
+         * Encolar una tarea, en la cola urgente si urgent
+         */
+        void execute(Runnable task, boolean urgent) {
+            (urgent ? urgentTasks : tasks).add(task);
+            if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Ejecutar un reparto: en el momento si ya se está en este hilo, si
+         * no por su cola
+         */
+        void deliver(Runnable task, boolean urgent) {
+            if (inEventLoop()) {
+                task.run();
+            } else {
+                execute(task, urgent);
+            }
+        }
+
+        private void sendToAll(Frame frame, ClientHandler sender) {
+            for (ClientHandler client : clients.snapshot()) {
+                if (client != sender) {
+                    client.sendFrame(frame);
+                }
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    wakeupPending.set(false);
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        NioClientHandler handler = (NioClientHandler) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            handler.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.onWritable();
+                        }
+                    }
+
+                    runTasks();
+                } catch (IOException | ClosedSelectorException e) {
+                    if (running) {
+                        ServerLog.error("[!] Error en {}: {}", getName(), e.getMessage());
+                    }
+                }
+            }
+
+            // Cerrar los canales que sigan registrados
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                ((NioClientHandler) key.attachment()).closeNow();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                ServerLog.error("[!] Error al cerrar selector: {}", e.getMessage());
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            int urgentStreak = 0;
+            while (true) {
+                // Urgentes primero; tras URGENT_BURST seguidas, una normal si la hay
+                task = urgentStreak < OutboundQueue.URGENT_BURST ? urgentTasks.poll() : null;
+                if (task != null) {
+                    urgentStreak++;
+                } else {
+                    task = tasks.poll();
+                    urgentStreak = 0;
+                    if (task == null && (task = urgentTasks.poll()) == null) {
+                        break;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    ServerLog.error("[!] Error en tarea de {}: {}", getName(), e.getMessage());
+                }
+            }
+        }
+    }
+}
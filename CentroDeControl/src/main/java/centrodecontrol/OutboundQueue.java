@@ -0,0 +1,369 @@
+package centrodecontrol;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cola de salida acotada de un cliente.
+ *
+ * Quien envía (un broadcast, la consola...) solo encola y vuelve; el escritor
+ * propio de cada conexión vacía la cola hacia el socket. Así un cliente lento
+ * no frena al resto. Cuando la cola se llena se aplica la política de
+ * desbordamiento de la clase del mensaje entrante.
+ *
+ * Cada clase tiene su propio carril: los mensajes de sistema y control
+ * ([SYSTEM], avisos del administrador, alertas...) que no están en el diario
+ * salen antes que el chat que ya estuviera encolado. Para que una avalancha
+ * de avisos no deje sin salida al chat, tras URGENT_BURST mensajes de sistema
+ * seguidos pasa uno de chat.
+ */
+class OutboundQueue {
+
+    /**
+     * Clase de mensaje, según su opcode. Lo que está en el diario va siempre
+     * por el carril de chat: si adelantara a chat con offsets menores, un
+     * cliente que se reconecta con el último offset recibido se saltaría esos
+     * mensajes al reanudar.
+     */
+    enum MessageClass {
+        CHAT,
+        SYSTEM;
+
+        static MessageClass of(int opcode, boolean journaled) {
+            return !journaled && (opcode == Protocol.SYSTEM || opcode == Protocol.HELLO || opcode == Protocol.PING
+                || opcode == Protocol.SESSION || opcode == Protocol.ALERT || opcode == Protocol.ACK) ? SYSTEM : CHAT;
+        }
+    }
+
+    /**
+     * Qué hacer cuando llega un mensaje y la cola está llena
+     */
+    enum OverflowPolicy {
+        /** Descartar el mensaje descartable más antiguo (o el nuevo si no hay ninguno) */
+        DROP_OLDEST,
+        /** No descartar nunca: se hace hueco descartando chat o se supera el límite */
+        NEVER_DROP,
+        /** Desconectar al cliente */
+        DISCONNECT;
+
+        static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /** Mensajes de sistema seguidos antes de dejar pasar uno de chat */
+    static final int URGENT_BURST = 16;
+
+    /**
+     * Resultado de encolar un mensaje
+     */
+    enum Result {
+        QUEUED,
+        DROPPED,
+        DISCONNECT,
+        CLOSED
+    }
+
+    private final ArrayDeque<Frame> system = new ArrayDeque<>();
+    private final ArrayDeque<Frame> chat = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy chatPolicy;
+    private final OverflowPolicy systemPolicy;
+
+    // Métricas del servidor (puede ser null)
+    private final ServerMetrics metrics;
+
+    private boolean closed = false;
+    private long dropped = 0;
+
+    // Tamaño aproximado de lo encolado (Frame.sizeHint), para la ventana de agrupación
+    private long pendingBytes = 0;
+
+    // Hay alguien esperando hueco (reproducción del diario)
+    private boolean spaceWaiters = false;
+
+    // Mensajes de sistema sacados seguidos mientras esperaba chat
+    private int urgentStreak = 0;
+
+    // Trama de cada carril de la que se está midiendo el tiempo en cola (una a la vez) y cuándo entró
+    private Frame sampledSystem;
+    private long sampledSystemAt;
+    private Frame sampledChat;
+    private long sampledChatAt;
+
+    public OutboundQueue(int capacity, OverflowPolicy chatPolicy, OverflowPolicy systemPolicy) {
+        this(capacity, chatPolicy, systemPolicy, null);
+    }
+
+    public OutboundQueue(int capacity, OverflowPolicy chatPolicy, OverflowPolicy systemPolicy,
+                         ServerMetrics metrics) {
+        this.capacity = Math.max(1, capacity);
+        this.chatPolicy = chatPolicy;
+        this.systemPolicy = systemPolicy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Encolar un mensaje sin bloquear nunca al emisor
+     */
+    public synchronized Result offer(Frame frame) {
+        if (closed) {
+            return Result.CLOSED;
+        }
+
+        if (size() >= capacity) {
+            OverflowPolicy policy = policyFor(frame.messageClass());
+            switch (policy) {
+                case DISCONNECT:
+                    return Result.DISCONNECT;
+                case DROP_OLDEST:
+                    if (!dropOldestDroppable()) {
+                        countDrop();
+                        return Result.DROPPED;
+                    }
+                    break;
+                case NEVER_DROP:
+                    // Se hace hueco con chat; si no hay, se admite por encima del
+                    // límite hasta el doble de la capacidad
+                    if (!dropOldestDroppable() && size() >= capacity * 2) {
+                        return Result.DISCONNECT;
+                    }
+                    break;
+            }
+        }
+
+        pendingBytes += frame.sizeHint();
+        if (frame.messageClass() == MessageClass.SYSTEM) {
+            system.addLast(frame);
+            if (metrics != null && sampledSystem == null) {
+                sampledSystem = frame;
+                sampledSystemAt = System.nanoTime();
+            }
+        } else {
+            chat.addLast(frame);
+            if (metrics != null && sampledChat == null) {
+                sampledChat = frame;
+                sampledChatAt = System.nanoTime();
+            }
+        }
+        if (metrics != null) {
+            metrics.queueDepth.record(size());
+        }
+        notifyAll();
+        return Result.QUEUED;
+    }
+
+    /**
+     * Encolar varios mensajes de una vez: el escritor no puede sacar ninguno
+     * hasta que están todos, así que salen juntos
+     * @return QUEUED si ha entrado alguno
+     */
+    public synchronized Result offerAll(List<Frame> frames) {
+        Result result = Result.DROPPED;
+        for (Frame frame : frames) {
+            Result one = offer(frame);
+            if (one == Result.DISCONNECT || one == Result.CLOSED) {
+                return one;
+            }
+            if (one == Result.QUEUED) {
+                result = Result.QUEUED;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sacar el siguiente mensaje sin esperar
+     * @return null si la cola está vacía
+     */
+    public synchronized Frame poll() {
+        Frame frame = removeFirst();
+        signalSpace();
+        return frame;
+    }
+
+    /**
+     * Sacar el siguiente mensaje esperando como mucho timeoutNanos
+     * @return null si no llega ninguno a tiempo o la cola se ha cerrado vacía
+     */
+    public synchronized Frame poll(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (isEmpty() && !closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        Frame frame = removeFirst();
+        signalSpace();
+        return frame;
+    }
+
+    /**
+     * Sacar hasta max mensajes de una vez, sin esperar
+     * @return cuántos se han copiado en dst a partir de offset
+     */
+    public synchronized int drainTo(Frame[] dst, int offset, int max) {
+        int count = 0;
+        Frame frame;
+        while (count < max && (frame = removeFirst()) != null) {
+            dst[offset + count++] = frame;
+        }
+        signalSpace();
+        return count;
+    }
+
+    /**
+     * Sacar el siguiente mensaje esperando si la cola está vacía
+     * @return null si la cola se ha cerrado y ya no quedan mensajes
+     */
+    public synchronized Frame take() throws InterruptedException {
+        while (isEmpty()) {
+            if (closed) {
+                return null;
+            }
+            wait();
+        }
+        Frame frame = removeFirst();
+        signalSpace();
+        return frame;
+    }
+
+    /**
+     * Esperar a que la cola baje de un nivel antes de encolar más. Lo usa
+     * quien genera muchos mensajes para un solo cliente (p. ej. [REPLAY]),
+     * para no desbordar la cola y perderlos.
+     * @return false si la cola se ha cerrado
+     */
+    public synchronized boolean awaitBelow(int level) throws InterruptedException {
+        while (!closed && size() >= level) {
+            spaceWaiters = true;
+            wait();
+        }
+        return !closed;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * No admitir más mensajes; los ya encolados se pueden seguir sacando
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Cerrar y descartar todo lo pendiente
+     */
+    public synchronized void clear() {
+        closed = true;
+        system.clear();
+        chat.clear();
+        pendingBytes = 0;
+        sampledSystem = null;
+        sampledChat = null;
+        notifyAll();
+    }
+
+    public synchronized boolean isEmpty() {
+        return system.isEmpty() && chat.isEmpty();
+    }
+
+    public synchronized int size() {
+        return system.size() + chat.size();
+    }
+
+    /**
+     * ¿Hay algún mensaje de sistema esperando? (no merece la pena retenerlo
+     * en la ventana de agrupación)
+     */
+    public synchronized boolean hasUrgent() {
+        return !system.isEmpty();
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Bytes aproximados pendientes de escribir
+     */
+    public synchronized long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * Siguiente mensaje: primero el carril de sistema, salvo cada
+     * URGENT_BURST seguidos si hay chat esperando
+     */
+    private Frame removeFirst() {
+        Frame frame;
+        if (!system.isEmpty() && (chat.isEmpty() || urgentStreak < URGENT_BURST)) {
+            frame = system.pollFirst();
+            urgentStreak = chat.isEmpty() ? 0 : urgentStreak + 1;
+            if (frame == sampledSystem) {
+                sampledSystem = null;
+                metrics.recordQueueDelay(MessageClass.SYSTEM, System.nanoTime() - sampledSystemAt);
+            }
+        } else {
+            frame = chat.pollFirst();
+            urgentStreak = 0;
+            if (frame != null && frame == sampledChat) {
+                sampledChat = null;
+                metrics.recordQueueDelay(MessageClass.CHAT, System.nanoTime() - sampledChatAt);
+            }
+        }
+        if (frame != null) {
+            pendingBytes -= frame.sizeHint();
+        }
+        return frame;
+    }
+
+    private void signalSpace() {
+        if (spaceWaiters) {
+            spaceWaiters = false;
+            notifyAll();
+        }
+    }
+
+    private void countDrop() {
+        dropped++;
+        if (metrics != null) {
+            metrics.framesDropped.increment();
+        }
+    }
+
+    private OverflowPolicy policyFor(MessageClass messageClass) {
+        return messageClass == MessageClass.SYSTEM ? systemPolicy : chatPolicy;
+    }
+
+    /**
+     * Descartar el mensaje más antiguo de un carril cuya clase admite
+     * descarte (antes el chat que el de sistema)
+     */
+    private boolean dropOldestDroppable() {
+        Frame queued = null;
+        if (chatPolicy == OverflowPolicy.DROP_OLDEST && !chat.isEmpty()) {
+            queued = chat.pollFirst();
+            if (queued == sampledChat) {
+                sampledChat = null;
+            }
+        } else if (systemPolicy == OverflowPolicy.DROP_OLDEST && !system.isEmpty()) {
+            queued = system.pollFirst();
+            if (queued == sampledSystem) {
+                sampledSystem = null;
+            }
+        }
+        if (queued == null) {
+            return false;
+        }
+        pendingBytes -= queued.sizeHint();
+        countDrop();
+        return true;
+    }
+}
@@ -0,0 +1,370 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Definición del protocolo del chat.
+ *
+ * Versión 1 (legacy): cadenas con prefijo ("[LOGIN]ana", "[MSG]hola") enviadas
+ * con writeUTF. Versión 2 (binaria): tramas
+ *
+ *   [longitud: int32][opcode: 1 byte][flags: 1 byte][offset: int64 si FLAG_OFFSET]
+ *   [longitud cuerpo: varint][cuerpo UTF-8]
+ *
+ * donde la longitud cuenta todos los bytes que la siguen. Un cliente nuevo
+ * pide la v2 enviando "[HELLO]2" como primera trama legacy; si el servidor la
+ * admite responde "[HELLO]2" y a partir de ahí ambos lados usan tramas
+ * binarias. Un servidor o cliente antiguo simplemente sigue en v1.
+ */
+final class Protocol {
+
+    static final int VERSION_LEGACY = 1;
+    static final int VERSION_BINARY = 2;
+
+    // Opcodes (comunes a ambas versiones)
+    static final int TEXT = 0;
+    static final int LOGIN = 1;
+    static final int MSG = 2;
+    static final int LOGOUT = 3;
+    static final int SYSTEM = 4;
+    static final int HELLO = 5;
+    static final int JOIN = 6;
+    static final int LEAVE = 7;
+    static final int REPLAY = 8;
+    static final int PING = 9;
+    static final int PONG = 10;
+    static final int RESUME = 11;
+    static final int SESSION = 12;
+    static final int SUBSCRIBE = 13;
+    static final int ALERT = 14;
+    static final int SEQ = 15;
+    static final int ACK = 16;
+    static final int AGENT = 17;
+    static final int SUPPORT = 18;
+    static final int RESOLVE = 19;
+
+    static final int FLAGS_NONE = 0;
+
+    /** La trama lleva tras los flags el offset del mensaje en el diario (int64) */
+    static final int FLAG_OFFSET = 0x01;
+
+    /** Cabecera fija de una trama v2: longitud + opcode + flags */
+    static final int HEADER_SIZE = 4 + 1 + 1;
+
+    private static final String[] PREFIXES = new String[256];
+    private static final byte[][] PREFIX_BYTES = new byte[256][];
+
+    // Opcodes con prefijo, para buscarlos sin crear Strings
+    private static final int[] DEFINED;
+
+    static {
+        define(LOGIN, "[LOGIN]");
+        define(MSG, "[MSG]");
+        define(LOGOUT, "[LOGOUT]");
+        define(SYSTEM, "[SYSTEM]");
+        define(HELLO, "[HELLO]");
+        define(JOIN, "[JOIN]");
+        define(LEAVE, "[LEAVE]");
+        define(REPLAY, "[REPLAY]");
+        define(PING, "[PING]");
+        define(PONG, "[PONG]");
+        define(RESUME, "[RESUME]");
+        define(SESSION, "[SESSION]");
+        define(SUBSCRIBE, "[SUBSCRIBE]");
+        define(ALERT, "[ALERT]");
+        define(SEQ, "[SEQ]");
+        define(ACK, "[ACK]");
+        define(AGENT, "[AGENT]");
+        define(SUPPORT, "[SUPPORT]");
+        define(RESOLVE, "[RESOLVE]");
+        DEFINED = IntStream.range(0, PREFIXES.length).filter(opcode -> PREFIXES[opcode] != null).toArray();
+    }
+
+    private Protocol() {
+    }
+
+    private static void define(int opcode, String prefix) {
+        PREFIXES[opcode] = prefix;
+        PREFIX_BYTES[opcode] = prefix.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Opcode de un mensaje legacy según su prefijo (TEXT si no tiene uno conocido)
+     */
+    static int opcodeOf(String message) {
+        if (message.isEmpty() || message.charAt(0) != '[') {
+            return TEXT;
+        }
+        for (int opcode : DEFINED) {
+            if (message.startsWith(PREFIXES[opcode])) {
+                return opcode;
+            }
+        }
+        return TEXT;
+    }
+
+    /**
+     * Opcode de un mensaje legacy recibido, comparando el prefijo directamente
+     * sobre los bytes (los prefijos son ASCII), sin crear ningún String
+     */
+    static int opcodeOf(byte[] data, int offset, int length) {
+        if (length == 0 || data[offset] != '[') {
+            return TEXT;
+        }
+        for (int opcode : DEFINED) {
+            byte[] prefix = PREFIX_BYTES[opcode];
+            if (prefix.length <= length && Arrays.equals(data, offset, offset + prefix.length,
+                    prefix, 0, prefix.length)) {
+                return opcode;
+            }
+        }
+        return TEXT;
+    }
+
+    /**
+     * Bytes del prefijo de un opcode (0 para TEXT)
+     */
+    static int prefixLength(int opcode) {
+        byte[] prefix = PREFIX_BYTES[opcode & 0xFF];
+        return prefix != null ? prefix.length : 0;
+    }
+
+    /**
+     * Cuerpo de un mensaje legacy (sin el prefijo del opcode)
+     */
+    static String bodyOf(String message, int opcode) {
+        String prefix = PREFIXES[opcode & 0xFF];
+        return prefix != null ? message.substring(prefix.length()) : message;
+    }
+
+    /**
+     * Representación legacy de un opcode y su cuerpo
+     */
+    static String toLegacy(int opcode, String body) {
+        String prefix = PREFIXES[opcode & 0xFF];
+        return prefix != null ? prefix + body : body;
+    }
+
+    /**
+     * Codificar una trama v2 completa
+     */
+    static byte[] encodeBinary(int opcode, int flags, String body) {
+        return encodeBinary(opcode, flags & ~FLAG_OFFSET, -1, body);
+    }
+
+    /**
+     * Codificar una trama v2 completa; con FLAG_OFFSET incluye el offset
+     */
+    static byte[] encodeBinary(int opcode, int flags, long offset, String body) {
+        byte[] payload = body.getBytes(StandardCharsets.UTF_8);
+        int offsetSize = (flags & FLAG_OFFSET) != 0 ? 8 : 0;
+        int length = 2 + offsetSize + varintSize(payload.length) + payload.length;
+
+        byte[] frame = new byte[4 + length];
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        frame[4] = (byte) opcode;
+        frame[5] = (byte) flags;
+        int pos = HEADER_SIZE;
+        if (offsetSize != 0) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                frame[pos++] = (byte) (offset >>> shift);
+            }
+        }
+        pos = writeVarint(frame, pos, payload.length);
+        System.arraycopy(payload, 0, frame, pos, payload.length);
+        return frame;
+    }
+
+    /**
+     * Decodificar el contenido de una trama v2 (lo que sigue a la longitud)
+     */
+    static Decoded decodeBinary(byte[] data, int offset, int length) throws IOException {
+        InboundFrame frame = new InboundFrame();
+        parseBinary(data, offset, length, frame);
+        return new Decoded(frame.opcode(), frame.flags(), frame.body());
+    }
+
+    /**
+     * Leer la cabecera de una trama v2 (lo que sigue a la longitud) y dejar
+     * en frame una vista de su cuerpo, sin copiarlo
+     */
+    static void parseBinary(byte[] data, int offset, int length, InboundFrame frame) throws IOException {
+        if (length < 3) {
+            throw new IOException("Trama binaria demasiado corta");
+        }
+        int opcode = data[offset] & 0xFF;
+        int flags = data[offset + 1] & 0xFF;
+
+        int pos = offset + 2;
+        int end = offset + length;
+        if ((flags & FLAG_OFFSET) != 0) {
+            // Offset del diario: solo tiene sentido del servidor al cliente
+            pos += 8;
+        }
+        int bodyLength = 0;
+        int shift = 0;
+        while (true) {
+            if (pos >= end || shift > 28) {
+                throw new IOException("Longitud varint inválida");
+            }
+            byte b = data[pos++];
+            bodyLength |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        if (bodyLength < 0 || bodyLength > end - pos) {
+            throw new IOException("Longitud de cuerpo inválida: " + bodyLength);
+        }
+        frame.set(opcode, flags, data, pos, bodyLength, false);
+    }
+
+    /**
+     * Dejar en frame una vista de un mensaje writeUTF (sin los 2 bytes de
+     * longitud): el opcode sale del prefijo y el cuerpo es lo que le sigue
+     */
+    static void parseLegacy(byte[] data, int offset, int length, InboundFrame frame) {
+        int opcode = opcodeOf(data, offset, length);
+        int prefix = prefixLength(opcode);
+        frame.set(opcode, FLAGS_NONE, data, offset + prefix, length - prefix, true);
+    }
+
+    static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Escribir un varint sin signo
+     * @return la posición siguiente al último byte escrito
+     */
+    static int writeVarint(byte[] dst, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            dst[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+    /**
+     * Codificación equivalente a DataOutputStream.writeUTF, sin streams intermedios
+     */
+    static byte[] encodeUTF(String str) throws UTFDataFormatException {
+        int strlen = str.length();
+        int utflen = strlen;
+        for (int i = 0; i < strlen; i++) {
+            char c = str.charAt(i);
+            if (c >= 0x80 || c == 0) {
+                utflen += (c >= 0x800) ? 2 : 1;
+            }
+        }
+        if (utflen > 65535) {
+            throw new UTFDataFormatException("Mensaje demasiado largo: " + utflen + " bytes");
+        }
+
+        byte[] bytes = new byte[utflen + 2];
+        bytes[0] = (byte) (utflen >>> 8);
+        bytes[1] = (byte) utflen;
+        int count = 2;
+        for (int i = 0; i < strlen; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80 && c != 0) {
+                bytes[count++] = (byte) c;
+            } else if (c >= 0x800) {
+                bytes[count++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+                bytes[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[count++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                bytes[count++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+                bytes[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Si todos los bytes son ASCII (texto que no necesita decodificarse)
+     */
+    static boolean isAscii(byte[] data, int offset, int length) {
+        for (int i = offset, end = offset + length; i < end; i++) {
+            if (data[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodificación equivalente a DataInputStream.readUTF (sin los 2 bytes de
+     * longitud) usando chars como espacio de trabajo, que debe tener al menos
+     * length posiciones
+     */
+    static String decodeUTF(byte[] data, int offset, int length, char[] chars) throws UTFDataFormatException {
+        int count = 0;
+        int pos = offset;
+        int end = offset + length;
+        while (pos < end) {
+            int c = data[pos] & 0xFF;
+            switch (c >> 4) {
+                case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+                    pos++;
+                    chars[count++] = (char) c;
+                    break;
+                case 12: case 13:
+                    if (pos + 2 > end) {
+                        throw new UTFDataFormatException("Entrada incompleta en el byte " + (pos - offset));
+                    }
+                    int b2 = data[pos + 1];
+                    if ((b2 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("Entrada mal formada en el byte " + (pos - offset));
+                    }
+                    chars[count++] = (char) (((c & 0x1F) << 6) | (b2 & 0x3F));
+                    pos += 2;
+                    break;
+                case 14:
+                    if (pos + 3 > end) {
+                        throw new UTFDataFormatException("Entrada incompleta en el byte " + (pos - offset));
+                    }
+                    int c2 = data[pos + 1];
+                    int c3 = data[pos + 2];
+                    if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException("Entrada mal formada en el byte " + (pos - offset));
+                    }
+                    chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+                    pos += 3;
+                    break;
+                default:
+                    throw new UTFDataFormatException("Entrada mal formada en el byte " + (pos - offset));
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Trama v2 decodificada
+     */
+    static final class Decoded {
+        final int opcode;
+        final int flags;
+        final String body;
+
+        Decoded(int opcode, int flags, String body) {
+            this.opcode = opcode;
+            this.flags = flags;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package centrodecontrol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limitación del tráfico entrante de un cliente con cubos de tokens.
+ *
+ * Cada grupo de comandos tiene un ritmo sostenido (tokens por segundo) y una
+ * ráfaga máxima. Cada trama gasta un token de su cubo y, si está vacío, se
+ * rechaza antes de procesarla, así que un cliente no puede multiplicar su
+ * tráfico a través de los reenvíos a la sala. Solo la usa el hilo lector de
+ * la conexión, por eso no necesita sincronización.
+ */
+class RateLimiter {
+
+    /** Ventana en la que se cuentan los rechazos de un cliente para expulsarlo */
+    static final long STRIKE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    /**
+     * Ritmo sostenido y ráfaga de un grupo de comandos
+     */
+    static final class Limit {
+        final double perSecond;
+        final double burst;
+
+        Limit(double perSecond, double burst) {
+            if (perSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("ritmo o ráfaga no válidos");
+            }
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        /**
+         * "RITMO[:RÁFAGA]" en tramas por segundo; sin ráfaga se usa el doble del ritmo
+         */
+        static Limit parse(String value) {
+            int colon = value.indexOf(':');
+            double perSecond = Double.parseDouble(colon < 0 ? value : value.substring(0, colon));
+            double burst = colon < 0 ? Math.max(1, perSecond * 2) : Double.parseDouble(value.substring(colon + 1));
+            return new Limit(perSecond, burst);
+        }
+
+        @Override
+        public String toString() {
+            return perSecond + "/s (ráfaga " + (long) burst + ")";
+        }
+    }
+
+    /**
+     * Configuración compartida por todos los clientes: qué cubo usa cada
+     * opcode y cuántos rechazos se toleran antes de expulsar
+     */
+    static final class Policy {
+        private final byte[] bucketOf = new byte[256];
+        private final List<Limit> limits = new ArrayList<>();
+        private int kickAfter = 0;
+
+        Policy() {
+            Arrays.fill(bucketOf, (byte) -1);
+        }
+
+        /**
+         * Límites por defecto: chat, cambios de sala (y de zona de alertas),
+         * historial, alertas y latidos (cada [PING] obliga a responder)
+         */
+        static Policy defaults() {
+            return new Policy()
+                .limit(new Limit(20, 40), Protocol.MSG, Protocol.TEXT, Protocol.SEQ, Protocol.SUPPORT, Protocol.RESOLVE)
+                .limit(new Limit(1, 5), Protocol.JOIN, Protocol.LEAVE, Protocol.SUBSCRIBE)
+                .limit(new Limit(0.2, 2), Protocol.REPLAY)
+                .limit(new Limit(0.1, 3), Protocol.ALERT)
+                .limit(new Limit(1, 5), Protocol.PING)
+                .kickAfter(50);
+        }
+
+        /**
+         * Aplicar un límite a un grupo de opcodes, que comparten cubo
+         * (null para dejarlos sin límite)
+         */
+        Policy limit(Limit limit, int... opcodes) {
+            int bucket = -1;
+            if (limit != null) {
+                bucket = limits.size();
+                limits.add(limit);
+            }
+            for (int opcode : opcodes) {
+                bucketOf[opcode & 0xFF] = (byte) bucket;
+            }
+            return this;
+        }
+
+        /**
+         * Expulsar al cliente tras este número de rechazos en STRIKE_WINDOW_NANOS (0 = nunca)
+         */
+        Policy kickAfter(int rejections) {
+            this.kickAfter = Math.max(0, rejections);
+            return this;
+        }
+
+        Limit limitFor(int opcode) {
+            int bucket = bucketOf[opcode & 0xFF];
+            return bucket < 0 ? null : limits.get(bucket);
+        }
+
+        int getKickAfter() {
+            return kickAfter;
+        }
+    }
+
+    private final Policy policy;
+    private final double[] tokens;
+    private final long[] refilledAt;
+
+    private long windowStart;
+    private int strikes = 0;
+
+    RateLimiter(Policy policy, long now) {
+        this.policy = policy;
+        int buckets = policy.limits.size();
+        this.tokens = new double[buckets];
+        this.refilledAt = new long[buckets];
+        for (int i = 0; i < buckets; i++) {
+            tokens[i] = policy.limits.get(i).burst;
+            refilledAt[i] = now;
+        }
+        this.windowStart = now;
+    }
+
+    /**
+     * Gastar un token del cubo del opcode
+     * @return false si el cubo está vacío y la trama debe rechazarse
+     */
+    boolean tryAcquire(int opcode, long now) {
+        int bucket = policy.bucketOf[opcode & 0xFF];
+        if (bucket < 0) {
+            return true;
+        }
+        Limit limit = policy.limits.get(bucket);
+        double available = Math.min(limit.burst,
+            tokens[bucket] + (now - refilledAt[bucket]) * limit.perSecond / 1e9);
+        refilledAt[bucket] = now;
+        if (available < 1) {
+            tokens[bucket] = available;
+            return false;
+        }
+        tokens[bucket] = available - 1;
+        return true;
+    }
+
+    /**
+     * Anotar un rechazo
+     * @return rechazos en la ventana actual, contando este
+     */
+    int strike(long now) {
+        if (now - windowStart > STRIKE_WINDOW_NANOS) {
+            windowStart = now;
+            strikes = 0;
+        }
+        return ++strikes;
+    }
+
+    /**
+     * Si con esos rechazos hay que expulsar al cliente
+     */
+    boolean shouldKick(int strikes) {
+        return policy.kickAfter > 0 && strikes >= policy.kickAfter;
+    }
+}
@@ -0,0 +1,33 @@
+package centrodecontrol;
+
+/**
+ * Sala de chat: un conjunto de clientes que reciben los mensajes de la sala.
+ * Enviar un mensaje a una sala cuesta O(miembros de la sala).
+ */
+class Room {
+
+    private final String name;
+    private final String key;
+    private final ClientSet members = new ClientSet();
+
+    Room(String name) {
+        this.name = name;
+        this.key = ClientRegistry.normalize(name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    String key() {
+        return key;
+    }
+
+    ClientSet members() {
+        return members;
+    }
+
+    public int size() {
+        return members.size();
+    }
+}
@@ -0,0 +1,65 @@
+package centrodecontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Índice sala → miembros.
+ *
+ * Las salas se crean al entrar el primer cliente y se eliminan cuando sale el
+ * último, salvo el lobby, donde están todos los clientes que no se han unido
+ * a ninguna otra sala. Altas y bajas son atómicas por sala.
+ */
+class RoomRegistry {
+
+    static final String LOBBY = "lobby";
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final Room lobby;
+
+    RoomRegistry() {
+        lobby = new Room(LOBBY);
+        rooms.put(lobby.key(), lobby);
+    }
+
+    public Room lobby() {
+        return lobby;
+    }
+
+    public Room find(String name) {
+        return rooms.get(ClientRegistry.normalize(name));
+    }
+
+    /**
+     * Añadir un cliente a una sala, creándola si no existe
+     */
+    public Room join(String name, ClientHandler client) {
+        return rooms.compute(ClientRegistry.normalize(name), (key, room) -> {
+            if (room == null) {
+                room = new Room(name.trim());
+            }
+            room.members().add(client);
+            return room;
+        });
+    }
+
+    /**
+     * Sacar a un cliente de una sala; si queda vacía (y no es el lobby) se elimina
+     */
+    public void leave(Room room, ClientHandler client) {
+        rooms.computeIfPresent(room.key(), (key, current) -> {
+            current.members().remove(client);
+            return current.members().isEmpty() && current != lobby ? null : current;
+        });
+    }
+
+    /**
+     * Salas actuales, ordenadas por nombre
+     */
+    public List<Room> all() {
+        List<Room> list = new ArrayList<>(rooms.values());
+        list.sort((a, b) -> a.getName().compareToIgnoreCase(b.getName()));
+        return list;
+    }
+}
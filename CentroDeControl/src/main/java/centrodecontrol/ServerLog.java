@@ -0,0 +1,402 @@
+package centrodecontrol;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Registro asíncrono del servidor.
+ *
+ * Los hilos del camino caliente (lectores, hilos de eventos, temporizadores)
+ * no escriben en la consola: publican el evento en un buffer circular
+ * preasignado, con la plantilla y hasta tres argumentos sin formatear, y
+ * siguen. Un único hilo consumidor formatea los eventos y los escribe en la
+ * consola y, si se configura, en ficheros rotativos. Si el buffer se llena
+ * se aplica la política de desbordamiento: descartar el evento (contándolo)
+ * o esperar a que haya hueco.
+ *
+ * En las plantillas cada {} se sustituye por el siguiente argumento. La
+ * salida interactiva de la consola de administración no pasa por aquí.
+ */
+final class ServerLog {
+
+    /**
+     * Nivel de un evento
+     */
+    enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR;
+
+        static Level parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Qué hacer cuando el buffer está lleno
+     */
+    enum OverflowPolicy {
+        /** Descartar el evento nuevo: quien registra nunca espera */
+        DROP,
+        /** Esperar a que el consumidor haga hueco: no se pierde nada */
+        BLOCK;
+
+        static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    static final int DEFAULT_CAPACITY = 8192;
+
+    /** Espera máxima del consumidor sin eventos, por si se pierde un aviso */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final DateTimeFormatter TIMESTAMP =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile ServerLog instance = new ServerLog(DEFAULT_CAPACITY, Level.INFO, OverflowPolicy.DROP);
+
+    /**
+     * Hueco del buffer. Se reutiliza: sequence indica qué evento contiene y
+     * su escritura (volátil) publica el resto de campos al consumidor.
+     */
+    private static final class Slot {
+        volatile long sequence = -1;
+        Level level;
+        long timestamp;
+        String template;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final Level level;
+    private final OverflowPolicy overflow;
+
+    // Siguiente secuencia a reservar (productores) y a consumir (consumidor)
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed = 0;
+
+    // Hasta dónde está escrito y volcado a disco
+    private volatile long flushed = 0;
+
+    private final LongAdder dropped = new LongAdder();
+    private final Thread consumer;
+    private volatile boolean consumerWaiting = false;
+    private volatile boolean closed = false;
+    private volatile RotatingFile file;
+
+    private ServerLog(int capacity, Level level, OverflowPolicy overflow) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.level = level;
+        this.overflow = overflow;
+        this.consumer = new Thread(this::consume, "registro");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    static {
+        // Lo que quede en el buffer al salir
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> instance.drain(2000), "registro-cierre"));
+    }
+
+    /**
+     * Sustituir el registro por uno nuevo (al arrancar, antes de registrar
+     * nada). Lo pendiente en el anterior se escribe primero.
+     * @param logFile fichero de registro, o null para usar solo la consola
+     */
+    static void configure(int capacity, Level level, OverflowPolicy overflow,
+                          Path logFile, long maxFileBytes, int maxFiles) {
+        ServerLog log = new ServerLog(capacity, level, overflow);
+        if (logFile != null) {
+            try {
+                log.file = new RotatingFile(logFile, maxFileBytes, maxFiles);
+            } catch (IOException e) {
+                System.err.println("[!] No se pudo abrir el fichero de registro: " + e.getMessage());
+            }
+        }
+        ServerLog previous = instance;
+        instance = log;
+        previous.drain(2000);
+        previous.close();
+    }
+
+    static void debug(String template) { instance.publish(Level.DEBUG, template, null, null, null); }
+    static void debug(String template, Object a) { instance.publish(Level.DEBUG, template, a, null, null); }
+    static void debug(String template, Object a, Object b) { instance.publish(Level.DEBUG, template, a, b, null); }
+    static void debug(String template, Object a, Object b, Object c) { instance.publish(Level.DEBUG, template, a, b, c); }
+
+    static void info(String template) { instance.publish(Level.INFO, template, null, null, null); }
+    static void info(String template, Object a) { instance.publish(Level.INFO, template, a, null, null); }
+    static void info(String template, Object a, Object b) { instance.publish(Level.INFO, template, a, b, null); }
+    static void info(String template, Object a, Object b, Object c) { instance.publish(Level.INFO, template, a, b, c); }
+
+    static void warn(String template) { instance.publish(Level.WARN, template, null, null, null); }
+    static void warn(String template, Object a) { instance.publish(Level.WARN, template, a, null, null); }
+    static void warn(String template, Object a, Object b) { instance.publish(Level.WARN, template, a, b, null); }
+    static void warn(String template, Object a, Object b, Object c) { instance.publish(Level.WARN, template, a, b, c); }
+
+    static void error(String template) { instance.publish(Level.ERROR, template, null, null, null); }
+    static void error(String template, Object a) { instance.publish(Level.ERROR, template, a, null, null); }
+    static void error(String template, Object a, Object b) { instance.publish(Level.ERROR, template, a, b, null); }
+    static void error(String template, Object a, Object b, Object c) { instance.publish(Level.ERROR, template, a, b, c); }
+
+    /**
+     * Esperar a que todo lo registrado hasta ahora esté escrito
+     */
+    static void flush() {
+        instance.drain(2000);
+    }
+
+    /**
+     * Eventos descartados por tener el buffer lleno
+     */
+    static long getDropped() {
+        return instance.dropped.sum();
+    }
+
+    /**
+     * Eventos en el buffer pendientes de escribir
+     */
+    static long getPending() {
+        ServerLog log = instance;
+        return Math.max(0, log.claimed.get() - log.consumed);
+    }
+
+    private void publish(Level eventLevel, String template, Object a, Object b, Object c) {
+        if (eventLevel.ordinal() < level.ordinal()) {
+            return;
+        }
+
+        long sequence;
+        while (true) {
+            sequence = claimed.get();
+            if (sequence - consumed >= slots.length) {
+                if (overflow == OverflowPolicy.DROP || Thread.currentThread() == consumer) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(consumer);
+                LockSupport.parkNanos(10_000);
+                continue;
+            }
+            if (claimed.compareAndSet(sequence, sequence + 1)) {
+                break;
+            }
+        }
+
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.level = eventLevel;
+        slot.timestamp = System.currentTimeMillis();
+        slot.template = template;
+        slot.arg0 = a;
+        slot.arg1 = b;
+        slot.arg2 = c;
+        slot.sequence = sequence;
+
+        if (consumerWaiting) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Bucle del consumidor: formatear y escribir en orden de secuencia. Los
+     * ficheros se vuelcan a disco cada vez que el buffer se queda vacío.
+     */
+    private void consume() {
+        StringBuilder line = new StringBuilder(256);
+        long next = 0;
+        while (true) {
+            Slot slot = slots[(int) (next & mask)];
+            if (slot.sequence != next) {
+                if (flushed != next) {
+                    flushFile();
+                    flushed = next;
+                }
+                if (closed) {
+                    break;
+                }
+                consumerWaiting = true;
+                if (slot.sequence != next) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                consumerWaiting = false;
+                continue;
+            }
+
+            line.setLength(0);
+            format(line, slot.template, slot.arg0, slot.arg1, slot.arg2);
+            write(slot.level, slot.timestamp, line);
+
+            slot.template = null;
+            slot.arg0 = null;
+            slot.arg1 = null;
+            slot.arg2 = null;
+            consumed = ++next;
+        }
+
+        RotatingFile out = file;
+        if (out != null) {
+            out.close();
+        }
+    }
+
+    /**
+     * Parar el consumidor cuando haya vaciado el buffer
+     */
+    private void close() {
+        closed = true;
+        LockSupport.unpark(consumer);
+    }
+
+    private void write(Level eventLevel, long timestamp, CharSequence message) {
+        PrintStream console = eventLevel.ordinal() >= Level.WARN.ordinal() ? System.err : System.out;
+        console.println(message);
+
+        RotatingFile out = file;
+        if (out != null) {
+            try {
+                out.write(TIMESTAMP.format(Instant.ofEpochMilli(timestamp)) + " " + eventLevel + " " + message);
+            } catch (IOException e) {
+                System.err.println("[!] Error al escribir el registro, se desactiva el fichero: " + e.getMessage());
+                file = null;
+                out.close();
+            }
+        }
+    }
+
+    private void flushFile() {
+        RotatingFile out = file;
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("[!] Error al volcar el registro: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Esperar como mucho timeoutMs a que el consumidor escriba y vuelque
+     * todo lo publicado hasta ahora
+     */
+    private void drain(long timeoutMs) {
+        long target = claimed.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (flushed < target && System.nanoTime() < deadline && Thread.currentThread() != consumer) {
+            LockSupport.unpark(consumer);
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    /**
+     * Sustituir cada {} de la plantilla por el siguiente argumento
+     */
+    static void format(StringBuilder out, String template, Object a, Object b, Object c) {
+        int argument = 0;
+        int from = 0;
+        int at;
+        while (argument < 3 && (at = template.indexOf("{}", from)) >= 0) {
+            out.append(template, from, at);
+            out.append(argument == 0 ? a : argument == 1 ? b : c);
+            argument++;
+            from = at + 2;
+        }
+        out.append(template, from, template.length());
+    }
+
+    /**
+     * Fichero de registro que rota al superar un tamaño: servidor.log pasa a
+     * servidor.log.1, este a .2, y así hasta conservar maxFiles ficheros
+     * contando el actual. Solo lo usa el consumidor.
+     */
+    private static final class RotatingFile {
+        private final Path path;
+        private final long maxBytes;
+        private final int maxFiles;
+        private BufferedWriter writer;
+        private long size;
+
+        RotatingFile(Path path, long maxBytes, int maxFiles) throws IOException {
+            this.path = path;
+            this.maxBytes = Math.max(1024, maxBytes);
+            this.maxFiles = Math.max(1, maxFiles);
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            open();
+        }
+
+        private void open() throws IOException {
+            size = Files.exists(path) ? Files.size(path) : 0;
+            writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND),
+                StandardCharsets.UTF_8), 64 * 1024);
+        }
+
+        /**
+         * Escribir una línea (el tamaño se cuenta en caracteres, como aproximación)
+         */
+        void write(String line) throws IOException {
+            if (size > 0 && size + line.length() + 1 > maxBytes) {
+                rotate();
+            }
+            writer.write(line);
+            writer.newLine();
+            size += line.length() + 1;
+        }
+
+        void flush() throws IOException {
+            writer.flush();
+        }
+
+        private void rotate() throws IOException {
+            writer.close();
+            if (maxFiles == 1) {
+                Files.delete(path);
+                open();
+                return;
+            }
+            // El más antiguo (.maxFiles-1) se sobrescribe
+            for (int i = maxFiles - 2; i >= 1; i--) {
+                Path older = Path.of(path + "." + i);
+                if (Files.exists(older)) {
+                    Files.move(older, Path.of(path + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(path, Path.of(path + ".1"), StandardCopyOption.REPLACE_EXISTING);
+            open();
+        }
+
+        void close() {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // Ya se ha avisado del error que lo desactiva
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package centrodecontrol;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Métricas del servidor: contadores e histogramas que se actualizan desde
+ * cualquier hilo sin bloqueos. Los contadores son LongAdder (celdas repartidas
+ * entre hilos que solo se suman al consultarlos) y los histogramas son
+ * LatencyHistogram, así que medir no frena el camino que se mide.
+ *
+ * Se consultan con /stats y en formato de texto de Prometheus (MetricsEndpoint).
+ */
+class ServerMetrics {
+
+    private static final String PREFIX = "centrodecontrol_";
+
+    final LongAdder connectionsOpened = new LongAdder();
+    final LongAdder connectionsClosed = new LongAdder();
+    final LongAdder loginsAccepted = new LongAdder();
+    final LongAdder loginsRejected = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder framesDropped = new LongAdder();
+    final LongAdder handlerErrors = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+    final LongAdder rateLimitKicks = new LongAdder();
+    final LongAdder sessionsResumed = new LongAdder();
+    final LongAdder sessionsRejected = new LongAdder();
+    final LongAdder framesOversized = new LongAdder();
+    final LongAdder alertsPublished = new LongAdder();
+    final LongAdder alertsDelivered = new LongAdder();
+    final LongAdder connectionsShed = new LongAdder();
+    final LongAdder loginsShed = new LongAdder();
+    final LongAdder broadcastsShed = new LongAdder();
+    final LongAdder duplicatesDropped = new LongAdder();
+    final LongAdder supportAssigned = new LongAdder();
+    final LongAdder mailboxQueued = new LongAdder();
+    final LongAdder mailboxDelivered = new LongAdder();
+    final LongAdder mailboxDropped = new LongAdder();
+
+    /** Escrituras al socket: cada una es una llamada al sistema y puede llevar varias tramas */
+    final LongAdder socketWrites = new LongAdder();
+
+    /** Tiempo de reparto de un broadcast o mensaje de sala a sus destinatarios (ns) */
+    final LatencyHistogram broadcastNanos = new LatencyHistogram();
+
+    /** Tramas en la cola de salida de un cliente justo después de encolar una */
+    final LatencyHistogram queueDepth = new LatencyHistogram();
+
+    /** Tramas que lleva cada escritura al socket */
+    final LatencyHistogram framesPerWrite = new LatencyHistogram();
+
+    /** Tiempo que la ventana de agrupación retiene las tramas antes de escribirlas (ns) */
+    final LatencyHistogram coalesceNanos = new LatencyHistogram();
+
+    /** Tiempo de buscar en la rejilla y encolar una alerta a sus suscriptores cercanos (ns) */
+    final LatencyHistogram alertMatchNanos = new LatencyHistogram();
+
+    /** Tiempo que pasa una trama de sistema o control en la cola de salida, muestreado (ns) */
+    final LatencyHistogram systemQueueDelayNanos = new LatencyHistogram();
+
+    /** Tiempo que pasa una trama de chat en la cola de salida, muestreado (ns) */
+    final LatencyHistogram chatQueueDelayNanos = new LatencyHistogram();
+
+    /** Las muestras de los dos carriles, solo las de la ventana actual del control de admisión (que la vacía) */
+    final LatencyHistogram queueDelayWindow = new LatencyHistogram();
+
+    /** Tiempo que espera una conversación de soporte en cola hasta que la atiende un agente (ns) */
+    final LatencyHistogram supportWaitNanos = new LatencyHistogram();
+
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * Valor que no se acumula, sino que se lee en el momento de consultar
+     */
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    void recordQueueDelay(OutboundQueue.MessageClass lane, long nanos) {
+        (lane == OutboundQueue.MessageClass.SYSTEM ? systemQueueDelayNanos : chatQueueDelayNanos).record(nanos);
+        queueDelayWindow.record(nanos);
+    }
+
+    /**
+     * Registrar un valor instantáneo (clientes conectados, salas...)
+     */
+    void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    /**
+     * Todas las métricas en el formato de texto de Prometheus (versión 0.0.4)
+     */
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "connections_opened_total", "Conexiones aceptadas", connectionsOpened);
+        counter(out, "connections_closed_total", "Conexiones cerradas", connectionsClosed);
+        counter(out, "logins_accepted_total", "Inicios de sesión aceptados", loginsAccepted);
+        counter(out, "logins_rejected_total", "Inicios de sesión rechazados", loginsRejected);
+        counter(out, "messages_in_total", "Tramas recibidas de los clientes", messagesIn);
+        counter(out, "messages_out_total", "Tramas entregadas al socket", messagesOut);
+        counter(out, "bytes_in_total", "Bytes leídos de los clientes", bytesIn);
+        counter(out, "bytes_out_total", "Bytes escritos a los clientes", bytesOut);
+        counter(out, "frames_dropped_total", "Tramas descartadas por colas de salida llenas", framesDropped);
+        counter(out, "handler_errors_total", "Errores al leer, procesar o enviar tramas", handlerErrors);
+        counter(out, "rate_limited_total", "Tramas rechazadas por el limitador de tráfico", rateLimited);
+        counter(out, "rate_limit_kicks_total", "Clientes expulsados por exceso de tráfico", rateLimitKicks);
+        counter(out, "frames_oversized_total", "Tramas rechazadas por superar el tamaño máximo", framesOversized);
+        counter(out, "alerts_published_total", "Alertas de incidencias publicadas en este nodo", alertsPublished);
+        counter(out, "alerts_delivered_total", "Alertas entregadas a suscriptores de este nodo", alertsDelivered);
+        counter(out, "connections_shed_total", "Conexiones rechazadas por el control de admisión", connectionsShed);
+        counter(out, "logins_shed_total", "Logins rechazados con el servidor saturado", loginsShed);
+        counter(out, "broadcasts_shed_total", "Mensajes de chat rechazados por el límite de repartos en curso", broadcastsShed);
+        counter(out, "duplicates_dropped_total", "[SEQ] ya procesados que un cliente reenvió al reconectar", duplicatesDropped);
+        counter(out, "support_assigned_total", "Conversaciones de soporte asignadas a un agente", supportAssigned);
+        counter(out, "mailbox_queued_total", "Mensajes guardados en el buzón de un cliente desconectado", mailboxQueued);
+        counter(out, "mailbox_delivered_total", "Mensajes de buzón entregados al volver a conectarse", mailboxDelivered);
+        counter(out, "mailbox_dropped_total", "Mensajes de buzón descartados por buzón lleno o caducados", mailboxDropped);
+        counter(out, "socket_writes_total", "Escrituras al socket de los clientes", socketWrites);
+        counter(out, "sessions_resumed_total", "Sesiones reanudadas con [RESUME]", sessionsResumed);
+        counter(out, "sessions_rejected_total", "[RESUME] rechazados por token caducado o no válido", sessionsRejected);
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name, gauge.help, "gauge");
+            out.append(PREFIX).append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        summary(out, "broadcast_seconds", "Tiempo de reparto de un mensaje a sus destinatarios",
+            broadcastNanos, 1e-9);
+        summary(out, "outbound_queue_depth", "Tramas en la cola de salida al encolar",
+            queueDepth, 1);
+        summary(out, "frames_per_write", "Tramas agrupadas en cada escritura al socket",
+            framesPerWrite, 1);
+        summary(out, "coalesce_delay_seconds", "Retención de las tramas en la ventana de agrupación",
+            coalesceNanos, 1e-9);
+        summary(out, "alert_match_seconds", "Búsqueda de los suscriptores cercanos de una alerta",
+            alertMatchNanos, 1e-9);
+        summary(out, "outbound_queue_delay_system_seconds",
+            "Tiempo de las tramas de sistema en la cola de salida (muestreado)", systemQueueDelayNanos, 1e-9);
+        summary(out, "outbound_queue_delay_chat_seconds",
+            "Tiempo de las tramas de chat en la cola de salida (muestreado)", chatQueueDelayNanos, 1e-9);
+        summary(out, "support_wait_seconds", "Espera en cola de las conversaciones de soporte",
+            supportWaitNanos, 1e-9);
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, LongAdder value) {
+        header(out, name, help, "counter");
+        out.append(PREFIX).append(name).append(' ').append(value.sum()).append('\n');
+    }
+
+    /**
+     * Un histograma como summary: percentiles más _sum y _count
+     */
+    private static void summary(StringBuilder out, String name, String help,
+                                LatencyHistogram histogram, double scale) {
+        header(out, name, help, "summary");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            out.append(PREFIX).append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                .append(histogram.percentile(quantile * 100) * scale).append('\n');
+        }
+        out.append(PREFIX).append(name).append("_sum ").append(histogram.sum() * scale).append('\n');
+        out.append(PREFIX).append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+}
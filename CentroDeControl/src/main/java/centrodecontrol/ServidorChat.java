@@ -0,0 +1,1850 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Centro de Control - Servidor de Chat TCP
+ * 
+ * Aplicación de escritorio que actúa como servidor para el chat de soporte.
+ * Recibe conexiones de clientes Android y permite la comunicación bidireccional.
+ * 
+ * Objetivo Académico: Demostrar manejo de ServerSocket, sockets cliente,
+ * DataInputStream, DataOutputStream y gestión de hilos concurrentes.
+ */
+public class ServidorChat {
+    
+    private static final int DEFAULT_PORT = 5555;
+    private static final String VERSION = "1.0";
+    
+    /** Tiempo máximo para vaciar la cola de salida de un cliente al desconectarlo */
+    static final long LINGER_MS = 2000;
+    
+    /**
+     * Modo de ejecución de las conexiones
+     */
+    public enum Mode {
+        /** Un hilo bloqueante por cliente (comportamiento original) */
+        THREADS,
+        /** Selector NIO con un número fijo de hilos de eventos */
+        NIO,
+        /** Un hilo virtual por cliente, supervisado con concurrencia estructurada */
+        VIRTUAL
+    }
+    
+    private ServerSocket serverSocket;
+    private NioServer nioServer;
+    private ConnectionScope connectionScope;
+    private int port;
+    private Mode mode;
+    private int ioLoops;
+    private int acceptors = 1;
+    private boolean running = false;
+    
+    // Colas de salida por cliente
+    private int outboundCapacity = 256;
+    private OutboundQueue.OverflowPolicy chatOverflow = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private OutboundQueue.OverflowPolicy systemOverflow = OutboundQueue.OverflowPolicy.NEVER_DROP;
+    
+    // Tamaño máximo de una trama entrante de cada versión del protocolo
+    private int maxFrameSize = 1024 * 1024;
+    private int maxLegacyFrameSize = 65535;
+    
+    /** Tamaño del buffer de lectura de cada conexión; las tramas mayores usan uno grande */
+    static final int READ_BUFFER_SIZE = 8 * 1024;
+    
+    // Buffers de lectura reutilizables: normales y para tramas grandes
+    private final BufferPool readBuffers = new BufferPool(READ_BUFFER_SIZE, 4096);
+    private volatile BufferPool largeReadBuffers = largeBufferPool();
+    
+    // Ventana de agrupación de tramas salientes (0: cada trama en su propia escritura)
+    private long coalesceNanos = 0;
+    private int coalesceBytes = 16 * 1024;
+    
+    // Temporizadores de cierre diferido
+    private final ScheduledExecutorService timers;
+    
+    // Registro de clientes conectados
+    final ClientRegistry clients;
+    
+    // Salas de chat y sus miembros
+    private final RoomRegistry rooms = new RoomRegistry();
+    
+    // Latidos e inactividad (null si están desactivados)
+    private long heartbeatMs = 15000;
+    private long idleTimeoutMs = 45000;
+    private HeartbeatMonitor heartbeats;
+    
+    // Diario de mensajes enrutados (null si está desactivado)
+    private ChatJournal journal;
+    private final ExecutorService replayExecutor;
+    
+    // Métricas y su endpoint HTTP local (puerto 0: desactivado)
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int metricsPort = 0;
+    private MetricsEndpoint metricsEndpoint;
+    
+    // Límites del tráfico entrante de cada cliente (null: sin límites)
+    private RateLimiter.Policy rateLimits;
+    
+    // Bus con los demás nodos del clúster (null: nodo independiente)
+    private ClusterBus cluster;
+    
+    // Sesiones reanudables (null: desactivadas)
+    private SessionStore sessions;
+    
+    // Suscripciones a alertas de incidencias, indexadas por zona
+    private GeoGrid alerts = new GeoGrid(2000, 10000);
+    
+    // Control de admisión adaptativo (null: sin límites) y aviso de fin de cada reparto
+    private AdmissionControl admission;
+    private Runnable broadcastDone = () -> { };
+    
+    // Mesa de soporte que reparte a los ciudadanos entre los agentes (null: desactivada)
+    private SupportDesk supportDesk;
+    
+    // Buzones de los clientes desconectados, guardados en el diario (null: desactivados)
+    private Mailboxes mailboxes;
+    
+    /** Hora de llegada que se antepone a los mensajes del buzón */
+    private static final DateTimeFormatter MAILBOX_TIME =
+        DateTimeFormatter.ofPattern("dd/MM HH:mm").withZone(ZoneId.systemDefault());
+    
+    /** Cada cuánto se guardan las sesiones en disco */
+    private static final long SESSION_SAVE_MS = 5000;
+    
+    /** Cada cuánto se quitan los mensajes caducados de los buzones */
+    private static final long MAILBOX_EXPIRE_MS = 60_000;
+    
+    public ServidorChat(int port) {
+        this(port, Mode.THREADS, 0);
+    }
+    
+    public ServidorChat(int port, Mode mode, int ioLoops) {
+        this.port = port;
+        this.mode = mode;
+        this.ioLoops = ioLoops > 0 ? ioLoops : Runtime.getRuntime().availableProcessors();
+        this.clients = new ClientRegistry();
+        this.timers = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "temporizadores");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.replayExecutor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "diario-replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        metrics.gauge("clients_connected", "Clientes conectados", () -> clients.size());
+        metrics.gauge("rooms", "Salas abiertas", () -> rooms.all().size());
+        metrics.gauge("outbound_queued", "Tramas pendientes en todas las colas de salida", () -> {
+            long queued = 0;
+            for (ClientHandler client : clients.snapshot()) {
+                queued += client.getOutboundSize();
+            }
+            return queued;
+        });
+        metrics.gauge("idle_evictions", "Conexiones expulsadas por inactividad",
+            () -> heartbeats != null ? heartbeats.getEvicted() : 0);
+        metrics.gauge("journal_next_offset", "Siguiente offset del diario",
+            () -> journal != null ? journal.nextOffset() : 0);
+        metrics.gauge("log_pending", "Eventos del registro pendientes de escribir", ServerLog::getPending);
+        metrics.gauge("log_dropped", "Eventos del registro descartados con el buffer lleno", ServerLog::getDropped);
+        metrics.gauge("read_buffers_allocated", "Buffers de lectura creados (los reutilizados no cuentan)",
+            () -> readBuffers.allocated() + largeReadBuffers.allocated());
+        metrics.gauge("alert_subscriptions", "Clientes suscritos a alertas de incidencias", () -> alerts.size());
+        metrics.gauge("admission_connection_limit", "Límite adaptativo de conexiones",
+            () -> admission != null ? admission.getConnectionLimit() : 0);
+        metrics.gauge("admission_broadcast_limit", "Límite adaptativo de repartos en curso",
+            () -> admission != null ? admission.getBroadcastLimit() : 0);
+        metrics.gauge("broadcasts_in_flight", "Repartos en curso",
+            () -> admission != null ? admission.getInFlight() : 0);
+        metrics.gauge("admission_saturated", "1 mientras el servidor rechaza logins nuevos por saturación",
+            () -> admission != null && admission.isSaturated() ? 1 : 0);
+        metrics.gauge("support_agents", "Agentes de soporte conectados",
+            () -> supportDesk != null ? supportDesk.agentCount() : 0);
+        metrics.gauge("support_conversations", "Conversaciones de soporte abiertas (asignadas o en cola)",
+            () -> supportDesk != null ? supportDesk.conversationCount() : 0);
+        metrics.gauge("support_queued", "Conversaciones esperando a un agente",
+            () -> supportDesk != null ? supportDesk.queued() : 0);
+        metrics.gauge("mailbox_pending", "Mensajes esperando en los buzones de clientes desconectados",
+            () -> mailboxes != null ? mailboxes.pending() : 0);
+        metrics.gauge("sessions", "Sesiones reanudables guardadas",
+            () -> sessions != null ? sessions.size() : 0);
+        metrics.gauge("cluster_nodes", "Otros nodos del clúster conectados",
+            () -> cluster != null ? cluster.connectedNodes().size() : 0);
+        metrics.gauge("cluster_remote_clients", "Clientes conectados a otros nodos",
+            () -> cluster != null ? cluster.remoteClientCount() : 0);
+    }
+    
+    /**
+     * Número de hilos que aceptan conexiones. Se aplica en start().
+     */
+    public void setAcceptors(int acceptors) {
+        this.acceptors = Math.max(1, acceptors);
+    }
+    
+    /**
+     * Configurar los latidos: intervalo de [PING] y tiempo sin recibir nada
+     * tras el que se expulsa a una conexión (0 para desactivarlos)
+     */
+    public void setHeartbeat(long intervalMs, long idleTimeoutMs) {
+        this.heartbeatMs = intervalMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+    
+    HeartbeatMonitor getHeartbeats() {
+        return heartbeats;
+    }
+    
+    /**
+     * Puerto del endpoint de métricas en loopback (0 para desactivarlo). Se abre en start().
+     */
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+    
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Configurar los cubos de tokens de los clientes (null para no limitar).
+     * Se aplica a las conexiones que lleguen después.
+     */
+    void setRateLimits(RateLimiter.Policy rateLimits) {
+        this.rateLimits = rateLimits;
+    }
+    
+    RateLimiter.Policy getRateLimits() {
+        return rateLimits;
+    }
+    
+    /**
+     * Formar parte de un clúster: identificador único del nodo, puerto del bus,
+     * interfaz en la que escucha, clave compartida por todos los nodos, nodos
+     * a los que conectarse y espera máxima para agrupar mensajes en un lote.
+     * Se conecta en start().
+     */
+    public void setCluster(String nodeId, int busPort, InetAddress bindAddress, String secret,
+                           List<InetSocketAddress> peers, long batchMs) {
+        this.cluster = new ClusterBus(this, nodeId, busPort, bindAddress, secret, peers, batchMs);
+    }
+    
+    /**
+     * Configurar las sesiones reanudables (null para desactivarlas). Se cargan en start().
+     */
+    public void setSessions(SessionStore sessions) {
+        this.sessions = sessions;
+    }
+    
+    /**
+     * Configurar el control de admisión (null para no limitar). Se llama antes de start().
+     */
+    void setAdmission(AdmissionControl admission) {
+        this.admission = admission;
+        this.broadcastDone = admission != null ? admission::broadcastFinished : () -> { };
+    }
+    
+    /**
+     * Activar la mesa de soporte (null para desactivarla). Se llama antes de start().
+     */
+    void setSupportDesk(SupportDesk supportDesk) {
+        this.supportDesk = supportDesk;
+    }
+    
+    SupportDesk getSupportDesk() {
+        return supportDesk;
+    }
+    
+    /**
+     * Configurar los buzones de los desconectados (null para desactivarlos).
+     * Necesitan el diario. Se llama antes de start().
+     */
+    void setMailboxes(Mailboxes mailboxes) {
+        this.mailboxes = mailboxes;
+    }
+    
+    /**
+     * Un ciudadano sale de la mesa de soporte (con [LOGOUT] su conversación se cierra)
+     */
+    void leaveSupport(ClientHandler client, boolean loggedOut) {
+        if (supportDesk != null && !client.isAgent()) {
+            supportDesk.citizenLeft(client, loggedOut);
+        }
+    }
+    
+    /**
+     * ¿Se acepta una conexión nueva? Si no, hay que cerrarla con rejectConnection()
+     */
+    boolean admitConnection() {
+        return admission == null || admission.admitConnection(clients.size());
+    }
+    
+    /**
+     * ¿Se acepta un login nuevo o el servidor está saturado?
+     */
+    boolean admitLogin() {
+        return admission == null || admission.admitLogin();
+    }
+    
+    /**
+     * Aviso para quien se rechaza por saturación, con cuándo reintentar
+     */
+    String overloadMessage() {
+        int seconds = admission != null ? admission.retryAfterSeconds() : 1;
+        return "[SYSTEM]Error: Servidor saturado, reintenta en " + seconds + " s";
+    }
+    
+    /**
+     * Bytes v1 del aviso de saturación, para escribirlos directamente en una
+     * conexión rechazada al aceptarla (aún no tiene handler ni cola)
+     */
+    byte[] overloadFrame() {
+        try {
+            return Frame.of(overloadMessage()).bytes(Protocol.VERSION_LEGACY);
+        } catch (UTFDataFormatException e) {
+            return new byte[0];
+        }
+    }
+    
+    /**
+     * Configurar la rejilla de las alertas: lado de las celdas y radio máximo
+     * de suscripción, en metros. Se llama antes de start().
+     */
+    public void setAlertGrid(int cellMeters, int maxRadiusMeters) {
+        this.alerts = new GeoGrid(cellMeters, maxRadiusMeters);
+    }
+    
+    GeoGrid getAlerts() {
+        return alerts;
+    }
+    
+    /**
+     * Configurar el diario de mensajes (null para desactivarlo). Se abre en start().
+     */
+    public void setJournal(ChatJournal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Configurar las colas de salida de los clientes
+     */
+    public void setOutboundQueue(int capacity, OutboundQueue.OverflowPolicy chatPolicy,
+                                 OutboundQueue.OverflowPolicy systemPolicy) {
+        this.outboundCapacity = capacity;
+        this.chatOverflow = chatPolicy;
+        this.systemOverflow = systemPolicy;
+    }
+    
+    /**
+     * Limitar el tamaño de las tramas entrantes (v2 y v1; las v1 no pueden
+     * pasar de 65535 bytes). Las que lo superan se rechazan al leer su
+     * cabecera y se cierra la conexión.
+     */
+    public void setMaxFrameSize(int maxFrameSize, int maxLegacyFrameSize) {
+        this.maxFrameSize = Math.max(3, maxFrameSize);
+        this.maxLegacyFrameSize = Math.max(0, Math.min(maxLegacyFrameSize, 65535));
+        this.largeReadBuffers = largeBufferPool();
+    }
+    
+    /**
+     * Lector de tramas para una conexión nueva, con buffers de los pools
+     */
+    FrameReader newFrameReader() {
+        return new FrameReader(readBuffers, largeReadBuffers, maxLegacyFrameSize, maxFrameSize, metrics);
+    }
+    
+    private BufferPool largeBufferPool() {
+        return new BufferPool(Math.max(4 + maxFrameSize, 2 + maxLegacyFrameSize), 16);
+    }
+    
+    /**
+     * Agrupar las tramas salientes de cada conexión en una sola escritura:
+     * con tráfico intenso se retienen hasta windowMicros o hasta juntar
+     * maxBytes. Con tráfico ligero se escriben al momento (0 lo desactiva).
+     */
+    public void setCoalescing(long windowMicros, int maxBytes) {
+        this.coalesceNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+        this.coalesceBytes = Math.max(1, maxBytes);
+    }
+    
+    long getCoalesceNanos() {
+        return coalesceNanos;
+    }
+    
+    int getCoalesceBytes() {
+        return coalesceBytes;
+    }
+    
+    OutboundQueue newOutboundQueue() {
+        return new OutboundQueue(outboundCapacity, chatOverflow, systemOverflow, metrics);
+    }
+    
+    /**
+     * Ejecutar una tarea pasado un tiempo (en el hilo de temporizadores)
+     */
+    void schedule(Runnable task, long delayMs) {
+        timers.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+    
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        timers.schedule(task, delay, unit);
+    }
+    
+    /**
+     * Iniciar el servidor
+     */
+    public void start() {
+        try {
+            listen();
+            
+            // Consola de administración
+            runConsole();
+            
+        } catch (IOException e) {
+            System.err.println("[!] Error al iniciar servidor: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Abrir el puerto y empezar a aceptar conexiones, sin consola (para
+     * pruebas y benchmarks). Con puerto 0 se usa uno libre; ver getPort().
+     */
+    public void listen() throws IOException {
+        // Antes de aceptar conexiones, para vigilarlas todas
+        if (heartbeatMs > 0) {
+            heartbeats = new HeartbeatMonitor(heartbeatMs, Math.max(idleTimeoutMs, heartbeatMs), mode == Mode.NIO);
+        }
+        if (mode == Mode.NIO) {
+            nioServer = new NioServer(port, acceptors, ioLoops, this);
+            nioServer.start();
+            port = nioServer.getLocalPort();
+        } else {
+            serverSocket = new ServerSocket(port);
+            port = serverSocket.getLocalPort();
+        }
+        if (mode == Mode.VIRTUAL) {
+            connectionScope = new ConnectionScope("servidor", ConnectionScope.virtualThreads("cliente-"));
+        }
+        if (journal != null) {
+            try {
+                journal.open();
+            } catch (IOException e) {
+                System.err.println("[!] No se pudo abrir el diario, se continúa sin historial: " + e.getMessage());
+                journal = null;
+            }
+        }
+        if (metricsPort > 0) {
+            try {
+                metricsEndpoint = new MetricsEndpoint(metricsPort, metrics);
+            } catch (IOException e) {
+                System.err.println("[!] No se pudo abrir el endpoint de métricas: " + e.getMessage());
+            }
+        }
+        if (sessions != null) {
+            try {
+                sessions.load();
+                timers.scheduleWithFixedDelay(this::saveSessions, SESSION_SAVE_MS, SESSION_SAVE_MS,
+                    TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                System.err.println("[!] No se pudieron cargar las sesiones, se continúa sin ellas: " + e.getMessage());
+                sessions = null;
+            }
+        }
+        if (mailboxes != null) {
+            timers.scheduleWithFixedDelay(() -> mailboxes.expire(System.currentTimeMillis()), MAILBOX_EXPIRE_MS,
+                MAILBOX_EXPIRE_MS, TimeUnit.MILLISECONDS);
+        }
+        if (admission != null) {
+            timers.scheduleWithFixedDelay(() -> admission.adjust(clients.size()), AdmissionControl.WINDOW_MS,
+                AdmissionControl.WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+        if (cluster != null) {
+            cluster.start();
+        }
+        running = true;
+        
+        System.out.println("========================================");
+        System.out.println("  CENTRO DE CONTROL - Servidor Chat v" + VERSION);
+        System.out.println("========================================");
+        System.out.println("Servidor iniciado en puerto: " + port);
+        if (mode == Mode.NIO) {
+            System.out.println("Modo: NIO (" + ioLoops + " hilos de eventos, " + acceptors + " aceptadores)");
+        } else if (mode == Mode.VIRTUAL) {
+            System.out.println("Modo: un hilo virtual por cliente");
+        } else {
+            System.out.println("Modo: un hilo por cliente");
+        }
+        if (journal != null) {
+            System.out.println("Diario: " + journal.getDirectory().toAbsolutePath() +
+                " (siguiente offset " + journal.nextOffset() + ")");
+        }
+        if (metricsEndpoint != null) {
+            System.out.println("Métricas: http://localhost:" + metricsEndpoint.getPort() + "/metrics");
+        }
+        if (sessions != null) {
+            System.out.println("Sesiones: " + sessions.getFile().toAbsolutePath() + " (" + sessions.size() + " vigentes)");
+        }
+        if (admission != null) {
+            System.out.println("Admisión: hasta " + admission.getConnectionLimit() + " conexiones, objetivo de " +
+                admission.getTargetNanos() / 1_000_000 + " ms en las colas de salida");
+        }
+        if (mailboxes != null && journal != null) {
+            System.out.println("Buzones: hasta " + mailboxes.getMaxMessages() + " mensajes por cliente durante " +
+                mailboxes.getMaxAgeMs() / 3_600_000 + " h");
+        }
+        if (supportDesk != null) {
+            System.out.println("Mesa de soporte: hasta " + supportDesk.getCapacity() + " conversaciones por agente");
+        }
+        if (cluster != null) {
+            System.out.println("Clúster: nodo " + cluster.getNodeId() + ", bus en " + cluster.getBindAddress().getHostAddress()
+                + ":" + cluster.getPort());
+        }
+        System.out.println("Esperando conexiones de clientes...");
+        System.out.println("----------------------------------------");
+        
+        if (mode != Mode.NIO) {
+            startAcceptThreads();
+        }
+    }
+    
+    public int getPort() {
+        return port;
+    }
+    
+    /**
+     * Hilos para aceptar conexiones entrantes (modos bloqueantes), todos
+     * sobre el mismo ServerSocket. En modo NIO las conexiones las acepta el
+     * propio NioServer.
+     */
+    private void startAcceptThreads() {
+        for (int i = 0; i < acceptors; i++) {
+            startAcceptThread("aceptador-" + i);
+        }
+    }
+    
+    private void startAcceptThread(String name) {
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        // Aceptar nueva conexión
+                        Socket clientSocket = serverSocket.accept();
+                        if (!admitConnection()) {
+                            rejectConnection(clientSocket);
+                            continue;
+                        }
+                        if (heartbeats != null) {
+                            heartbeats.keepAlive(clientSocket);
+                        }
+                        ServerLog.info("[+] Nueva conexión desde: {}",
+                            clientSocket.getInetAddress().getHostAddress());
+                        
+                        // Crear handler para el cliente
+                        SocketClientHandler handler = new SocketClientHandler(clientSocket, ServidorChat.this);
+                        addClient(handler);
+                        if (mode == Mode.VIRTUAL) {
+                            handler.start(connectionScope);
+                        } else {
+                            new Thread(handler, "cliente-" + handler.getIpAddress()).start();
+                        }
+                        
+                    } catch (IOException e) {
+                        if (running) {
+                            ServerLog.error("[!] Error al aceptar conexión: {}", e.getMessage());
+                        }
+                    }
+                }
+            }
+        });
+        
+        acceptThread.start();
+    }
+    
+    /**
+     * Rechazar una conexión recién aceptada: avisar y cerrar sin crear handler
+     */
+    private void rejectConnection(Socket socket) {
+        try (Socket rejected = socket) {
+            rejected.getOutputStream().write(overloadFrame());
+            rejected.shutdownOutput();
+        } catch (IOException e) {
+            // Se iba a cerrar igualmente
+        }
+    }
+    
+    /**
+     * Consola de administración del servidor
+     */
+    private void runConsole() {
+        Scanner scanner = new Scanner(System.in);
+        
+        System.out.println("\nComandos disponibles:");
+        System.out.println("  /list [#sala] - Listar clientes conectados");
+        System.out.println("  /rooms   - Listar salas");
+        System.out.println("  /msg <cliente> <mensaje> - Enviar mensaje a cliente específico");
+        System.out.println("  /broadcast [#sala] <mensaje> - Enviar mensaje a todos o a una sala");
+        System.out.println("  /kick <cliente> - Desconectar cliente");
+        System.out.println("  /alert <lat>;<lon>;<categoria>;<urgencia>;<titulo> - Alerta de incidencia a los suscritos cercanos");
+        System.out.println("  /agents  - Agentes de soporte y cola de espera");
+        System.out.println("  /journal - Estado del diario de mensajes");
+        System.out.println("  /stats   - Estadísticas del servidor");
+        System.out.println("  /stop    - Detener servidor");
+        System.out.println("  /help    - Mostrar ayuda");
+        System.out.println();
+        
+        while (running) {
+            System.out.print("[CentroControl]> ");
+            String command = scanner.nextLine().trim();
+            
+            if (command.isEmpty()) continue;
+            
+            if (command.equals("/stop")) {
+                stop();
+                break;
+            } else if (command.equals("/list")) {
+                listClients(null);
+            } else if (command.startsWith("/list #")) {
+                listClients(command.substring(7).trim());
+            } else if (command.equals("/rooms")) {
+                listRooms();
+            } else if (command.equals("/agents")) {
+                listAgents();
+            } else if (command.equals("/journal")) {
+                showJournal();
+            } else if (command.equals("/stats")) {
+                showStats();
+            } else if (command.equals("/help")) {
+                showHelp();
+            } else if (command.startsWith("/broadcast #")) {
+                String[] parts = command.split(" ", 3);
+                if (parts.length >= 3) {
+                    broadcastToRoom(parts[1].substring(1), parts[2]);
+                } else {
+                    System.out.println("[!] Uso: /broadcast #<sala> <mensaje>");
+                }
+            } else if (command.startsWith("/broadcast ")) {
+                String message = command.substring(11);
+                broadcastMessage("[SYSTEM]" + message, null);
+                System.out.println("[Sistema] Mensaje broadcast enviado");
+            } else if (command.startsWith("/msg ")) {
+                String[] parts = command.split(" ", 3);
+                if (parts.length >= 3) {
+                    sendToClient(parts[1], "[SYSTEM]" + parts[2]);
+                } else {
+                    System.out.println("[!] Uso: /msg <cliente> <mensaje>");
+                }
+            } else if (command.startsWith("/kick ")) {
+                String clientName = command.substring(6);
+                kickClient(clientName);
+            } else if (command.startsWith("/alert ")) {
+                try {
+                    int delivered = publishAlert(IncidentAlert.parse(command.substring(7)), null);
+                    System.out.println("[Sistema] Alerta enviada a " + delivered + " clientes de este nodo");
+                } catch (IllegalArgumentException e) {
+                    System.out.println("[!] " + e.getMessage() + ". Uso: /alert <lat>;<lon>;<categoria>;<urgencia>;<titulo>");
+                }
+            } else {
+                System.out.println("[!] Comando desconocido. Use /help para ver comandos.");
+            }
+        }
+        
+        scanner.close();
+    }
+    
+    /**
+     * Listar clientes conectados (todos o solo los de una sala)
+     */
+    private void listClients(String roomName) {
+        ClientHandler[] snapshot;
+        List<ClusterBus.RemoteClient> remote = new ArrayList<>();
+        if (roomName == null) {
+            System.out.println("\n--- Clientes conectados ---");
+            snapshot = clients.snapshot();
+        } else {
+            Room room = rooms.find(roomName);
+            if (room == null && cluster == null) {
+                System.out.println("[!] Sala no encontrada: " + roomName);
+                return;
+            }
+            System.out.println("\n--- Clientes en #" + (room != null ? room.getName() : roomName) + " ---");
+            snapshot = room != null ? room.members().snapshot() : new ClientHandler[0];
+        }
+        if (cluster != null) {
+            for (ClusterBus.RemoteClient client : cluster.remoteClients()) {
+                if (roomName == null || client.rooms.stream().anyMatch(roomName::equalsIgnoreCase)) {
+                    remote.add(client);
+                }
+            }
+        }
+        if (snapshot.length == 0 && remote.isEmpty()) {
+            System.out.println("No hay clientes conectados");
+        } else {
+            for (int i = 0; i < snapshot.length; i++) {
+                ClientHandler client = snapshot[i];
+                String dropped = client.getDroppedMessages() > 0
+                    ? " - " + client.getDroppedMessages() + " mensajes descartados" : "";
+                System.out.println((i + 1) + ". " + client.getClientName() + 
+                    " (" + client.getIpAddress() + ", protocolo v" + client.getProtocolVersion() + ")" +
+                    " salas: " + String.join(", ", client.getRoomNames()) + dropped);
+            }
+            for (int i = 0; i < remote.size(); i++) {
+                ClusterBus.RemoteClient client = remote.get(i);
+                System.out.println((snapshot.length + i + 1) + ". " + client.name +
+                    " (nodo " + client.nodeId + ") salas: " + String.join(", ", client.rooms));
+            }
+        }
+        System.out.println("---------------------------\n");
+    }
+    
+    /**
+     * Listar salas y su número de miembros
+     */
+    private void listRooms() {
+        System.out.println("\n--- Salas ---");
+        for (Room room : rooms.all()) {
+            System.out.println("#" + room.getName() + " (" + room.size() + " clientes)");
+        }
+        System.out.println("-------------\n");
+    }
+    
+    /**
+     * Listar los agentes de soporte con sus conversaciones y la cola de espera
+     */
+    private void listAgents() {
+        if (supportDesk == null) {
+            System.out.println("[!] La mesa de soporte no está activa (--agent-key)");
+            return;
+        }
+        System.out.println("\n--- Agentes de soporte ---");
+        List<String> agents = supportDesk.describeAgents();
+        if (agents.isEmpty()) {
+            System.out.println("No hay agentes conectados");
+        }
+        for (String agent : agents) {
+            System.out.println(agent);
+        }
+        System.out.println("En cola: " + supportDesk.queued());
+        System.out.println("--------------------------\n");
+    }
+    
+    /**
+     * Mostrar estadísticas del servidor
+     */
+    private void showStats() {
+        System.out.println("\n--- Estadísticas ---");
+        System.out.println("Clientes conectados: " + clients.size());
+        System.out.println("Salas: " + rooms.all().size());
+        System.out.println("Conexiones: " + metrics.connectionsOpened.sum() + " abiertas, " +
+            metrics.connectionsClosed.sum() + " cerradas");
+        System.out.println("Logins: " + metrics.loginsAccepted.sum() + " aceptados, " +
+            metrics.loginsRejected.sum() + " rechazados");
+        System.out.println("Mensajes: " + metrics.messagesIn.sum() + " recibidos (" +
+            formatBytes(metrics.bytesIn.sum()) + "), " + metrics.messagesOut.sum() + " enviados (" +
+            formatBytes(metrics.bytesOut.sum()) + ")");
+        System.out.println("Tramas descartadas: " + metrics.framesDropped.sum());
+        System.out.println("Errores en handlers: " + metrics.handlerErrors.sum());
+        BufferPool large = largeReadBuffers;
+        System.out.println("Buffers de lectura: " + readBuffers.allocated() + " creados (" +
+            readBuffers.available() + " libres), " + large.allocated() + " grandes (" + large.available() +
+            " libres); " + metrics.framesOversized.sum() + " tramas demasiado grandes");
+        System.out.println("Tramas limitadas: " + metrics.rateLimited.sum() + " (" +
+            metrics.rateLimitKicks.sum() + " clientes expulsados)");
+        System.out.println("Mensajes [SEQ] repetidos descartados: " + metrics.duplicatesDropped.sum());
+        if (admission != null) {
+            System.out.printf("Admisión: %s, retraso de salida p90=%.1f ms (objetivo %d ms); límites: %d conexiones, " +
+                "%d/%d repartos en curso; rechazados: %d conexiones, %d logins, %d mensajes%n",
+                admission.isSaturated() ? "SATURADO" : "normal", admission.getDelayNanos() / 1e6,
+                admission.getTargetNanos() / 1_000_000, admission.getConnectionLimit(), admission.getInFlight(),
+                admission.getBroadcastLimit(), metrics.connectionsShed.sum(), metrics.loginsShed.sum(),
+                metrics.broadcastsShed.sum());
+        }
+        LatencyHistogram alertMatch = metrics.alertMatchNanos;
+        System.out.printf("Alertas: %d publicadas, %d entregas, %d suscritos (búsqueda p99=%.1f us)%n",
+            metrics.alertsPublished.sum(), metrics.alertsDelivered.sum(), alerts.size(),
+            alertMatch.percentile(99) / 1000.0);
+        if (mailboxes != null) {
+            System.out.println("Buzones: " + mailboxes.size() + " con " + mailboxes.pending() + " mensajes; " +
+                metrics.mailboxQueued.sum() + " guardados, " + metrics.mailboxDelivered.sum() + " entregados, " +
+                metrics.mailboxDropped.sum() + " descartados");
+        }
+        if (supportDesk != null) {
+            LatencyHistogram wait = metrics.supportWaitNanos;
+            System.out.printf("Soporte: %d agentes, %d conversaciones, %d en cola; %d asignadas " +
+                    "(espera en cola p50=%.1f s p99=%.1f s)%n",
+                supportDesk.agentCount(), supportDesk.conversationCount(), supportDesk.queued(),
+                metrics.supportAssigned.sum(), wait.percentile(50) / 1e9, wait.percentile(99) / 1e9);
+        }
+        if (sessions != null) {
+            System.out.println("Sesiones: " + sessions.size() + " guardadas, " + metrics.sessionsResumed.sum() +
+                " reanudadas, " + metrics.sessionsRejected.sum() + " rechazadas");
+        }
+        System.out.println("Registro: " + ServerLog.getPending() + " eventos pendientes, " +
+            ServerLog.getDropped() + " descartados");
+        LatencyHistogram depth = metrics.queueDepth;
+        System.out.println("Cola de salida al encolar: p50=" + depth.percentile(50) + " p99=" +
+            depth.percentile(99) + " max=" + depth.max());
+        LatencyHistogram systemDelay = metrics.systemQueueDelayNanos;
+        LatencyHistogram chatDelay = metrics.chatQueueDelayNanos;
+        System.out.printf("Tiempo en cola de salida: sistema p50=%.1f us p99=%.1f us max=%.1f us; " +
+                "chat p50=%.1f us p99=%.1f us max=%.1f us%n",
+            systemDelay.percentile(50) / 1000.0, systemDelay.percentile(99) / 1000.0, systemDelay.max() / 1000.0,
+            chatDelay.percentile(50) / 1000.0, chatDelay.percentile(99) / 1000.0, chatDelay.max() / 1000.0);
+        LatencyHistogram perWrite = metrics.framesPerWrite;
+        System.out.printf("Escrituras al socket: %d (%.2f tramas por escritura, p99=%d)%n",
+            metrics.socketWrites.sum(), perWrite.count() == 0 ? 0.0 : (double) perWrite.sum() / perWrite.count(),
+            perWrite.percentile(99));
+        if (coalesceNanos > 0) {
+            LatencyHistogram held = metrics.coalesceNanos;
+            System.out.printf("Ventana de agrupación (%d): p50=%.1f us p99=%.1f us max=%.1f us%n",
+                held.count(), held.percentile(50) / 1000.0, held.percentile(99) / 1000.0, held.max() / 1000.0);
+        }
+        LatencyHistogram fanOut = metrics.broadcastNanos;
+        System.out.printf("Reparto (%d): p50=%.1f us p99=%.1f us p999=%.1f us max=%.1f us%n",
+            fanOut.count(), fanOut.percentile(50) / 1000.0, fanOut.percentile(99) / 1000.0,
+            fanOut.percentile(99.9) / 1000.0, fanOut.max() / 1000.0);
+        if (nioServer != null) {
+            System.out.println("Clientes por hilo de eventos: " + Arrays.toString(nioServer.loopSizes()));
+        }
+        if (heartbeats != null) {
+            System.out.println("Conexiones vigiladas: " + heartbeats.getWatched());
+            System.out.println("Expulsados por inactividad: " + heartbeats.getEvicted());
+        }
+        if (cluster != null) {
+            System.out.printf("Clúster: nodo %s, conectado a %s, %d clientes remotos, %.1f mensajes por lote%n",
+                cluster.getNodeId(), cluster.connectedNodes(), cluster.remoteClientCount(), cluster.averageBatch());
+        }
+        if (metricsEndpoint != null) {
+            System.out.println("Prometheus: http://localhost:" + metricsEndpoint.getPort() + "/metrics");
+        }
+        System.out.println("--------------------\n");
+    }
+    
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+    
+    /**
+     * Mostrar el estado del diario
+     */
+    private void showJournal() {
+        if (journal == null) {
+            System.out.println("[!] El diario está desactivado");
+            return;
+        }
+        System.out.println("\n--- Diario ---");
+        System.out.println("Directorio: " + journal.getDirectory().toAbsolutePath());
+        System.out.println("Offsets: " + journal.firstOffset() + " - " + (journal.nextOffset() - 1));
+        System.out.println("Segmentos: " + journal.segmentCount() + " (" + (journal.sizeOnDisk() / (1024 * 1024)) + " MB)");
+        System.out.println("--------------\n");
+    }
+    
+    /**
+     * Enviar mensaje del sistema a los miembros de una sala
+     */
+    private void broadcastToRoom(String roomName, String message) {
+        Room room = rooms.find(roomName);
+        if (room == null) {
+            if (cluster == null) {
+                System.out.println("[!] Sala no encontrada: " + roomName);
+                return;
+            }
+            // Puede que solo tenga miembros en otros nodos
+            cluster.publishRoom(roomName, Frame.of(Protocol.SYSTEM, message), "");
+            System.out.println("[Sistema] Mensaje enviado a la sala #" + roomName + " en los demás nodos");
+            return;
+        }
+        routeToRoom(room, Frame.of(Protocol.SYSTEM, message), null);
+        System.out.println("[Sistema] Mensaje enviado a la sala #" + room.getName());
+    }
+    
+    /**
+     * Enviar mensaje a cliente específico
+     */
+    private void sendToClient(String clientName, String message) {
+        ClientHandler client = clients.find(clientName);
+        if (client != null) {
+            client.sendMessage(message);
+            System.out.println("[Sistema] Mensaje enviado a " + clientName);
+            return;
+        }
+        if (cluster != null && cluster.sendDirect(clientName, message)) {
+            System.out.println("[Sistema] Mensaje reenviado a " + clientName + " en otro nodo");
+            return;
+        }
+        if (mailboxes != null && journal != null) {
+            int queued = mail(clientName, message);
+            if (queued > 0) {
+                System.out.println("[Sistema] Mensaje encolado para " + clientName + " (desconectado, " +
+                    queued + " en su buzón)");
+                return;
+            }
+        }
+        System.out.println("[!] Cliente no encontrado: " + clientName);
+    }
+    
+    /**
+     * Guardar un mensaje en el diario y anotarlo en el buzón de un cliente desconectado
+     * @return mensajes en su buzón (0 si no se ha podido guardar)
+     */
+    private int mail(String clientName, String message) {
+        if (!mailboxes.canAccept(clientName)) {
+            return 0;
+        }
+        int opcode = Protocol.opcodeOf(message);
+        int queued;
+        try {
+            long offset = journal.append(opcode, Mailboxes.keyOf(clientName), "", Protocol.bodyOf(message, opcode));
+            queued = mailboxes.add(clientName, offset, System.currentTimeMillis());
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al escribir en el diario: {}", e.getMessage());
+            return 0;
+        }
+        ClientHandler client = clients.find(clientName);
+        if (client != null) {
+            // Ha entrado mientras se guardaba: ya vació su buzón, se le entrega ahora
+            deliverMailbox(client);
+        }
+        return queued;
+    }
+    
+    /**
+     * Entregar el buzón a un cliente que acaba de iniciar sesión. Se lee del
+     * diario en otro hilo, en una pasada, y se encola todo junto (por tandas
+     * si no cabe en la cola de salida).
+     */
+    void deliverMailbox(ClientHandler client) {
+        if (mailboxes == null || journal == null) {
+            return;
+        }
+        long[] offsets = mailboxes.take(client.getClientName(), System.currentTimeMillis());
+        if (offsets.length == 0) {
+            return;
+        }
+        replayExecutor.execute(() -> {
+            int batch = Math.max(1, client.getOutboundCapacity() / 2);
+            long last = offsets[offsets.length - 1];
+            List<Frame> frames = new ArrayList<>();
+            int[] delivered = {0};
+            try {
+                // Solo se leen los registros del buzón, no el diario que hay entre ellos
+                journal.read(offsets, (offset, timestamp, opcode, room, senderName, body) -> {
+                    frames.add(Frame.of(opcode, "(" + MAILBOX_TIME.format(Instant.ofEpochMilli(timestamp)) +
+                        ") " + body));
+                    if (frames.size() == batch && offset < last) {
+                        if (!client.awaitOutboundSpace(batch)) {
+                            return false;
+                        }
+                        client.sendFrames(frames);
+                        delivered[0] += frames.size();
+                        frames.clear();
+                    }
+                    return true;
+                });
+            } catch (IOException e) {
+                ServerLog.error("[!] Error al leer el diario: {}", e.getMessage());
+            }
+            if (!frames.isEmpty() && client.awaitOutboundSpace(batch)) {
+                client.sendFrames(frames);
+                delivered[0] += frames.size();
+            }
+            metrics.mailboxDelivered.add(delivered[0]);
+            ServerLog.info("[Sistema] Buzón de {} entregado: {} mensajes", client.getClientName(), delivered[0]);
+        });
+    }
+    
+    /**
+     * Desconectar cliente
+     */
+    private void kickClient(String clientName) {
+        ClientHandler client = clients.find(clientName);
+        if (client != null) {
+            kickClient(client, "Has sido desconectado por el administrador");
+            return;
+        }
+        if (cluster != null && cluster.kick(clientName)) {
+            System.out.println("[Sistema] Expulsión de " + clientName + " reenviada a su nodo");
+            return;
+        }
+        System.out.println("[!] Cliente no encontrado: " + clientName);
+    }
+    
+    /**
+     * Desconectar a un cliente avisándole del motivo
+     */
+    void kickClient(ClientHandler client, String reason) {
+        // Quien es expulsado no puede volver reanudando la sesión
+        closeSession(client);
+        client.sendMessage("[SYSTEM]" + reason);
+        client.disconnect();
+        ServerLog.info("[Sistema] Cliente desconectado: {}", client.getClientName());
+    }
+    
+    /**
+     * Mostrar ayuda
+     */
+    private void showHelp() {
+        System.out.println("\n--- COMANDOS DISPONIBLES ---");
+        System.out.println("  /list [#sala]      - Listar clientes conectados");
+        System.out.println("  /rooms             - Listar salas");
+        System.out.println("  /msg <c> <m>       - Enviar mensaje a cliente");
+        System.out.println("  /broadcast <m>     - Enviar a todos");
+        System.out.println("  /broadcast #s <m>  - Enviar a una sala");
+        System.out.println("  /kick <cliente>    - Desconectar cliente");
+        System.out.println("  /alert <a>         - Alerta (lat;lon;categoría;urgencia;título)");
+        System.out.println("  /agents            - Agentes de soporte y cola");
+        System.out.println("  /journal           - Estado del diario");
+        System.out.println("  /stats             - Estadísticas del servidor");
+        System.out.println("  /stop              - Detener servidor");
+        System.out.println("  /help              - Mostrar esta ayuda");
+        System.out.println("----------------------------\n");
+    }
+    
+    /**
+     * Detener servidor
+     */
+    public void stop() {
+        running = false;
+        System.out.println("\n[*] Deteniendo servidor...");
+        
+        // Desconectar todos los clientes
+        for (ClientHandler client : clients.snapshot()) {
+            client.disconnect();
+        }
+        
+        try {
+            if (serverSocket != null && !serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+            if (nioServer != null) {
+                nioServer.close();
+            }
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al cerrar servidor: {}", e.getMessage());
+        }
+        
+        // Cancelar el árbol de hilos de conexión y esperar a que terminen
+        if (connectionScope != null) {
+            connectionScope.shutdown();
+            try {
+                if (!connectionScope.join(5, TimeUnit.SECONDS)) {
+                    ServerLog.warn("[!] Algunas conexiones no terminaron a tiempo");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+        if (journal != null) {
+            journal.close();
+        }
+        if (heartbeats != null) {
+            heartbeats.stop();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (cluster != null) {
+            cluster.stop();
+        }
+        if (sessions != null) {
+            // Los clientes ya están desconectados: sus sesiones cuentan el plazo desde ahora
+            saveSessions();
+        }
+        
+        // Que lo pendiente del registro salga antes del último mensaje
+        ServerLog.flush();
+        System.out.println("[*] Servidor detenido");
+    }
+    
+    /**
+     * Enviar mensaje a todos los clientes
+     */
+    public void broadcastMessage(String message, ClientHandler sender) {
+        broadcastFrame(Frame.of(message), sender);
+    }
+    
+    /**
+     * Enviar una trama a todos los clientes, también a los de otros nodos.
+     * Se codifica como mucho una vez por versión del protocolo y todos los
+     * destinatarios comparten la trama.
+     */
+    public void broadcastFrame(Frame frame, ClientHandler sender) {
+        String senderName = nameOf(sender);
+        deliverBroadcast(frame, sender, senderName);
+        if (cluster != null) {
+            cluster.publishBroadcast(frame, senderName);
+        }
+    }
+    
+    /**
+     * Entregar un broadcast solo a los clientes de este nodo
+     */
+    void deliverBroadcast(Frame frame, ClientHandler sender, String senderName) {
+        frame = journal(frame, ChatJournal.ALL_ROOMS, senderName);
+        if (mode == Mode.NIO) {
+            frame.shareDirect();
+        }
+        
+        long start = System.nanoTime();
+        if (nioServer != null) {
+            startBroadcast();
+            nioServer.fanOutAll(frame, sender, broadcastDone);
+        } else {
+            fanOut(clients.snapshot(), frame, sender);
+        }
+        metrics.broadcastNanos.record(System.nanoTime() - start);
+    }
+    
+    /**
+     * Encolar una trama a varios clientes (menos al emisor). En modo NIO
+     * cada hilo de eventos recibe una sola tarea con sus destinatarios y la
+     * encola desde su propio hilo, sin que el emisor toque las colas de
+     * clientes de otros hilos.
+     */
+    private void fanOut(ClientHandler[] targets, Frame frame, ClientHandler sender) {
+        fanOut(targets, frame, sender, false);
+    }
+    
+    /**
+     * @param acquired el reparto ya tiene su hueco reservado con tryAcquireBroadcast()
+     */
+    private void fanOut(ClientHandler[] targets, Frame frame, ClientHandler sender, boolean acquired) {
+        if (!acquired) {
+            startBroadcast();
+        }
+        if (nioServer != null) {
+            nioServer.fanOut(targets, frame, sender, broadcastDone);
+            return;
+        }
+        for (ClientHandler client : targets) {
+            if (client != sender) {
+                client.sendFrame(frame);
+            }
+        }
+        broadcastDone.run();
+    }
+    
+    private void startBroadcast() {
+        if (admission != null) {
+            admission.broadcastStarted();
+        }
+    }
+    
+    /**
+     * Enviar un mensaje de chat a su sala si hay hueco entre los repartos en
+     * curso. El hueco se reserva antes de repartir y se libera al acabar.
+     * @return false si hay demasiados repartos en curso y se descarta
+     */
+    boolean routeChat(Room room, Frame frame, ClientHandler sender) {
+        if (admission != null && !admission.tryAcquireBroadcast()) {
+            return false;
+        }
+        String senderName = nameOf(sender);
+        deliverToRoom(room.getName(), frame, sender, senderName, admission != null);
+        if (cluster != null) {
+            cluster.publishRoom(room.getName(), frame, senderName);
+        }
+        return true;
+    }
+    
+    /**
+     * Enviar una trama solo a los miembros de una sala (en todos los nodos),
+     * con la misma codificación compartida que broadcastFrame
+     */
+    public void routeToRoom(Room room, Frame frame, ClientHandler sender) {
+        String senderName = nameOf(sender);
+        deliverToRoom(room.getName(), frame, sender, senderName);
+        if (cluster != null) {
+            cluster.publishRoom(room.getName(), frame, senderName);
+        }
+    }
+    
+    /**
+     * Entregar un mensaje de sala solo a sus miembros de este nodo. Se anota
+     * en el diario aunque aquí no tenga miembros, para quien entre y lo pida.
+     */
+    void deliverToRoom(String roomName, Frame frame, ClientHandler sender, String senderName) {
+        deliverToRoom(roomName, frame, sender, senderName, false);
+    }
+    
+    private void deliverToRoom(String roomName, Frame frame, ClientHandler sender, String senderName,
+            boolean acquired) {
+        frame = journal(frame, ClientRegistry.normalize(roomName), senderName);
+        Room room = rooms.find(roomName);
+        if (room == null) {
+            if (acquired) {
+                broadcastDone.run();
+            }
+            return;
+        }
+        if (mode == Mode.NIO) {
+            frame.shareDirect();
+        }
+        
+        long start = System.nanoTime();
+        fanOut(room.members().snapshot(), frame, sender, acquired);
+        metrics.broadcastNanos.record(System.nanoTime() - start);
+    }
+    
+    /**
+     * Publicar una alerta de incidencia para los suscriptores cercanos, en
+     * todos los nodos. No se anota en el diario: solo interesa a quien esté
+     * en la zona cuando ocurre.
+     * @return destinatarios en este nodo
+     */
+    int publishAlert(IncidentAlert alert, ClientHandler sender) {
+        metrics.alertsPublished.increment();
+        int delivered = deliverAlert(alert, sender);
+        if (cluster != null) {
+            cluster.publishAlert(alert.toBody(), nameOf(sender));
+        }
+        ServerLog.info("[Alerta] {} ({}): {} destinatarios en este nodo",
+            alert, sender != null ? nameOf(sender) : "consola", delivered);
+        return delivered;
+    }
+    
+    /**
+     * Entregar una alerta solo a los suscriptores de este nodo cuya zona
+     * incluya su posición
+     * @return destinatarios
+     */
+    int deliverAlert(IncidentAlert alert, ClientHandler sender) {
+        Frame frame = Frame.of(Protocol.ALERT, alert.toBody());
+        if (mode == Mode.NIO) {
+            frame.shareDirect();
+        }
+        
+        long start = System.nanoTime();
+        List<ClientHandler> targets = new ArrayList<>();
+        alerts.match(alert.latitude, alert.longitude, subscription -> {
+            if (subscription.client != sender) {
+                targets.add(subscription.client);
+            }
+        });
+        fanOut(targets.toArray(new ClientHandler[0]), frame, sender);
+        metrics.alertMatchNanos.record(System.nanoTime() - start);
+        metrics.alertsDelivered.add(targets.size());
+        return targets.size();
+    }
+    
+    /**
+     * Añadir un mensaje enrutado al diario
+     * @return la trama con su offset, o la original si no hay diario
+     */
+    private Frame journal(Frame frame, String roomKey, String senderName) {
+        if (journal == null) {
+            return frame;
+        }
+        try {
+            long offset = journal.append(frame.opcode(), roomKey, senderName, frame.body());
+            return Frame.journaled(frame.opcode(), frame.body(), offset);
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al escribir en el diario: {}", e.getMessage());
+            return frame;
+        }
+    }
+    
+    /**
+     * Reenviar a un cliente lo que hay en el diario después de un offset.
+     * Se hace en otro hilo y respetando su cola de salida, así que una
+     * reproducción larga no bloquea al lector ni desborda la cola.
+     */
+    void replay(ClientHandler client, long afterOffset) {
+        if (journal == null) {
+            client.sendMessage("[SYSTEM]Error: El historial no está disponible");
+            return;
+        }
+        replayExecutor.execute(() -> {
+            Set<String> roomKeys = client.getRoomKeys();
+            String self = ClientRegistry.normalize(client.getClientName());
+            int level = Math.max(1, client.getOutboundCapacity() / 2);
+            long[] sent = {0};
+            try {
+                journal.replay(afterOffset, (offset, timestamp, opcode, room, senderName, body) -> {
+                    // Los buzones ("@nombre") no son salas: nunca coinciden con roomKeys
+                    if (!room.equals(ChatJournal.ALL_ROOMS) && !roomKeys.contains(room)) {
+                        return true;
+                    }
+                    if (!senderName.isEmpty() && ClientRegistry.normalize(senderName).equals(self)) {
+                        return true;
+                    }
+                    if (!client.awaitOutboundSpace(level)) {
+                        return false;
+                    }
+                    client.sendFrame(Frame.journaled(opcode, body, offset));
+                    sent[0]++;
+                    return true;
+                });
+            } catch (IOException e) {
+                ServerLog.error("[!] Error al leer el diario: {}", e.getMessage());
+            }
+            client.sendMessage("[SYSTEM]Historial recuperado: " + sent[0] + " mensajes");
+        });
+    }
+    
+    private static String nameOf(ClientHandler sender) {
+        return sender != null && sender.clientName != null ? sender.clientName : "";
+    }
+    
+    boolean hasJournal() {
+        return journal != null;
+    }
+    
+    RoomRegistry getRooms() {
+        return rooms;
+    }
+    
+    /**
+     * Registrar una conexión nueva. Entra en el lobby hasta que se una a una sala.
+     */
+    public void addClient(ClientHandler client) {
+        clients.add(client);
+        metrics.connectionsOpened.increment();
+        client.enterLobby();
+        if (heartbeats != null) {
+            heartbeats.watch(client);
+        }
+    }
+    
+    /**
+     * Remover cliente de la lista
+     */
+    public void removeClient(ClientHandler client) {
+        if (clients.remove(client)) {
+            metrics.connectionsClosed.increment();
+            if (heartbeats != null) {
+                heartbeats.unwatch(client);
+            }
+            alerts.remove(client.alertSubscription);
+            if (supportDesk != null && client.isAgent()) {
+                supportDesk.removeAgent(client);
+            }
+            if (client.superseded) {
+                // Su sesión y su nombre ya son de la conexión que la ha reanudado
+                client.leaveAllRooms();
+                ServerLog.info("[-] Conexión anterior de {} sustituida", client.getClientName());
+                return;
+            }
+            // Antes de salir de las salas, para que la sesión las conserve
+            if (sessions != null && client.session != null) {
+                sessions.detach(client.session, client);
+            }
+            client.leaveAllRooms();
+            leaveSupport(client, false);
+            if (cluster != null && client.clientName != null) {
+                cluster.release(client.clientName);
+            }
+            ServerLog.info("[-] Cliente desconectado: {}", client.getClientName());
+        }
+    }
+    
+    /**
+     * Reservar nombre de cliente de forma atómica
+     * @return false si el nombre ya está en uso
+     */
+    public boolean registerClientName(String name, ClientHandler client) {
+        return clients.reserve(name, client);
+    }
+    
+    /**
+     * Reservar un nombre en este nodo y, en clúster, en todos los demás. La
+     * respuesta puede llegar en otro hilo; si es negativa la reserva local
+     * ya se ha deshecho.
+     */
+    void claimClientName(String name, ClientHandler client, Consumer<Boolean> done) {
+        if (!clients.reserve(name, client)) {
+            done.accept(false);
+            return;
+        }
+        if (cluster == null) {
+            done.accept(true);
+            return;
+        }
+        cluster.claim(name, granted -> {
+            if (!granted) {
+                clients.release(name, client);
+            }
+            done.accept(granted);
+        });
+    }
+    
+    /**
+     * Reservar el nombre de una sesión que se reanuda. Si su conexión anterior
+     * sigue abierta (el corte aún no se ha detectado), la nueva la sustituye
+     * sin avisar a nadie.
+     */
+    void resumeClientName(SessionStore.Session session, ClientHandler client, Consumer<Boolean> done) {
+        ClientHandler previous = clients.find(session.name);
+        if (previous != null && previous.session == session) {
+            if (clients.takeOver(session.name, previous, client)) {
+                // Sus salas y su cursor pasan a la sesión antes de cerrarla
+                sessions.detach(session, previous);
+                previous.abort();
+                done.accept(true);
+                return;
+            }
+        }
+        claimClientName(session.name, client, done);
+    }
+    
+    /**
+     * Dar una sesión reanudable a un cliente que acaba de iniciar sesión ([SESSION]token)
+     */
+    void openSession(ClientHandler client) {
+        if (sessions == null) {
+            return;
+        }
+        long cursor = journal != null ? journal.nextOffset() - 1 : -1;
+        client.session = sessions.open(client, cursor);
+        client.sendFrame(Frame.of(Protocol.SESSION, client.session.token));
+    }
+    
+    SessionStore.Session findSession(String token) {
+        return sessions != null ? sessions.find(token) : null;
+    }
+    
+    long sessionCursor(SessionStore.Session session) {
+        return sessions.cursorOf(session);
+    }
+    
+    void attachSession(ClientHandler client, long cursor) {
+        sessions.attach(client.session, client, cursor);
+    }
+    
+    /**
+     * Anular la sesión de un cliente (logout o expulsión)
+     */
+    void closeSession(ClientHandler client) {
+        SessionStore.Session session = client.session;
+        if (sessions != null && session != null) {
+            sessions.invalidate(session);
+            client.session = null;
+        }
+    }
+    
+    private void saveSessions() {
+        try {
+            sessions.save();
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al guardar las sesiones: {}", e.getMessage());
+        }
+    }
+    
+    /**
+     * Liberar un nombre reservado que no ha llegado a usarse
+     */
+    void releaseClientName(String name, ClientHandler client) {
+        clients.release(name, client);
+        if (cluster != null) {
+            cluster.release(name);
+        }
+    }
+    
+    /**
+     * Las salas de un cliente han cambiado (o acaba de entrar): avisar al clúster
+     */
+    void presenceChanged(ClientHandler client) {
+        if (cluster != null && client.clientName != null) {
+            cluster.presence(client.clientName, client.getRoomNames());
+        }
+    }
+    
+    /**
+     * Verificar si nombre de cliente ya existe
+     */
+    public boolean isClientNameTaken(String name) {
+        return clients.isNameTaken(name);
+    }
+    
+    /**
+     * Uso: java centrodecontrol.ServidorChat [puerto] [--mode=threads|nio|virtual] [--io-loops=N] [--acceptors=N]
+     *        [--queue-size=N] [--chat-overflow=P] [--system-overflow=P]
+     *        [--max-frame=BYTES] [--max-frame-v1=BYTES]
+     *        [--journal=DIR|off] [--journal-segment-mb=N] [--journal-retention-mb=N]
+     *        [--journal-retention-hours=N] [--journal-flush-ms=N]
+     *        [--heartbeat-ms=N] [--idle-timeout-ms=N] [--metrics-port=N|off]
+     *        [--rate-limits=on|off] [--rate-msg=L] [--rate-rooms=L] [--rate-replay=L] [--rate-alerts=L]
+     *        [--rate-ping=L] [--rate-kick=N]
+     *        [--log-level=debug|info|warn|error] [--log-overflow=drop|block]
+     *        [--log-file=RUTA|off] [--log-file-mb=N] [--log-files=N] [--log-buffer=N]
+     *        [--coalesce-ms=N] [--coalesce-kb=N]
+     *        [--sessions=FICHERO|off] [--session-ttl-min=N]
+     *        [--alert-cell-m=N] [--alert-max-radius-m=N]
+     *        [--admission=on|off] [--admission-target-ms=N] [--max-clients=N] [--max-broadcasts=N]
+     *        [--agent-key=CLAVE] [--agent-capacity=N] [--mailbox-size=N|off] [--mailbox-age-hours=N]
+     *        [--node-id=ID] [--cluster-port=N] [--cluster-secret=CLAVE] [--cluster-bind=DIRECCIÓN]
+     *        [--cluster-peers=HOST:PUERTO,...] [--cluster-batch-ms=N]
+     * donde P es drop-oldest, never-drop o disconnect y L es RITMO[:RÁFAGA]
+     * en tramas por segundo, u off. Sin opciones se comporta como la versión
+     * base: el diario, las sesiones, el fichero de registro, las métricas, los
+     * límites de tráfico y la admisión solo se activan con sus opciones.
+     */
+    public static void main(String[] args) {
+        int port = DEFAULT_PORT;
+        Mode mode = Mode.THREADS;
+        int ioLoops = 0;
+        int acceptors = 1;
+        int queueSize = 256;
+        int maxFrame = 1024 * 1024;
+        int maxFrameV1 = 65535;
+        OutboundQueue.OverflowPolicy chatOverflow = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+        OutboundQueue.OverflowPolicy systemOverflow = OutboundQueue.OverflowPolicy.NEVER_DROP;
+        String journalDir = "off";
+        int segmentMb = 64;
+        long retentionMb = 1024;
+        long retentionHours = 24 * 7;
+        long flushMs = 10;
+        long heartbeatMs = 15000;
+        long idleTimeoutMs = 45000;
+        int metricsPort = 0;
+        RateLimiter.Policy rateLimits = null;
+        ServerLog.Level logLevel = ServerLog.Level.INFO;
+        ServerLog.OverflowPolicy logOverflow = ServerLog.OverflowPolicy.DROP;
+        String logFile = "off";
+        long logFileMb = 10;
+        int logFiles = 5;
+        int logBuffer = ServerLog.DEFAULT_CAPACITY;
+        double coalesceMs = 0;
+        int coalesceKb = 16;
+        String sessionFile = "off";
+        long sessionTtlMin = 30;
+        int alertCellMeters = 2000;
+        int alertMaxRadiusMeters = 10000;
+        boolean admission = false;
+        long admissionTargetMs = 50;
+        int maxClients = 10000;
+        int maxBroadcasts = 1024;
+        String agentKey = null;
+        int agentCapacity = 5;
+        int mailboxSize = 100;
+        long mailboxAgeHours = 72;
+        String nodeId = null;
+        int clusterPort = 0;
+        String clusterSecret = null;
+        InetAddress clusterBind = InetAddress.getLoopbackAddress();
+        List<InetSocketAddress> clusterPeers = new ArrayList<>();
+        long clusterBatchMs = 1;
+        
+        for (String arg : args) {
+            if (arg.startsWith("--mode=")) {
+                String value = arg.substring(7);
+                if (value.equalsIgnoreCase("nio")) {
+                    mode = Mode.NIO;
+                } else if (value.equalsIgnoreCase("virtual")) {
+                    mode = Mode.VIRTUAL;
+                } else if (value.equalsIgnoreCase("threads")) {
+                    mode = Mode.THREADS;
+                } else {
+                    System.err.println("[!] Modo desconocido '" + value + "', usando: threads");
+                }
+            } else if (arg.startsWith("--io-loops=")) {
+                try {
+                    ioLoops = Integer.parseInt(arg.substring(11));
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Número de hilos de eventos inválido, usando uno por núcleo");
+                }
+            } else if (arg.startsWith("--acceptors=")) {
+                try {
+                    acceptors = Integer.parseInt(arg.substring(12));
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Número de aceptadores inválido, usando: " + acceptors);
+                }
+            } else if (arg.startsWith("--queue-size=")) {
+                try {
+                    queueSize = Integer.parseInt(arg.substring(13));
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Tamaño de cola inválido, usando: " + queueSize);
+                }
+            } else if (arg.startsWith("--max-frame=")) {
+                try {
+                    maxFrame = Integer.parseInt(arg.substring(12));
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Tamaño máximo de trama inválido, usando: " + maxFrame);
+                }
+            } else if (arg.startsWith("--max-frame-v1=")) {
+                try {
+                    maxFrameV1 = Integer.parseInt(arg.substring(15));
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Tamaño máximo de trama v1 inválido, usando: " + maxFrameV1);
+                }
+            } else if (arg.startsWith("--heartbeat-ms=") || arg.startsWith("--idle-timeout-ms=")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--heartbeat-ms=")) {
+                        heartbeatMs = Long.parseLong(value);
+                    } else {
+                        idleTimeoutMs = Long.parseLong(value);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Valor inválido, se usa el de por defecto: " + arg);
+                }
+            } else if (arg.startsWith("--metrics-port=")) {
+                try {
+                    String value = arg.substring(15);
+                    metricsPort = value.equalsIgnoreCase("off") ? 0 : Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Puerto de métricas inválido, usando: " + metricsPort);
+                }
+            } else if (arg.startsWith("--rate-limits=")) {
+                if (arg.substring(14).equalsIgnoreCase("off")) {
+                    rateLimits = null;
+                } else if (rateLimits == null) {
+                    rateLimits = RateLimiter.Policy.defaults();
+                }
+            } else if (arg.startsWith("--rate-")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    RateLimiter.Limit limit = value.equalsIgnoreCase("off") ? null : RateLimiter.Limit.parse(value);
+                    // Ajustar un límite activa los demás con sus valores por defecto
+                    if (rateLimits == null) {
+                        rateLimits = RateLimiter.Policy.defaults();
+                    }
+                    if (arg.startsWith("--rate-msg=")) {
+                        rateLimits.limit(limit, Protocol.MSG, Protocol.TEXT, Protocol.SEQ, Protocol.SUPPORT, Protocol.RESOLVE);
+                    } else if (arg.startsWith("--rate-rooms=")) {
+                        rateLimits.limit(limit, Protocol.JOIN, Protocol.LEAVE, Protocol.SUBSCRIBE);
+                    } else if (arg.startsWith("--rate-replay=")) {
+                        rateLimits.limit(limit, Protocol.REPLAY);
+                    } else if (arg.startsWith("--rate-alerts=")) {
+                        rateLimits.limit(limit, Protocol.ALERT);
+                    } else if (arg.startsWith("--rate-ping=")) {
+                        rateLimits.limit(limit, Protocol.PING);
+                    } else if (arg.startsWith("--rate-kick=")) {
+                        rateLimits.kickAfter(value.equalsIgnoreCase("off") ? 0 : Integer.parseInt(value));
+                    } else {
+                        System.err.println("[!] Opción de límites desconocida: " + arg);
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.err.println("[!] Valor inválido, se usa el de por defecto: " + arg);
+                }
+            } else if (arg.startsWith("--log-file=")) {
+                logFile = arg.substring(11);
+            } else if (arg.startsWith("--log-")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--log-level=")) {
+                        logLevel = ServerLog.Level.parse(value);
+                    } else if (arg.startsWith("--log-overflow=")) {
+                        logOverflow = ServerLog.OverflowPolicy.parse(value);
+                    } else if (arg.startsWith("--log-file-mb=")) {
+                        logFileMb = Long.parseLong(value);
+                    } else if (arg.startsWith("--log-files=")) {
+                        logFiles = Integer.parseInt(value);
+                    } else if (arg.startsWith("--log-buffer=")) {
+                        logBuffer = Integer.parseInt(value);
+                    } else {
+                        System.err.println("[!] Opción del registro desconocida: " + arg);
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.err.println("[!] Valor inválido, se usa el de por defecto: " + arg);
+                }
+            } else if (arg.startsWith("--coalesce-")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--coalesce-ms=")) {
+                        coalesceMs = Double.parseDouble(value);
+                    } else if (arg.startsWith("--coalesce-kb=")) {
+                        coalesceKb = Integer.parseInt(value);
+                    } else {
+                        System.err.println("[!] Opción de agrupación desconocida: " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Valor inválido, se usa el de por defecto: " + arg);
+                }
+            } else if (arg.startsWith("--sessions=")) {
+                sessionFile = arg.substring(11);
+            } else if (arg.startsWith("--session-ttl-min=")) {
+                try {
+                    sessionTtlMin = Long.parseLong(arg.substring(18));
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Duración de sesión inválida, usando: " + sessionTtlMin);
+                }
+            } else if (arg.startsWith("--alert-")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--alert-cell-m=")) {
+                        alertCellMeters = Integer.parseInt(value);
+                    } else if (arg.startsWith("--alert-max-radius-m=")) {
+                        alertMaxRadiusMeters = Integer.parseInt(value);
+                    } else {
+                        System.err.println("[!] Opción de alertas desconocida: " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Valor inválido, se usa el de por defecto: " + arg);
+                }
+            } else if (arg.startsWith("--admission=")) {
+                admission = !arg.substring(12).equalsIgnoreCase("off");
+            } else if (arg.startsWith("--admission-target-ms=") || arg.startsWith("--max-clients=")
+                    || arg.startsWith("--max-broadcasts=")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                admission = true;
+                try {
+                    if (arg.startsWith("--admission-target-ms=")) {
+                        admissionTargetMs = Long.parseLong(value);
+                    } else if (arg.startsWith("--max-clients=")) {
+                        maxClients = Integer.parseInt(value);
+                    } else {
+                        maxBroadcasts = Integer.parseInt(value);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Valor inválido, se usa el de por defecto: " + arg);
+                }
+            } else if (arg.startsWith("--agent-key=")) {
+                agentKey = arg.substring(12);
+            } else if (arg.startsWith("--agent-capacity=")) {
+                try {
+                    agentCapacity = Integer.parseInt(arg.substring(17));
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Capacidad de agente inválida, usando: " + agentCapacity);
+                }
+            } else if (arg.startsWith("--mailbox-")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--mailbox-size=")) {
+                        mailboxSize = value.equalsIgnoreCase("off") ? 0 : Integer.parseInt(value);
+                    } else if (arg.startsWith("--mailbox-age-hours=")) {
+                        mailboxAgeHours = Long.parseLong(value);
+                    } else {
+                        System.err.println("[!] Opción de buzones desconocida: " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Valor inválido, se usa el de por defecto: " + arg);
+                }
+            } else if (arg.startsWith("--node-id=")) {
+                nodeId = arg.substring(10);
+            } else if (arg.startsWith("--cluster-")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--cluster-port=")) {
+                        clusterPort = Integer.parseInt(value);
+                    } else if (arg.startsWith("--cluster-secret=")) {
+                        clusterSecret = value;
+                    } else if (arg.startsWith("--cluster-bind=")) {
+                        clusterBind = InetAddress.getByName(value);
+                    } else if (arg.startsWith("--cluster-batch-ms=")) {
+                        clusterBatchMs = Long.parseLong(value);
+                    } else if (arg.startsWith("--cluster-peers=")) {
+                        for (String peer : value.split(",")) {
+                            int colon = peer.lastIndexOf(':');
+                            clusterPeers.add(new InetSocketAddress(peer.substring(0, colon).trim(),
+                                Integer.parseInt(peer.substring(colon + 1).trim())));
+                        }
+                    } else {
+                        System.err.println("[!] Opción del clúster desconocida: " + arg);
+                    }
+                } catch (RuntimeException | UnknownHostException e) {
+                    System.err.println("[!] Valor inválido, se ignora: " + arg);
+                }
+            } else if (arg.startsWith("--journal=")) {
+                journalDir = arg.substring(10);
+            } else if (arg.startsWith("--journal-")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--journal-segment-mb=")) {
+                        int mb = Integer.parseInt(value);
+                        if (mb < 1 || mb > ChatJournal.MAX_SEGMENT_MB) {
+                            throw new NumberFormatException("fuera de 1.." + ChatJournal.MAX_SEGMENT_MB);
+                        }
+                        segmentMb = mb;
+                    } else if (arg.startsWith("--journal-retention-mb=")) {
+                        retentionMb = Long.parseLong(value);
+                    } else if (arg.startsWith("--journal-retention-hours=")) {
+                        retentionHours = Long.parseLong(value);
+                    } else if (arg.startsWith("--journal-flush-ms=")) {
+                        flushMs = Long.parseLong(value);
+                    } else {
+                        System.err.println("[!] Opción del diario desconocida: " + arg);
+                    }
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Valor inválido, se usa el de por defecto: " + arg);
+                }
+            } else if (arg.startsWith("--chat-overflow=") || arg.startsWith("--system-overflow=")) {
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    if (arg.startsWith("--chat-overflow=")) {
+                        chatOverflow = OutboundQueue.OverflowPolicy.parse(value);
+                    } else {
+                        systemOverflow = OutboundQueue.OverflowPolicy.parse(value);
+                    }
+                } catch (IllegalArgumentException e) {
+                    System.err.println("[!] Política de desbordamiento desconocida: " + value);
+                }
+            } else {
+                // Permitir especificar puerto como argumento
+                try {
+                    port = Integer.parseInt(arg);
+                } catch (NumberFormatException e) {
+                    System.err.println("[!] Puerto inválido, usando puerto por defecto: " + DEFAULT_PORT);
+                }
+            }
+        }
+        
+        ServerLog.configure(logBuffer, logLevel, logOverflow,
+            logFile.equalsIgnoreCase("off") ? null : Paths.get(logFile), logFileMb * 1024 * 1024, logFiles);
+        
+        ServidorChat servidor = new ServidorChat(port, mode, ioLoops);
+        servidor.setAcceptors(acceptors);
+        servidor.setOutboundQueue(queueSize, chatOverflow, systemOverflow);
+        servidor.setMaxFrameSize(maxFrame, maxFrameV1);
+        servidor.setCoalescing(Math.round(coalesceMs * 1000), coalesceKb * 1024);
+        servidor.setHeartbeat(heartbeatMs, idleTimeoutMs);
+        servidor.setMetricsPort(metricsPort);
+        servidor.setRateLimits(rateLimits);
+        servidor.setAlertGrid(alertCellMeters, alertMaxRadiusMeters);
+        if (admission) {
+            servidor.setAdmission(new AdmissionControl(TimeUnit.MILLISECONDS.toNanos(admissionTargetMs),
+                maxClients, maxBroadcasts, servidor.getMetrics()));
+        }
+        if (agentKey != null && !agentKey.isEmpty()) {
+            servidor.setSupportDesk(new SupportDesk(agentKey, agentCapacity, servidor.getMetrics()));
+        }
+        if (!sessionFile.equalsIgnoreCase("off")) {
+            servidor.setSessions(new SessionStore(Paths.get(sessionFile), sessionTtlMin * 60 * 1000));
+        }
+        if (clusterPort > 0 && (clusterSecret == null || clusterSecret.isEmpty())) {
+            System.err.println("[!] El clúster necesita --cluster-secret=CLAVE; el nodo funciona solo");
+        } else if (clusterPort > 0) {
+            servidor.setCluster(nodeId != null ? nodeId : "nodo-" + clusterPort, clusterPort, clusterBind,
+                clusterSecret, clusterPeers, clusterBatchMs);
+        }
+        if (!journalDir.equalsIgnoreCase("off")) {
+            servidor.setJournal(new ChatJournal(Paths.get(journalDir),
+                Math.toIntExact(Math.multiplyExact((long) segmentMb, 1024 * 1024)),
+                retentionMb * 1024 * 1024, retentionHours * 3600 * 1000, flushMs));
+            if (mailboxSize > 0) {
+                servidor.setMailboxes(new Mailboxes(mailboxSize, mailboxAgeHours * 3600 * 1000,
+                    servidor.getMetrics()));
+            }
+        }
+        servidor.start();
+    }
+}
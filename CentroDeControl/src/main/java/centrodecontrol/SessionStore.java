@@ -0,0 +1,232 @@
+package centrodecontrol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sesiones reanudables.
+ *
+ * Al iniciar sesión el cliente recibe un token ([SESSION]). Si se reconecta
+ * antes de que caduque, lo presenta con [RESUME] y recupera su nombre, sus
+ * salas, el cursor del diario y el último [SEQ] procesado (para descartar
+ * los reenvíos de lo que ya llegó) sin pasar por el login ni anunciarse a
+ * todos, así que una reconexión masiva (reinicio del servidor, corte de red)
+ * no provoca una ráfaga de broadcasts de presencia.
+ *
+ * Una sesión caduca ttlMs después de desconectarse su cliente. Se guardan en
+ * disco periódicamente y al parar el servidor (escribiendo un fichero nuevo
+ * y renombrándolo), de modo que sobreviven a un reinicio.
+ */
+class SessionStore {
+
+    private static final int MAGIC = 0x53455332; // "SES2"
+
+    /** Bytes aleatorios de un token (144 bits: 24 caracteres en Base64) */
+    private static final int TOKEN_BYTES = 18;
+
+    /**
+     * Estado de una sesión. Mientras su cliente está conectado, las salas (la
+     * activa primero), el cursor y el último [SEQ] se leen de él al guardar.
+     */
+    static final class Session {
+        final String token;
+        final String name;
+        volatile List<String> rooms;
+        volatile long cursor;
+        volatile long lastSeq;
+        volatile long expiresAt;
+        volatile ClientHandler client;
+
+        Session(String token, String name, List<String> rooms, long cursor, long lastSeq, long expiresAt) {
+            this.token = token;
+            this.name = name;
+            this.rooms = rooms;
+            this.cursor = cursor;
+            this.lastSeq = lastSeq;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Path file;
+    private final long ttlMs;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+
+    SessionStore(Path file, long ttlMs) {
+        this.file = file;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Crear la sesión de un cliente que acaba de iniciar sesión
+     */
+    Session open(ClientHandler client, long cursor) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session session = new Session(token, client.clientName, roomsOf(client), cursor, client.getLastSeq(), 0);
+        session.client = client;
+        sessions.put(token, session);
+        return session;
+    }
+
+    /**
+     * Buscar una sesión vigente
+     * @return null si no existe o ha caducado
+     */
+    Session find(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        if (session.client == null && session.expiresAt < System.currentTimeMillis()) {
+            sessions.remove(token, session);
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Último offset del diario que se sabe entregado a la sesión
+     */
+    long cursorOf(Session session) {
+        ClientHandler client = session.client;
+        return client != null ? Math.max(session.cursor, client.getLastOffset()) : session.cursor;
+    }
+
+    /**
+     * Asociar la sesión a la conexión que la ha reanudado, que recibe lo
+     * posterior al cursor
+     */
+    synchronized void attach(Session session, ClientHandler client, long cursor) {
+        session.cursor = cursor;
+        session.client = client;
+    }
+
+    /**
+     * Su cliente se ha desconectado: guardar salas, cursor y último [SEQ] y empezar a contar el plazo
+     */
+    synchronized void detach(Session session, ClientHandler client) {
+        if (session.client != client) {
+            return;
+        }
+        capture(session, client);
+        session.expiresAt = System.currentTimeMillis() + ttlMs;
+        session.client = null;
+    }
+
+    /**
+     * Anular una sesión (logout o expulsión)
+     */
+    void invalidate(Session session) {
+        sessions.remove(session.token, session);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    private static void capture(Session session, ClientHandler client) {
+        session.rooms = roomsOf(client);
+        session.cursor = Math.max(session.cursor, client.getLastOffset());
+        session.lastSeq = client.getLastSeq();
+    }
+
+    /**
+     * Salas del cliente con la activa en primer lugar
+     */
+    private static List<String> roomsOf(ClientHandler client) {
+        List<String> rooms = client.getRoomNames();
+        String active = client.getActiveRoomName();
+        if (active != null && rooms.remove(active)) {
+            rooms.add(0, active);
+        }
+        return rooms;
+    }
+
+    /**
+     * Cargar las sesiones guardadas, descartando las caducadas
+     */
+    void load() throws IOException {
+        long now = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int magic = in.readInt();
+            if (magic != MAGIC) {
+                throw new IOException("Fichero de sesiones no reconocido: " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String token = in.readUTF();
+                String name = in.readUTF();
+                long expiresAt = in.readLong();
+                long cursor = in.readLong();
+                long lastSeq = in.readLong();
+                int roomCount = in.readUnsignedShort();
+                List<String> rooms = new ArrayList<>(roomCount);
+                for (int r = 0; r < roomCount; r++) {
+                    rooms.add(in.readUTF());
+                }
+                if (expiresAt >= now) {
+                    sessions.put(token, new Session(token, name, rooms, cursor, lastSeq, expiresAt));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Primer arranque
+        }
+    }
+
+    /**
+     * Guardar todas las sesiones vigentes. Las de clientes conectados se
+     * guardan con el plazo contado desde ahora, por si el servidor cae.
+     */
+    synchronized void save() throws IOException {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(session -> session.client == null && session.expiresAt < now);
+
+        List<Session> snapshot = new ArrayList<>(sessions.values());
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(snapshot.size());
+            for (Session session : snapshot) {
+                ClientHandler client = session.client;
+                long expiresAt = session.expiresAt;
+                if (client != null) {
+                    capture(session, client);
+                    expiresAt = now + ttlMs;
+                }
+                List<String> rooms = session.rooms;
+                out.writeUTF(session.token);
+                out.writeUTF(session.name);
+                out.writeLong(expiresAt);
+                out.writeLong(session.cursor);
+                out.writeLong(session.lastSeq);
+                out.writeShort(rooms.size());
+                for (String room : rooms) {
+                    out.writeUTF(room);
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    Path getFile() {
+        return file;
+    }
+}
@@ -0,0 +1,264 @@
+package centrodecontrol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UTFDataFormatException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handler bloqueante para un cliente conectado.
+ * Gestiona la comunicación con un cliente específico en un hilo separado:
+ * un hilo de plataforma (modo threads) o un hilo virtual dentro de un
+ * ConnectionScope propio (modo virtual). Un segundo hilo, el escritor,
+ * vacía la cola de salida hacia el socket.
+ */
+class SocketClientHandler extends ClientHandler implements Runnable {
+
+    private Socket socket;
+    private InputStream inputStream;
+    private DataOutputStream outputStream;
+
+    // Ámbito de la conexión (solo en modo virtual)
+    private ConnectionScope scope;
+
+    private final AtomicBoolean closing = new AtomicBoolean(false);
+    private final AtomicBoolean socketClosed = new AtomicBoolean(false);
+
+    // Versión en la que se escriben las tramas salientes (solo el escritor)
+    private int outboundVersion = Protocol.VERSION_LEGACY;
+
+    public SocketClientHandler(Socket socket, ServidorChat servidor) {
+        super(servidor);
+        this.socket = socket;
+    }
+
+    /**
+     * Arrancar el handler en un ámbito hijo del ámbito del servidor
+     */
+    public void start(ConnectionScope parent) {
+        scope = parent.child("cliente-" + getIpAddress());
+        if (!scope.fork(this)) {
+            abort();
+        }
+    }
+
+    @Override
+    public void run() {
+        FrameReader reader = null;
+        try {
+            // Inicializar streams
+            inputStream = socket.getInputStream();
+            outputStream = new DataOutputStream(socket.getOutputStream());
+            reader = servidor.newFrameReader();
+            connected = true;
+
+            // Arrancar el escritor de la cola de salida
+            if (scope != null) {
+                scope.fork(this::writeLoop);
+            } else {
+                new Thread(this::writeLoop, "escritor-" + getIpAddress()).start();
+            }
+
+            // Enviar mensaje de bienvenida
+            sendMessage("[SYSTEM]Bienvenido al Centro de Control de CityCare");
+
+            // Bucle principal de recepción de mensajes
+            while (connected) {
+                try {
+                    if (reader.readFrom(inputStream) < 0) {
+                        break;
+                    }
+                    // Despachar las tramas completas en la versión negociada
+                    InboundFrame frame;
+                    while (connected && (frame = reader.next(protocolVersion)) != null) {
+                        dispatch(frame);
+                    }
+                    flushAck();
+                    reader.compact();
+
+                } catch (IOException e) {
+                    if (connected) {
+                        servidor.getMetrics().handlerErrors.increment();
+                        ServerLog.warn("[!] Error con cliente {}: {}", clientName, e.getMessage());
+                    }
+                    break;
+                }
+            }
+
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al inicializar streams: {}", e.getMessage());
+        } finally {
+            disconnect();
+            if (reader != null) {
+                reader.release();
+            }
+        }
+    }
+
+    /**
+     * Bucle del escritor: saca mensajes de la cola y los escribe en el socket,
+     * codificados en la versión negociada. Termina cuando la cola se cierra y
+     * queda vacía. Con ventana de agrupación, las tramas que se acumulan se
+     * escriben juntas con un solo flush.
+     */
+    private void writeLoop() {
+        ServerMetrics metrics = servidor.getMetrics();
+        long window = servidor.getCoalesceNanos();
+        try {
+            if (window > 0) {
+                coalescingWriteLoop(window, servidor.getCoalesceBytes());
+            } else {
+                Frame frame;
+                while ((frame = outbound.take()) != null) {
+                    if (write(outputStream, frame)) {
+                        outputStream.flush();
+                        metrics.socketWrites.increment();
+                        metrics.framesPerWrite.record(1);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (connected) {
+                metrics.handlerErrors.increment();
+                ServerLog.error("[!] Error al enviar mensaje a {}: {}", clientName, e.getMessage());
+            }
+            abort();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeSocket();
+    }
+
+    /**
+     * Escritor con ventana: se escribe en cuanto no queda nada en la cola,
+     * salvo con tráfico intenso (la escritura anterior fue hace menos de una
+     * ventana), en que se espera hasta la ventana o hasta maxBytes a que
+     * lleguen más tramas. Un lote con algún mensaje de sistema no espera.
+     */
+    private void coalescingWriteLoop(long window, int maxBytes) throws IOException, InterruptedException {
+        ServerMetrics metrics = servidor.getMetrics();
+        BufferedOutputStream buffered = new BufferedOutputStream(outputStream, maxBytes);
+        long lastWrite = 0;
+        Frame frame;
+        while ((frame = outbound.take()) != null) {
+            long start = System.nanoTime();
+            boolean busy = start - lastWrite < window;
+            boolean urgent = frame.messageClass() == OutboundQueue.MessageClass.SYSTEM;
+            int frames = write(buffered, frame) ? 1 : 0;
+            long bytes = frame.sizeHint();
+            while (bytes < maxBytes) {
+                Frame next = outbound.poll();
+                if (next == null && busy && !urgent) {
+                    long remaining = start + window - System.nanoTime();
+                    next = remaining > 0 ? outbound.poll(remaining) : null;
+                }
+                if (next == null) {
+                    break;
+                }
+                if (write(buffered, next)) {
+                    frames++;
+                }
+                urgent |= next.messageClass() == OutboundQueue.MessageClass.SYSTEM;
+                bytes += next.sizeHint();
+            }
+            buffered.flush();
+            lastWrite = System.nanoTime();
+            metrics.socketWrites.increment();
+            metrics.framesPerWrite.record(frames);
+            if (busy) {
+                metrics.coalesceNanos.record(lastWrite - start);
+            }
+        }
+        buffered.flush();
+    }
+
+    /**
+     * Escribir una trama sin hacer flush (solo el hilo escritor)
+     * @return false si no se ha podido codificar y se ha descartado
+     */
+    private boolean write(OutputStream out, Frame frame) throws IOException {
+        ServerMetrics metrics = servidor.getMetrics();
+        boolean written = false;
+        try {
+            byte[] data = frame.bytes(outboundVersion);
+            out.write(data);
+            metrics.messagesOut.increment();
+            metrics.bytesOut.add(data.length);
+            written = true;
+        } catch (UTFDataFormatException e) {
+            metrics.handlerErrors.increment();
+            ServerLog.error("[!] Mensaje no enviado a {}: {}", clientName, e.getMessage());
+        }
+        if (frame.switchesToBinary()) {
+            outboundVersion = Protocol.VERSION_BINARY;
+        }
+        return written;
+    }
+
+    @Override
+    protected void onQueued() {
+        // El escritor espera en la propia cola: no hace falta avisarle
+    }
+
+    /**
+     * Desconectar cliente: se deja de aceptar mensajes y el escritor cierra el
+     * socket cuando termina de vaciar la cola (o al agotarse LINGER_MS).
+     */
+    @Override
+    public void disconnect() {
+        connected = false;
+        if (!closing.compareAndSet(false, true)) {
+            return;
+        }
+
+        outbound.close();
+        servidor.removeClient(this);
+        if (outputStream == null) {
+            // El escritor nunca llegó a arrancar
+            closeSocket();
+        } else {
+            servidor.schedule(this::closeSocket, ServidorChat.LINGER_MS);
+        }
+    }
+
+    @Override
+    protected void abort() {
+        connected = false;
+        closing.set(true);
+        outbound.clear();
+        closeSocket();
+        servidor.removeClient(this);
+    }
+
+    /**
+     * Cerrar streams y socket (una sola vez)
+     */
+    private void closeSocket() {
+        if (!socketClosed.compareAndSet(false, true)) {
+            return;
+        }
+
+        // Cancelar los hilos de esta conexión
+        if (scope != null) {
+            scope.shutdown();
+        }
+
+        try {
+            if (inputStream != null) inputStream.close();
+            if (outputStream != null) outputStream.close();
+            if (socket != null && !socket.isClosed()) socket.close();
+        } catch (IOException e) {
+            ServerLog.error("[!] Error al cerrar conexión: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public String getIpAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+}
@@ -0,0 +1,411 @@
+package centrodecontrol;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Mesa de soporte: reparte las conversaciones de los ciudadanos entre los
+ * agentes conectados a este nodo.
+ *
+ * Con la mesa activa, lo que un ciudadano escribe en el lobby no se reparte
+ * a todos: abre (o continúa) su conversación, que se asigna al agente con
+ * menos conversaciones abiertas y se queda con él hasta que la cierra. Si
+ * todos están al máximo, espera en una cola por orden de llegada y el
+ * ciudadano ve su posición. Los agentes están en un árbol ordenado por carga,
+ * así que elegir uno o cambiar su carga cuesta O(log agentes). Todo el estado
+ * se protege con el monitor de la mesa; los mensajes se encolan al salir de
+ * él para no llamar a las colas de salida con el bloqueo tomado.
+ */
+final class SupportDesk {
+
+    /** Primeros de la cola a los que se avisa cuando cambia su posición */
+    private static final int POSITION_UPDATES = 10;
+
+    /** Mensajes que se guardan de una conversación en cola hasta que la atiende un agente */
+    private static final int MAX_PENDING = 20;
+
+    /**
+     * Agente conectado. Su carga (conversations) solo cambia fuera del árbol.
+     */
+    static final class Agent {
+        final ClientHandler client;
+        final long id;
+        final Set<Conversation> conversations = new LinkedHashSet<>();
+
+        Agent(ClientHandler client, long id) {
+            this.client = client;
+            this.id = id;
+        }
+
+        int load() {
+            return conversations.size();
+        }
+    }
+
+    /**
+     * Conversación de un ciudadano, asignada a un agente o esperando en la cola
+     */
+    static final class Conversation {
+        final String key;
+        final String citizenName;
+        ClientHandler citizen;
+        Agent agent;
+        long queuedAt;
+        int announcedPosition;
+        final List<String> pending = new ArrayList<>();
+
+        Conversation(String key, String citizenName) {
+            this.key = key;
+            this.citizenName = citizenName;
+        }
+    }
+
+    /**
+     * Mensaje que se encola al destinatario al salir del monitor
+     */
+    private static final class Delivery {
+        final ClientHandler client;
+        final Frame frame;
+
+        Delivery(ClientHandler client, Frame frame) {
+            this.client = client;
+            this.frame = frame;
+        }
+    }
+
+    // Menos carga primero; a igual carga, el que lleva más tiempo conectado
+    private final TreeSet<Agent> agents = new TreeSet<>(
+        Comparator.comparingInt(Agent::load).thenComparingLong(agent -> agent.id));
+    private final Map<ClientHandler, Agent> byClient = new HashMap<>();
+    private final Map<String, Conversation> conversations = new HashMap<>();
+    private final ArrayDeque<Conversation> waiting = new ArrayDeque<>();
+
+    private final byte[] agentKey;
+    private final int capacity;
+    private final ServerMetrics metrics;
+    private long nextAgentId = 0;
+
+    /**
+     * @param agentKey clave que presentan los agentes en [AGENT]
+     * @param capacity conversaciones abiertas a la vez por agente
+     */
+    SupportDesk(String agentKey, int capacity, ServerMetrics metrics) {
+        this.agentKey = agentKey.getBytes(StandardCharsets.UTF_8);
+        this.capacity = Math.max(1, capacity);
+        this.metrics = metrics;
+    }
+
+    /**
+     * ¿Es la clave de los agentes? (comparación en tiempo constante)
+     */
+    boolean checkKey(String key) {
+        return MessageDigest.isEqual(agentKey, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Un agente empieza a atender: recibe lo que esté esperando en la cola
+     */
+    void addAgent(ClientHandler client) {
+        List<Delivery> out = new ArrayList<>();
+        synchronized (this) {
+            Agent agent = new Agent(client, nextAgentId++);
+            byClient.put(client, agent);
+            agents.add(agent);
+            drainQueue(out);
+        }
+        send(out);
+    }
+
+    /**
+     * Un agente se desconecta: sus conversaciones vuelven al principio de la
+     * cola, en el mismo orden, y se reparten entre los demás
+     */
+    void removeAgent(ClientHandler client) {
+        List<Delivery> out = new ArrayList<>();
+        synchronized (this) {
+            Agent agent = byClient.remove(client);
+            if (agent == null) {
+                return;
+            }
+            agents.remove(agent);
+            List<Conversation> orphaned = new ArrayList<>(agent.conversations);
+            long now = System.nanoTime();
+            for (int i = orphaned.size() - 1; i >= 0; i--) {
+                Conversation conversation = orphaned.get(i);
+                conversation.agent = null;
+                if (conversation.citizen == null) {
+                    conversations.remove(conversation.key);
+                    continue;
+                }
+                conversation.queuedAt = now;
+                conversation.announcedPosition = 0;
+                waiting.addFirst(conversation);
+                system(out, conversation.citizen, "Tu agente se ha desconectado, te atenderá otro");
+            }
+            drainQueue(out);
+        }
+        send(out);
+    }
+
+    /**
+     * Mensaje de un ciudadano a la mesa: va a su agente, o abre una
+     * conversación nueva (asignada o en cola)
+     */
+    void citizenMessage(ClientHandler citizen, String text) {
+        List<Delivery> out = new ArrayList<>();
+        synchronized (this) {
+            String key = ClientRegistry.normalize(citizen.clientName);
+            Conversation conversation = conversations.get(key);
+            if (conversation == null) {
+                conversation = new Conversation(key, citizen.clientName);
+                conversation.citizen = citizen;
+                conversations.put(key, conversation);
+                conversation.pending.add(text);
+                Agent agent = freeAgent();
+                if (agent != null) {
+                    assign(conversation, agent, out);
+                } else {
+                    conversation.queuedAt = System.nanoTime();
+                    waiting.addLast(conversation);
+                    conversation.announcedPosition = waiting.size();
+                    system(out, citizen, "Todos los agentes están ocupados. Estás en la posición " +
+                        waiting.size() + " de la cola");
+                }
+            } else {
+                // Puede ser una conexión nueva del mismo ciudadano
+                conversation.citizen = citizen;
+                if (conversation.agent != null) {
+                    out.add(new Delivery(conversation.agent.client,
+                        Frame.of(Protocol.SUPPORT, conversation.citizenName + " " + text)));
+                } else {
+                    if (conversation.pending.size() < MAX_PENDING) {
+                        conversation.pending.add(text);
+                    }
+                    conversation.announcedPosition = positionOf(conversation);
+                    system(out, citizen, "Sigues en la cola, posición " + conversation.announcedPosition);
+                }
+            }
+        }
+        send(out);
+    }
+
+    /**
+     * Respuesta de un agente a uno de sus ciudadanos ("ciudadano texto")
+     */
+    void agentReply(ClientHandler client, String body) {
+        List<Delivery> out = new ArrayList<>();
+        synchronized (this) {
+            int space = body.indexOf(' ');
+            String name = space > 0 ? body.substring(0, space) : body.trim();
+            Conversation conversation = ownConversation(client, name, out);
+            if (conversation == null) {
+                // Ya se ha avisado al agente
+            } else if (conversation.citizen == null) {
+                system(out, client, "Error: " + conversation.citizenName + " está desconectado");
+            } else if (space > 0) {
+                out.add(new Delivery(conversation.citizen, Frame.of(Protocol.MSG, body.substring(space + 1))));
+            }
+        }
+        send(out);
+    }
+
+    /**
+     * Un agente da por cerrada una conversación y queda libre para la siguiente
+     */
+    void resolve(ClientHandler client, String name) {
+        List<Delivery> out = new ArrayList<>();
+        synchronized (this) {
+            Conversation conversation = ownConversation(client, name.trim(), out);
+            if (conversation != null) {
+                close(conversation);
+                if (conversation.citizen != null) {
+                    system(out, conversation.citizen, "El agente ha cerrado la conversación");
+                }
+                system(out, client, "Conversación con " + conversation.citizenName + " cerrada");
+                drainQueue(out);
+            }
+        }
+        send(out);
+    }
+
+    /**
+     * Un ciudadano se va. Si esperaba, sale de la cola. Si ya tenía agente,
+     * la conversación se cierra solo con [LOGOUT]: tras un corte sigue
+     * asignada al mismo agente por si vuelve, y el agente decide cerrarla.
+     */
+    void citizenLeft(ClientHandler citizen, boolean loggedOut) {
+        if (citizen.clientName == null) {
+            return;
+        }
+        List<Delivery> out = new ArrayList<>();
+        synchronized (this) {
+            Conversation conversation = conversations.get(ClientRegistry.normalize(citizen.clientName));
+            if (conversation == null || conversation.citizen != citizen) {
+                return;
+            }
+            if (conversation.agent == null) {
+                waiting.remove(conversation);
+                conversations.remove(conversation.key);
+                announcePositions(out);
+            } else if (loggedOut) {
+                Agent agent = conversation.agent;
+                close(conversation);
+                system(out, agent.client, conversation.citizenName + " ha cerrado la conversación");
+                drainQueue(out);
+            } else {
+                conversation.citizen = null;
+                system(out, conversation.agent.client, conversation.citizenName + " se ha desconectado");
+            }
+        }
+        send(out);
+    }
+
+    /**
+     * Agente con menos carga si aún tiene hueco
+     */
+    private Agent freeAgent() {
+        if (agents.isEmpty()) {
+            return null;
+        }
+        Agent agent = agents.first();
+        return agent.load() < capacity ? agent : null;
+    }
+
+    private void assign(Conversation conversation, Agent agent, List<Delivery> out) {
+        agents.remove(agent);
+        agent.conversations.add(conversation);
+        agents.add(agent);
+        conversation.agent = agent;
+        metrics.supportAssigned.increment();
+        if (conversation.queuedAt != 0) {
+            metrics.supportWaitNanos.record(System.nanoTime() - conversation.queuedAt);
+            conversation.queuedAt = 0;
+        }
+        ServerLog.info("[Soporte] {} atiende a {} ({} conversaciones)",
+            agent.client.getClientName(), conversation.citizenName, agent.load());
+
+        system(out, conversation.citizen, "Te atiende " + agent.client.getClientName());
+        system(out, agent.client, "Nueva conversación con " + conversation.citizenName);
+        for (String text : conversation.pending) {
+            out.add(new Delivery(agent.client, Frame.of(Protocol.SUPPORT, conversation.citizenName + " " + text)));
+        }
+        conversation.pending.clear();
+    }
+
+    private void close(Conversation conversation) {
+        Agent agent = conversation.agent;
+        conversations.remove(conversation.key);
+        agents.remove(agent);
+        agent.conversations.remove(conversation);
+        agents.add(agent);
+        conversation.agent = null;
+    }
+
+    /**
+     * Asignar lo que espera mientras haya agentes con hueco
+     */
+    private void drainQueue(List<Delivery> out) {
+        boolean moved = false;
+        Agent agent;
+        while (!waiting.isEmpty() && (agent = freeAgent()) != null) {
+            assign(waiting.pollFirst(), agent, out);
+            moved = true;
+        }
+        if (moved || !waiting.isEmpty()) {
+            announcePositions(out);
+        }
+    }
+
+    /**
+     * Avisar a los primeros de la cola cuya posición ha cambiado (a los demás,
+     * cuando lleguen a los primeros puestos o vuelvan a escribir)
+     */
+    private void announcePositions(List<Delivery> out) {
+        int position = 0;
+        for (Conversation conversation : waiting) {
+            if (++position > POSITION_UPDATES) {
+                break;
+            }
+            if (conversation.announcedPosition != position) {
+                conversation.announcedPosition = position;
+                system(out, conversation.citizen, "Estás en la posición " + position + " de la cola");
+            }
+        }
+    }
+
+    private int positionOf(Conversation conversation) {
+        int position = 0;
+        for (Conversation queued : waiting) {
+            position++;
+            if (queued == conversation) {
+                break;
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Conversación de un ciudadano que atiende este agente; si no, se le avisa
+     */
+    private Conversation ownConversation(ClientHandler client, String name, List<Delivery> out) {
+        Agent agent = byClient.get(client);
+        Conversation conversation = conversations.get(ClientRegistry.normalize(name));
+        if (agent == null || conversation == null || conversation.agent != agent) {
+            system(out, client, "Error: No tienes ninguna conversación con " + name);
+            return null;
+        }
+        return conversation;
+    }
+
+    private static void system(List<Delivery> out, ClientHandler client, String text) {
+        out.add(new Delivery(client, Frame.of(Protocol.SYSTEM, text)));
+    }
+
+    private static void send(List<Delivery> out) {
+        for (Delivery delivery : out) {
+            delivery.client.sendFrame(delivery.frame);
+        }
+    }
+
+    /**
+     * Agentes conectados y su carga, de menos a más ocupado
+     */
+    synchronized List<String> describeAgents() {
+        List<String> lines = new ArrayList<>();
+        for (Agent agent : agents) {
+            List<String> names = new ArrayList<>();
+            for (Conversation conversation : agent.conversations) {
+                names.add(conversation.citizen != null ? conversation.citizenName
+                    : conversation.citizenName + " (desconectado)");
+            }
+            lines.add(agent.client.getClientName() + ": " + agent.load() + "/" + capacity +
+                (names.isEmpty() ? "" : " - " + String.join(", ", names)));
+        }
+        return lines;
+    }
+
+    synchronized int agentCount() {
+        return agents.size();
+    }
+
+    synchronized int conversationCount() {
+        return conversations.size();
+    }
+
+    synchronized int queued() {
+        return waiting.size();
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+}
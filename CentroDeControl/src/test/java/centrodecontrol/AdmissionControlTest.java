@@ -0,0 +1,133 @@
+package centrodecontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Control de admisión: ajuste de los límites por ventanas y reserva de
+ * repartos
+ */
+public class AdmissionControlTest {
+
+    private static final long TARGET = 1_000_000;
+
+    private ServerMetrics metrics;
+    private AdmissionControl admission;
+
+    @Before
+    public void setUp() {
+        metrics = new ServerMetrics();
+        admission = new AdmissionControl(TARGET, 1000, 100, metrics);
+    }
+
+    /**
+     * Cerrar una ventana en la que todas las muestras tienen el mismo retraso
+     */
+    private void window(long delayNanos, int connections) {
+        for (int i = 0; i < 50; i++) {
+            metrics.queueDelayWindow.record(delayNanos);
+        }
+        admission.adjust(connections);
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertEquals(expected, actual, expected / 100.0);
+    }
+
+    @Test
+    public void unaVentanaSueltaNoSatura() {
+        window(3 * TARGET / 2, 600);
+        assertNear(3 * TARGET / 4, admission.getDelayNanos());
+        assertFalse(admission.isSaturated());
+        assertEquals(1000, admission.getConnectionLimit());
+
+        // La segunda seguida ya pasa del objetivo también suavizada
+        window(3 * TARGET / 2, 100);
+        assertNear(9 * TARGET / 8, admission.getDelayNanos());
+        assertTrue(admission.isSaturated());
+        assertFalse(admission.admitLogin());
+        assertEquals(1, metrics.loginsShed.sum());
+    }
+
+    @Test
+    public void bajaEnProporcionAlExceso() {
+        window(3 * TARGET / 2, 100);
+        window(3 * TARGET / 2, 100);
+        // Gradiente objetivo/suavizado = 1 / 1.125
+        double gradient = (double) TARGET / admission.getDelayNanos();
+        assertEquals((int) (1000 * gradient), admission.getConnectionLimit());
+        assertEquals((int) (100 * gradient), admission.getBroadcastLimit());
+    }
+
+    @Test
+    public void comoMuchoALaMitadYNuncaPorDebajoDeLoUsado() {
+        window(100 * TARGET, 100);
+        assertTrue(admission.isSaturated());
+        assertEquals(500, admission.getConnectionLimit());
+        assertEquals(50, admission.getBroadcastLimit());
+
+        window(100 * TARGET, 400);
+        assertEquals(400, admission.getConnectionLimit());
+        for (int i = 0; i < 5; i++) {
+            window(100 * TARGET, 0);
+        }
+        assertEquals(16, admission.getConnectionLimit());
+        assertEquals(4, admission.getBroadcastLimit());
+    }
+
+    @Test
+    public void subeLaRaizCuadradaSoloSiSeUsa() {
+        window(100 * TARGET, 100);
+        assertEquals(500, admission.getConnectionLimit());
+
+        // Sin muestras suficientes la ventana cuenta como retraso 0, y con
+        // la última ventana por debajo del objetivo ya no está saturado
+        admission.adjust(500);
+        assertFalse(admission.isSaturated());
+        assertEquals(500 + 22, admission.getConnectionLimit());
+        admission.adjust(300);
+        assertEquals(522 + 22, admission.getConnectionLimit());
+
+        // Con menos de la mitad en uso no sube
+        admission.adjust(100);
+        assertEquals(544, admission.getConnectionLimit());
+
+        // Ni pasa del máximo
+        for (int i = 0; i < 50; i++) {
+            admission.adjust(1000);
+        }
+        assertEquals(1000, admission.getConnectionLimit());
+    }
+
+    @Test
+    public void laReservaDeRepartosNoPasaDelLimite() throws InterruptedException {
+        window(100 * TARGET, 0);
+        window(100 * TARGET, 0);
+        int limit = admission.getBroadcastLimit();
+        assertEquals(25, limit);
+
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    admission.tryAcquireBroadcast();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(limit, admission.getInFlight());
+        assertEquals(8000 - limit, metrics.broadcastsShed.sum());
+
+        // Lo que ya está en curso frena la bajada
+        window(100 * TARGET, 0);
+        assertEquals(limit, admission.getBroadcastLimit());
+        admission.broadcastFinished();
+        assertTrue(admission.tryAcquireBroadcast());
+        assertFalse(admission.tryAcquireBroadcast());
+    }
+}
@@ -0,0 +1,202 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Diario de mensajes: reproducción, lectura por offset, recuperación tras un
+ * corte y retención
+ */
+public class ChatJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<ChatJournal> opened = new ArrayList<>();
+
+    @After
+    public void closeAll() {
+        for (ChatJournal journal : opened) {
+            journal.close();
+        }
+    }
+
+    private ChatJournal open(Path directory, int segmentSize, long retentionBytes) throws IOException {
+        ChatJournal journal = new ChatJournal(directory, segmentSize, retentionBytes, 0, 1000);
+        journal.open();
+        opened.add(journal);
+        return journal;
+    }
+
+    private static List<String> bodies(ChatJournal journal, long afterOffset) throws IOException {
+        List<String> bodies = new ArrayList<>();
+        journal.replay(afterOffset, (offset, timestamp, opcode, room, sender, body) -> bodies.add(body));
+        return bodies;
+    }
+
+    @Test
+    public void reproduceLoPosteriorAUnOffsetEnOrden() throws IOException {
+        ChatJournal journal = open(folder.getRoot().toPath(), 64 * 1024, 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, journal.append(Protocol.MSG, "sala", "ana", "m" + i));
+        }
+
+        assertEquals(List.of("m2", "m3", "m4"), bodies(journal, 1));
+        assertEquals(5, bodies(journal, -1).size());
+        assertTrue(bodies(journal, 4).isEmpty());
+    }
+
+    @Test
+    public void elVisitantePuedeCortarLaReproduccion() throws IOException {
+        ChatJournal journal = open(folder.getRoot().toPath(), 64 * 1024, 0);
+        for (int i = 0; i < 5; i++) {
+            journal.append(Protocol.MSG, "sala", "ana", "m" + i);
+        }
+
+        List<Long> seen = new ArrayList<>();
+        long visited = journal.replay(-1, (offset, timestamp, opcode, room, sender, body) -> {
+            seen.add(offset);
+            return offset < 2;
+        });
+        assertEquals(3, visited);
+        assertEquals(List.of(0L, 1L, 2L), seen);
+    }
+
+    @Test
+    public void conservaSalaRemitenteYOpcode() throws IOException {
+        ChatJournal journal = open(folder.getRoot().toPath(), 64 * 1024, 0);
+        journal.append(Protocol.SYSTEM, ChatJournal.ALL_ROOMS, "", "aviso ñ");
+
+        journal.replay(-1, (offset, timestamp, opcode, room, sender, body) -> {
+            assertEquals(Protocol.SYSTEM, opcode);
+            assertEquals(ChatJournal.ALL_ROOMS, room);
+            assertEquals("", sender);
+            assertEquals("aviso ñ", body);
+            assertTrue(timestamp > 0);
+            return true;
+        });
+    }
+
+    @Test
+    public void leeRegistrosSueltosPorOffsetEntreSegmentos() throws IOException {
+        // Segmentos pequeños para que los offsets caigan en varios y lejos de las entradas del índice
+        ChatJournal journal = open(folder.getRoot().toPath(), 2048, 0);
+        for (int i = 0; i < 300; i++) {
+            journal.append(Protocol.MSG, "sala", "ana", "m" + i);
+        }
+        assertTrue(journal.segmentCount() > 1);
+
+        List<String> read = new ArrayList<>();
+        long visited = journal.read(new long[] {0, 31, 33, 150, 299, 1000},
+            (offset, timestamp, opcode, room, sender, body) -> read.add(body));
+        assertEquals(5, visited);
+        assertEquals(List.of("m0", "m31", "m33", "m150", "m299"), read);
+    }
+
+    @Test
+    public void leePorOffsetSegmentosQueYaEstabanEnDisco() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        ChatJournal first = open(directory, 2048, 0);
+        for (int i = 0; i < 200; i++) {
+            first.append(Protocol.MSG, "sala", "ana", "m" + i);
+        }
+        first.close();
+
+        ChatJournal reopened = open(directory, 2048, 0);
+        List<String> read = new ArrayList<>();
+        reopened.read(new long[] {5, 77, 199}, (offset, timestamp, opcode, room, sender, body) -> read.add(body));
+        assertEquals(List.of("m5", "m77", "m199"), read);
+    }
+
+    @Test
+    public void alReabrirSigueDondeSeQuedo() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        ChatJournal first = open(directory, 64 * 1024, 0);
+        for (int i = 0; i < 3; i++) {
+            first.append(Protocol.MSG, "sala", "ana", "m" + i);
+        }
+        first.close();
+
+        ChatJournal reopened = open(directory, 64 * 1024, 0);
+        assertEquals(3, reopened.nextOffset());
+        assertEquals(3, reopened.append(Protocol.MSG, "sala", "ana", "m3"));
+        assertEquals(List.of("m0", "m1", "m2", "m3"), bodies(reopened, -1));
+    }
+
+    @Test
+    public void descartaElRegistroConCrcIncorrectoYLoQueLeSigue() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        ChatJournal first = open(directory, 64 * 1024, 0);
+        for (int i = 0; i < 4; i++) {
+            first.append(Protocol.MSG, "sala", "ana", "m" + i);
+        }
+        first.close();
+
+        // Estropear el cuerpo del tercer registro, como una escritura a medias
+        Path segment;
+        try (var files = Files.list(directory)) {
+            segment = files.filter(file -> file.toString().endsWith(".journal")).findFirst().orElseThrow();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            long pos = 0;
+            for (int i = 0; i < 2; i++) {
+                header.clear();
+                channel.read(header, pos);
+                pos += 8 + header.getInt(0);
+            }
+            header.clear();
+            channel.read(header, pos);
+            long last = pos + 8 + header.getInt(0) - 1;
+            channel.write(ByteBuffer.wrap(new byte[] {'X'}), last);
+        }
+
+        ChatJournal recovered = open(directory, 64 * 1024, 0);
+        assertEquals(2, recovered.nextOffset());
+        assertEquals(List.of("m0", "m1"), bodies(recovered, -1));
+        assertEquals(2, recovered.append(Protocol.MSG, "sala", "ana", "nuevo"));
+        assertEquals(List.of("m0", "m1", "nuevo"), bodies(recovered, -1));
+    }
+
+    @Test
+    public void borraLosSegmentosQueSuperanLaRetencion() throws IOException {
+        ChatJournal journal = open(folder.getRoot().toPath(), 1024, 4096);
+        for (int i = 0; i < 500; i++) {
+            journal.append(Protocol.MSG, "sala", "ana", "mensaje " + i);
+        }
+
+        assertTrue(journal.sizeOnDisk() <= 4096 + 1024);
+        long first = journal.firstOffset();
+        assertTrue(first > 0);
+        List<Long> offsets = new ArrayList<>();
+        journal.replay(-1, (offset, timestamp, opcode, room, sender, body) -> offsets.add(offset));
+        assertEquals(first, (long) offsets.get(0));
+        assertEquals(499L, (long) offsets.get(offsets.size() - 1));
+    }
+
+    @Test
+    public void rechazaTamanosDeSegmentoNoValidos() {
+        Path directory = folder.getRoot().toPath();
+        for (int size : new int[] {0, -1, ChatJournal.MAX_SEGMENT_MB * 1024 * 1024 + 1}) {
+            try {
+                new ChatJournal(directory, size, 0, 0, 1000);
+                fail("Debería rechazar " + size);
+            } catch (IllegalArgumentException expected) {
+                // No se llega a mapear nada
+            }
+        }
+    }
+}
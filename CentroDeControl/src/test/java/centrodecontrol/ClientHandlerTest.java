@@ -0,0 +1,77 @@
+package centrodecontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Confirmación de los mensajes numerados: a quién se anuncia el [ACK]
+ */
+public class ClientHandlerTest {
+
+    private ServidorChat servidor;
+
+    @Before
+    public void setUp() {
+        servidor = new ServidorChat(0);
+    }
+
+    private TestClient connect() {
+        TestClient client = new TestClient(servidor, null);
+        servidor.addClient(client);
+        return client;
+    }
+
+    /**
+     * Cuerpos de los [ACK] recibidos, y vaciar lo recibido
+     */
+    private static List<String> acks(TestClient client) {
+        List<String> acks = new ArrayList<>();
+        for (Frame frame : client.received) {
+            if (frame.opcode() == Protocol.ACK) {
+                acks.add(frame.body());
+            }
+        }
+        client.received.clear();
+        return acks;
+    }
+
+    @Test
+    public void unClienteV1NoRecibeElAckDelLogin() {
+        TestClient client = connect();
+        client.processMessage("[LOGIN]ana");
+
+        assertEquals("ana", client.getClientName());
+        assertEquals(List.of(), acks(client));
+    }
+
+    @Test
+    public void unClienteV2RecibeElAckDelLogin() {
+        TestClient client = connect();
+        client.processMessage("[HELLO]2");
+        client.processMessage("[LOGIN]ana");
+
+        assertEquals(List.of("0"), acks(client));
+    }
+
+    @Test
+    public void unClienteV1QueNumeraRecibeElAckConSuPrimerSeq() {
+        TestClient client = connect();
+        client.processMessage("[LOGIN]ana");
+        acks(client);
+
+        client.processMessage("[SEQ]1 hola");
+        client.flushAck();
+        assertEquals(List.of("1"), acks(client));
+
+        // Un reenvío de lo ya procesado se confirma sin repartirlo
+        client.processMessage("[SEQ]1 hola");
+        client.flushAck();
+        assertEquals(List.of("1"), acks(client));
+        assertEquals(1, servidor.getMetrics().duplicatesDropped.sum());
+    }
+}
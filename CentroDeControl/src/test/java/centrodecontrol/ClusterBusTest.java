@@ -0,0 +1,203 @@
+package centrodecontrol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Saludo del bus del clúster: clave compartida y pruebas que no se pueden
+ * reenviar de un enlace a otro
+ */
+public class ClusterBusTest {
+
+    private static final int HELLO = 1;
+    private static final int AUTH = 12;
+    private static final String SECRET = "cambiame";
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    private final List<ClusterBus> buses = new ArrayList<>();
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        for (ClusterBus bus : buses) {
+            bus.stop();
+        }
+    }
+
+    private ClusterBus start(String nodeId, String secret, ClusterBus... peers) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (ClusterBus peer : peers) {
+            addresses.add(new InetSocketAddress(LOOPBACK, peer.getPort()));
+        }
+        ClusterBus bus = new ClusterBus(new ServidorChat(0), nodeId, 0, LOOPBACK, secret, addresses, 0);
+        bus.start();
+        buses.add(bus);
+        return bus;
+    }
+
+    private static boolean awaitNodes(ClusterBus bus, List<String> nodes, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (System.currentTimeMillis() < deadline) {
+            if (bus.connectedNodes().equals(nodes)) {
+                return true;
+            }
+            Thread.sleep(20);
+        }
+        return bus.connectedNodes().equals(nodes);
+    }
+
+    /**
+     * Conexión en crudo al bus, como la abriría alguien sin la clave
+     */
+    private final class RawLink {
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        RawLink(ClusterBus bus) throws IOException {
+            Socket socket = new Socket(LOOPBACK, bus.getPort());
+            socket.setSoTimeout(500);
+            sockets.add(socket);
+            in = new DataInputStream(socket.getInputStream());
+            out = new DataOutputStream(socket.getOutputStream());
+        }
+
+        void send(int type, String... fields) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream message = new DataOutputStream(bytes);
+            message.writeByte(type);
+            message.writeLong(0);
+            message.writeShort(fields.length);
+            for (String field : fields) {
+                byte[] data = field.getBytes(StandardCharsets.UTF_8);
+                message.writeInt(data.length);
+                message.write(data);
+            }
+            out.writeInt(4 + bytes.size());
+            out.writeInt(1);
+            bytes.writeTo(out);
+            out.flush();
+        }
+
+        /**
+         * Siguiente mensaje: tipo seguido de sus cadenas
+         */
+        List<String> receive() throws IOException {
+            in.readInt();
+            assertEquals(1, in.readInt());
+            List<String> message = new ArrayList<>();
+            message.add(String.valueOf(in.readUnsignedByte()));
+            in.readLong();
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                message.add(new String(data, StandardCharsets.UTF_8));
+            }
+            return message;
+        }
+
+        void assertSilent() throws IOException {
+            try {
+                fail("No debería recibir nada, pero ha llegado " + receive());
+            } catch (SocketTimeoutException expected) {
+                // Nada más
+            }
+        }
+
+        void assertClosed() throws IOException {
+            try {
+                in.readInt();
+                fail("El enlace debería estar cerrado");
+            } catch (EOFException expected) {
+                // Cerrado por el otro extremo
+            }
+        }
+    }
+
+    @Test
+    public void conLaMismaClaveSeConectan() throws Exception {
+        ClusterBus a = start("a", SECRET);
+        ClusterBus b = start("b", SECRET, a);
+
+        assertTrue(awaitNodes(a, List.of("b"), 5000));
+        assertTrue(awaitNodes(b, List.of("a"), 5000));
+    }
+
+    @Test
+    public void conOtraClaveNoSeConectan() throws Exception {
+        ClusterBus a = start("a", SECRET);
+        ClusterBus b = start("b", "otra", a);
+
+        Thread.sleep(500);
+        assertEquals(List.of(), a.connectedNodes());
+        assertEquals(List.of(), b.connectedNodes());
+    }
+
+    @Test
+    public void quienAceptaNoFirmaNadaAntesDeRecibirLaPrueba() throws Exception {
+        ClusterBus a = start("a", SECRET);
+        RawLink link = new RawLink(a);
+        link.assertSilent();
+
+        link.send(HELLO, "b", "00112233445566778899aabbccddeeff");
+        List<String> hello = link.receive();
+        assertEquals(List.of(String.valueOf(HELLO), "a"), hello.subList(0, 2));
+        link.assertSilent();
+    }
+
+    @Test
+    public void unaPruebaReenviadaSeRechaza() throws Exception {
+        ClusterBus a = start("a", SECRET);
+        ClusterBus b = start("b", SECRET);
+
+        // Se presenta ante a como b y le pasa a b el reto de a, como si fuera a
+        RawLink toA = new RawLink(a);
+        String ownChallenge = "00112233445566778899aabbccddeeff";
+        toA.send(HELLO, "b", ownChallenge);
+        String challengeA = toA.receive().get(2);
+        RawLink toB = new RawLink(b);
+        toB.send(HELLO, "a", challengeA);
+        String challengeB = toB.receive().get(2);
+        toB.assertSilent();
+
+        // Ni siquiera una prueba auténtica de otro enlace sirve en este
+        String relayed = ClusterBus.proof(SECRET.getBytes(StandardCharsets.UTF_8), ClusterBus.ACCEPTOR,
+            "a", challengeA, "b", challengeB);
+        toA.send(AUTH, relayed);
+        toA.assertClosed();
+        assertEquals(List.of(), a.connectedNodes());
+        assertEquals(List.of(), b.connectedNodes());
+    }
+
+    @Test
+    public void laPruebaDependeDelPapelYDeLosRetos() {
+        byte[] secret = SECRET.getBytes(StandardCharsets.UTF_8);
+        String proof = ClusterBus.proof(secret, ClusterBus.CONNECTOR, "a", "r1", "b", "r2");
+
+        assertEquals(proof, ClusterBus.proof(secret, ClusterBus.CONNECTOR, "a", "r1", "b", "r2"));
+        assertNotEquals(proof, ClusterBus.proof(secret, ClusterBus.ACCEPTOR, "a", "r1", "b", "r2"));
+        assertNotEquals(proof, ClusterBus.proof(secret, ClusterBus.CONNECTOR, "b", "r2", "a", "r1"));
+        assertNotEquals(proof, ClusterBus.proof(secret, ClusterBus.CONNECTOR, "a", "r1", "b", "r3"));
+        assertNotEquals(proof, ClusterBus.proof(secret, ClusterBus.CONNECTOR, "a", "r1b", "", "r2"));
+        assertNotEquals(proof, ClusterBus.proof("otra".getBytes(StandardCharsets.UTF_8), ClusterBus.CONNECTOR,
+            "a", "r1", "b", "r2"));
+    }
+}
@@ -0,0 +1,168 @@
+package centrodecontrol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lectura de tramas v1 y v2: partidas, varias por lectura y demasiado grandes
+ */
+public class FrameReaderTest {
+
+    private static final int BUFFER_SIZE = 64;
+    private static final int MAX_FRAME = 1024;
+
+    private ServerMetrics metrics;
+    private FrameReader reader;
+
+    @Before
+    public void setUp() {
+        metrics = new ServerMetrics();
+        reader = new FrameReader(new BufferPool(BUFFER_SIZE, 4), new BufferPool(4 + MAX_FRAME, 4),
+            MAX_FRAME, MAX_FRAME, metrics);
+    }
+
+    /**
+     * Stream que entrega como mucho chunk bytes en cada read
+     */
+    private static final class Trickle extends ByteArrayInputStream {
+        private final int chunk;
+
+        Trickle(byte[] data, int chunk) {
+            super(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    private static byte[] concat(byte[]... frames) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            out.write(frame, 0, frame.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] legacy(String message) throws IOException {
+        return Protocol.encodeUTF(message);
+    }
+
+    private static byte[] binary(int opcode, String body) {
+        return Protocol.encodeBinary(opcode, Protocol.FLAGS_NONE, body);
+    }
+
+    private static String repeat(char c, int count) {
+        return String.valueOf(c).repeat(count);
+    }
+
+    /**
+     * Leer hasta el final del stream despachando las tramas como lo hace la
+     * conexión; cada trama se devuelve como "opcode:cuerpo"
+     */
+    private List<String> readAll(InputStream in, int version) throws IOException {
+        List<String> frames = new ArrayList<>();
+        while (reader.readFrom(in) > 0) {
+            InboundFrame frame;
+            while ((frame = reader.next(version)) != null) {
+                frames.add(frame.opcode() + ":" + frame.body());
+            }
+            reader.compact();
+        }
+        return frames;
+    }
+
+    @Test
+    public void v1VariasTramasEnUnaLectura() throws IOException {
+        byte[] data = concat(legacy("[JOIN]policia"), legacy("hola"), legacy("[PING]"));
+        List<String> frames = readAll(new ByteArrayInputStream(data), Protocol.VERSION_LEGACY);
+
+        assertEquals(List.of(Protocol.JOIN + ":policia", Protocol.TEXT + ":hola", Protocol.PING + ":"), frames);
+    }
+
+    @Test
+    public void v1TramaPartidaEnVariasLecturas() throws IOException {
+        byte[] data = concat(legacy("[JOIN]policia"), legacy("¿qué tal?"));
+        List<String> frames = readAll(new Trickle(data, 1), Protocol.VERSION_LEGACY);
+
+        assertEquals(List.of(Protocol.JOIN + ":policia", Protocol.TEXT + ":¿qué tal?"), frames);
+    }
+
+    @Test
+    public void v2TramaPartidaEnVariasLecturas() throws IOException {
+        byte[] data = concat(binary(Protocol.MSG, "hola"), binary(Protocol.JOIN, "bomberos"),
+            binary(Protocol.PING, ""));
+        for (int chunk = 1; chunk <= data.length; chunk++) {
+            List<String> frames = readAll(new Trickle(data, chunk), Protocol.VERSION_BINARY);
+            assertEquals("lecturas de " + chunk + " bytes",
+                List.of(Protocol.MSG + ":hola", Protocol.JOIN + ":bomberos", Protocol.PING + ":"), frames);
+        }
+    }
+
+    @Test
+    public void tramaMayorQueElBufferNormal() throws IOException {
+        String big = repeat('x', 3 * BUFFER_SIZE);
+        byte[] v1 = concat(legacy("antes"), legacy(big), legacy("despues"));
+        assertEquals(List.of(Protocol.TEXT + ":antes", Protocol.TEXT + ":" + big, Protocol.TEXT + ":despues"),
+            readAll(new Trickle(v1, 10), Protocol.VERSION_LEGACY));
+
+        byte[] v2 = concat(binary(Protocol.MSG, "antes"), binary(Protocol.MSG, big), binary(Protocol.MSG, "despues"));
+        assertEquals(List.of(Protocol.MSG + ":antes", Protocol.MSG + ":" + big, Protocol.MSG + ":despues"),
+            readAll(new Trickle(v2, 10), Protocol.VERSION_BINARY));
+    }
+
+    @Test
+    public void cambiaDeVersionEntreTramas() throws IOException {
+        byte[] data = concat(legacy("[HELLO]2"), binary(Protocol.MSG, "hola"));
+        reader.readFrom(new ByteArrayInputStream(data));
+
+        InboundFrame hello = reader.next(Protocol.VERSION_LEGACY);
+        assertEquals(Protocol.HELLO, hello.opcode());
+        assertEquals("2", hello.body());
+        InboundFrame msg = reader.next(Protocol.VERSION_BINARY);
+        assertEquals(Protocol.MSG, msg.opcode());
+        assertEquals("hola", msg.body());
+        assertNull(reader.next(Protocol.VERSION_BINARY));
+    }
+
+    @Test
+    public void v1RechazaUnaTramaDemasiadoGrande() throws IOException {
+        reader.readFrom(new ByteArrayInputStream(legacy(repeat('x', MAX_FRAME + 1))));
+        try {
+            reader.next(Protocol.VERSION_LEGACY);
+            fail("Debería rechazar la trama");
+        } catch (IOException expected) {
+            assertEquals(1, metrics.framesOversized.sum());
+        }
+    }
+
+    @Test
+    public void v2RechazaLaTramaConSoloLaCabecera() throws IOException {
+        // Basta la longitud: no se espera a que llegue el cuerpo
+        byte[] header = {0, 0, (byte) ((MAX_FRAME + 1) >>> 8), (byte) (MAX_FRAME + 1)};
+        reader.readFrom(new ByteArrayInputStream(header));
+        try {
+            reader.next(Protocol.VERSION_BINARY);
+            fail("Debería rechazar la trama");
+        } catch (IOException expected) {
+            assertEquals(1, metrics.framesOversized.sum());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void v2RechazaUnaTramaDemasiadoCorta() throws IOException {
+        reader.readFrom(new ByteArrayInputStream(new byte[] {0, 0, 0, 2, (byte) Protocol.MSG, 0}));
+        reader.next(Protocol.VERSION_BINARY);
+    }
+}
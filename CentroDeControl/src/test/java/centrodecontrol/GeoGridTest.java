@@ -0,0 +1,115 @@
+package centrodecontrol;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Alertas por zona: qué suscripciones cubren un punto según su radio
+ */
+public class GeoGridTest {
+
+    private static final double MADRID_LAT = 40.4168;
+    private static final double MADRID_LON = -3.7038;
+
+    /** Metros de un grado de latitud */
+    private static final double DEGREE = Math.PI * 6_371_000 / 180;
+
+    private static Set<GeoGrid.Subscription> match(GeoGrid grid, double latitude, double longitude) {
+        Set<GeoGrid.Subscription> matched = new HashSet<>();
+        int count = grid.match(latitude, longitude, matched::add);
+        assertEquals(count, matched.size());
+        return matched;
+    }
+
+    @Test
+    public void soloDentroDelRadio() {
+        GeoGrid grid = new GeoGrid(1_000, 50_000);
+        GeoGrid.Subscription near = grid.add(null, MADRID_LAT, MADRID_LON, 2_000);
+
+        // 1,5 km al norte sí, 2,5 km no
+        assertEquals(Set.of(near), match(grid, MADRID_LAT + 1_500 / DEGREE, MADRID_LON));
+        assertEquals(Set.of(), match(grid, MADRID_LAT + 2_500 / DEGREE, MADRID_LON));
+    }
+
+    @Test
+    public void cubreCeldasVecinas() {
+        // Celdas de 1 km y un radio de 10 km: la alerta cae varias celdas más allá
+        GeoGrid grid = new GeoGrid(1_000, 50_000);
+        GeoGrid.Subscription wide = grid.add(null, MADRID_LAT, MADRID_LON, 10_000);
+        GeoGrid.Subscription small = grid.add(null, MADRID_LAT, MADRID_LON, 1_000);
+
+        double east = MADRID_LON + 8_000 / (DEGREE * Math.cos(Math.toRadians(MADRID_LAT)));
+        assertEquals(Set.of(wide), match(grid, MADRID_LAT, east));
+        assertEquals(Set.of(wide, small), match(grid, MADRID_LAT, MADRID_LON));
+    }
+
+    @Test
+    public void elRadioSeRecortaAlMaximo() {
+        GeoGrid grid = new GeoGrid(1_000, 5_000);
+        GeoGrid.Subscription subscription = grid.add(null, MADRID_LAT, MADRID_LON, 100_000);
+
+        assertEquals(5_000, subscription.radiusMeters);
+        assertEquals(Set.of(), match(grid, MADRID_LAT + 6_000 / DEGREE, MADRID_LON));
+    }
+
+    @Test
+    public void cruzaElAntimeridiano() {
+        GeoGrid grid = new GeoGrid(1_000, 50_000);
+        GeoGrid.Subscription fiji = grid.add(null, -17.0, 179.99, 5_000);
+
+        assertEquals(Set.of(fiji), match(grid, -17.0, -179.99));
+    }
+
+    @Test
+    public void cercaDelPolo() {
+        GeoGrid grid = new GeoGrid(1_000, 50_000);
+        GeoGrid.Subscription base = grid.add(null, 89.9, 0, 30_000);
+
+        // Al otro lado del polo, a unos 22 km
+        assertEquals(Set.of(base), match(grid, 89.9, 180));
+    }
+
+    @Test
+    public void quitarLaSuscripcion() {
+        GeoGrid grid = new GeoGrid(1_000, 50_000);
+        GeoGrid.Subscription subscription = grid.add(null, MADRID_LAT, MADRID_LON, 2_000);
+        assertEquals(1, grid.size());
+
+        grid.remove(subscription);
+        grid.remove(subscription);
+        grid.remove(null);
+        assertEquals(0, grid.size());
+        assertEquals(Set.of(), match(grid, MADRID_LAT, MADRID_LON));
+    }
+
+    @Test
+    public void coincideConRecorrerTodas() {
+        GeoGrid grid = new GeoGrid(2_000, 20_000);
+        Random random = new Random(42);
+        List<GeoGrid.Subscription> all = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            all.add(grid.add(null, MADRID_LAT + random.nextGaussian() * 0.3,
+                MADRID_LON + random.nextGaussian() * 0.3, 1 + random.nextInt(20_000)));
+        }
+
+        for (int i = 0; i < 200; i++) {
+            double latitude = MADRID_LAT + random.nextGaussian() * 0.3;
+            double longitude = MADRID_LON + random.nextGaussian() * 0.3;
+            Set<GeoGrid.Subscription> expected = new HashSet<>();
+            for (GeoGrid.Subscription subscription : all) {
+                if (GeoGrid.distanceMeters(latitude, longitude, subscription.latitude, subscription.longitude)
+                        <= subscription.radiusMeters) {
+                    expected.add(subscription);
+                }
+            }
+            assertEquals(expected, match(grid, latitude, longitude));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package centrodecontrol;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Vencimiento y cancelación de temporizadores en la rueda
+ */
+public class HashedTimingWheelTest {
+
+    private HashedTimingWheel wheel;
+
+    @Before
+    public void setUp() {
+        // 8 casillas de 10 ms: una vuelta son 80 ms
+        wheel = new HashedTimingWheel("rueda-test", 10, TimeUnit.MILLISECONDS, 8);
+    }
+
+    @After
+    public void tearDown() {
+        wheel.stop();
+    }
+
+    @Test
+    public void venceDespuesDelRetardo() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(0, wheel.armedCount());
+    }
+
+    @Test
+    public void venceTrasVariasVueltas() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 250, TimeUnit.MILLISECONDS);
+
+        assertFalse(fired.await(150, TimeUnit.MILLISECONDS));
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    @Test
+    public void cancelarEvitaQueVenza() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        HashedTimingWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        assertEquals(1, wheel.armedCount());
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(0, wheel.armedCount());
+
+        // Un temporizador posterior sirve de referencia de que la rueda ha pasado por esa casilla
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 100, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(2, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void noSePuedeCancelarUnoVencido() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        HashedTimingWheel.Timeout timeout = wheel.schedule(fired::countDown, 10, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void cadaUnoVenceUnaSolaVez() throws InterruptedException {
+        int count = 1000;
+        CountDownLatch fired = new CountDownLatch(count);
+        AtomicInteger runs = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            wheel.schedule(() -> {
+                runs.incrementAndGet();
+                fired.countDown();
+            }, i % 200, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(count, runs.get());
+        assertEquals(0, wheel.armedCount());
+    }
+}
@@ -0,0 +1,93 @@
+package centrodecontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Percentiles del histograma de latencias
+ */
+public class LatencyHistogramTest {
+
+    /** Error relativo máximo de un percentil (un sub-bucket de 128) */
+    private static final double ERROR = 1.0 / 128;
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue("esperado ~" + expected + ", obtenido " + actual,
+            actual >= expected && actual <= expected + Math.max(1, expected * ERROR));
+    }
+
+    @Test
+    public void vacioDevuelveCero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(99));
+        assertEquals(0, histogram.count());
+        assertEquals(0.0, histogram.mean(), 0.0);
+    }
+
+    @Test
+    public void valoresPequenosSonExactos() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50, histogram.percentile(50));
+        assertEquals(90, histogram.percentile(90));
+        assertEquals(99, histogram.percentile(99));
+        assertEquals(100, histogram.percentile(100));
+        assertEquals(1, histogram.percentile(0));
+        assertEquals(50.5, histogram.mean(), 1e-9);
+    }
+
+    @Test
+    public void percentilesConErrorRelativoAcotado() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // De 1 ms a 10 s en nanosegundos
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1_000_000);
+        }
+        assertClose(5_000_000_000L, histogram.percentile(50));
+        assertClose(9_900_000_000L, histogram.percentile(99));
+        assertClose(9_990_000_000L, histogram.percentile(99.9));
+        assertEquals(10_000_000_000L, histogram.percentile(100));
+        assertEquals(10_000_000_000L, histogram.max());
+    }
+
+    @Test
+    public void nuncaSuperaElMaximo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_000_001);
+        assertEquals(1_000_001, histogram.percentile(99));
+    }
+
+    @Test
+    public void negativosCuentanComoCero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+    }
+
+    @Test
+    public void sumarYReiniciar() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            a.record(10);
+        }
+        for (int i = 0; i < 10; i++) {
+            b.record(1000);
+        }
+        a.add(b);
+
+        assertEquals(100, a.count());
+        assertEquals(10, a.percentile(90));
+        assertClose(1000, a.percentile(91));
+        assertEquals(1000, a.max());
+
+        a.reset();
+        assertEquals(0, a.count());
+        assertEquals(0, a.max());
+        assertEquals(0, a.percentile(50));
+    }
+}
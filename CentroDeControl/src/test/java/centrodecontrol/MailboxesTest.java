@@ -0,0 +1,109 @@
+package centrodecontrol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Buzones de desconectados: anillo que descarta el más antiguo y caducidad
+ */
+public class MailboxesTest {
+
+    private ServerMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new ServerMetrics();
+    }
+
+    @Test
+    public void llenoDescartaElMasAntiguo() {
+        Mailboxes mailboxes = new Mailboxes(3, 60_000, metrics);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Math.min(i + 1, 3), mailboxes.add("ana", 10 + i, 0));
+        }
+        assertEquals(3, mailboxes.pending());
+        assertEquals(2, metrics.mailboxDropped.sum());
+        assertEquals(5, metrics.mailboxQueued.sum());
+
+        assertArrayEquals(new long[] {12, 13, 14}, mailboxes.take("ana", 0));
+        assertEquals(0, mailboxes.pending());
+        assertEquals(0, mailboxes.size());
+    }
+
+    @Test
+    public void conservaElOrdenAlCrecerYDarLaVuelta() {
+        // Empieza con 4 huecos y crece hasta 6; luego da la vuelta
+        Mailboxes mailboxes = new Mailboxes(6, 60_000, metrics);
+        for (int i = 0; i < 9; i++) {
+            mailboxes.add("ana", i, 0);
+        }
+        assertArrayEquals(new long[] {3, 4, 5, 6, 7, 8}, mailboxes.take("ana", 0));
+        assertEquals(3, metrics.mailboxDropped.sum());
+    }
+
+    @Test
+    public void unBuzonPorNombre() {
+        Mailboxes mailboxes = new Mailboxes(10, 60_000, metrics);
+        mailboxes.add("Ana", 1, 0);
+        mailboxes.add(" ana ", 2, 0);
+        mailboxes.add("luis", 3, 0);
+        assertEquals(2, mailboxes.size());
+        assertEquals(3, mailboxes.pending());
+
+        assertArrayEquals(new long[] {1, 2}, mailboxes.take("ANA", 0));
+        assertArrayEquals(new long[0], mailboxes.take("ana", 0));
+        assertEquals(1, mailboxes.pending());
+        assertEquals("@ana", Mailboxes.keyOf(" Ana"));
+        assertTrue(Mailboxes.isMailboxKey(Mailboxes.keyOf("ana")));
+        assertFalse(Mailboxes.isMailboxKey("policia"));
+    }
+
+    @Test
+    public void alSacarlosSeDescartanLosCaducados() {
+        Mailboxes mailboxes = new Mailboxes(10, 100, metrics);
+        mailboxes.add("ana", 1, 0);
+        mailboxes.add("ana", 2, 50);
+        mailboxes.add("ana", 3, 120);
+
+        assertArrayEquals(new long[] {3}, mailboxes.take("ana", 160));
+        assertEquals(2, metrics.mailboxDropped.sum());
+        assertEquals(0, mailboxes.pending());
+    }
+
+    @Test
+    public void alAnotarSeDescartanLosCaducados() {
+        Mailboxes mailboxes = new Mailboxes(10, 100, metrics);
+        mailboxes.add("ana", 1, 0);
+        assertEquals(1, mailboxes.add("ana", 2, 200));
+        assertEquals(1, mailboxes.pending());
+        assertEquals(1, metrics.mailboxDropped.sum());
+    }
+
+    @Test
+    public void elTemporizadorQuitaLosBuzonesVacios() {
+        Mailboxes mailboxes = new Mailboxes(10, 100, metrics);
+        mailboxes.add("ana", 1, 0);
+        mailboxes.add("luis", 2, 80);
+
+        mailboxes.expire(150);
+        assertEquals(1, mailboxes.size());
+        assertEquals(1, mailboxes.pending());
+        assertEquals(1, metrics.mailboxDropped.sum());
+        assertArrayEquals(new long[0], mailboxes.take("ana", 150));
+        assertArrayEquals(new long[] {2}, mailboxes.take("luis", 150));
+    }
+
+    @Test
+    public void limiteDeBuzones() {
+        Mailboxes mailboxes = new Mailboxes(1, 60_000, metrics);
+        for (int i = 0; i < 10_000; i++) {
+            assertTrue(mailboxes.canAccept("n" + i));
+            mailboxes.add("n" + i, i, 0);
+        }
+        assertFalse(mailboxes.canAccept("otro"));
+        // A un buzón que ya existe se le puede seguir escribiendo
+        assertTrue(mailboxes.canAccept("N0"));
+    }
+}
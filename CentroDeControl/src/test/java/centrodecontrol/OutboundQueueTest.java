@@ -0,0 +1,161 @@
+package centrodecontrol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Políticas de desbordamiento y orden de los carriles de la cola de salida
+ */
+public class OutboundQueueTest {
+
+    private static Frame chat(String body) {
+        return Frame.of(Protocol.MSG, body);
+    }
+
+    private static Frame system(String body) {
+        return Frame.of(Protocol.SYSTEM, body);
+    }
+
+    @Test
+    public void dropOldestDescartaElChatMasAntiguo() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        Frame first = chat("1");
+        Frame second = chat("2");
+        Frame third = chat("3");
+
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(first));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(second));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(third));
+
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getDropped());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void dropOldestSinNadaDescartableDescartaElNuevo() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        Frame notice = system("aviso");
+        queue.offer(notice);
+
+        assertEquals(OutboundQueue.Result.DROPPED, queue.offer(chat("1")));
+        assertEquals(1, queue.getDropped());
+        assertSame(notice, queue.poll());
+    }
+
+    @Test
+    public void disconnectConLaColaLlena() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.OverflowPolicy.DISCONNECT,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(chat("1")));
+        assertEquals(OutboundQueue.Result.DISCONNECT, queue.offer(chat("2")));
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void neverDropHaceHuecoConChat() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        queue.offer(chat("1"));
+        Frame first = system("a");
+        Frame second = system("b");
+        queue.offer(first);
+
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(second));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getDropped());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void neverDropSeAdmiteHastaElDobleDeLaCapacidad() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.NEVER_DROP,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(OutboundQueue.Result.QUEUED, queue.offer(system(String.valueOf(i))));
+        }
+        assertEquals(OutboundQueue.Result.DISCONNECT, queue.offer(system("4")));
+        assertEquals(4, queue.size());
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void cerradaNoAdmiteMasPeroSeVacia() throws InterruptedException {
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        Frame pending = chat("1");
+        queue.offer(pending);
+        queue.close();
+
+        assertEquals(OutboundQueue.Result.CLOSED, queue.offer(chat("2")));
+        assertSame(pending, queue.take());
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void elSistemaAdelantaAlChat() {
+        OutboundQueue queue = new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        Frame first = chat("1");
+        Frame second = chat("2");
+        Frame notice = system("aviso");
+        queue.offer(first);
+        queue.offer(second);
+        assertFalse(queue.hasUrgent());
+        queue.offer(notice);
+        assertTrue(queue.hasUrgent());
+
+        assertSame(notice, queue.poll());
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    public void trasUnaRafagaDeSistemaPasaUnoDeChat() {
+        int notices = OutboundQueue.URGENT_BURST + 4;
+        OutboundQueue queue = new OutboundQueue(64, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        queue.offer(chat("c1"));
+        queue.offer(chat("c2"));
+        for (int i = 0; i < notices; i++) {
+            queue.offer(system("s" + i));
+        }
+
+        StringBuilder order = new StringBuilder();
+        Frame frame;
+        while ((frame = queue.poll()) != null) {
+            order.append(frame.body()).append(' ');
+        }
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < OutboundQueue.URGENT_BURST; i++) {
+            expected.append('s').append(i).append(' ');
+        }
+        expected.append("c1 ");
+        for (int i = OutboundQueue.URGENT_BURST; i < notices; i++) {
+            expected.append('s').append(i).append(' ');
+        }
+        expected.append("c2 ");
+        assertEquals(expected.toString(), order.toString());
+    }
+
+    @Test
+    public void loDelDiarioVaEnOrdenConElChat() {
+        OutboundQueue queue = new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+            OutboundQueue.OverflowPolicy.NEVER_DROP);
+        Frame first = Frame.journaled(Protocol.MSG, "1", 10);
+        Frame notice = Frame.journaled(Protocol.SYSTEM, "aviso", 11);
+        queue.offer(first);
+        queue.offer(notice);
+
+        assertEquals(OutboundQueue.MessageClass.CHAT, notice.messageClass());
+        assertFalse(queue.hasUrgent());
+        assertSame(first, queue.poll());
+        assertSame(notice, queue.poll());
+    }
+}
@@ -0,0 +1,107 @@
+package centrodecontrol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cubos de tokens por cliente: ráfaga, recarga y expulsión
+ */
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void admiteLaRafagaYRechazaLaSiguiente() {
+        RateLimiter.Policy policy = new RateLimiter.Policy().limit(new RateLimiter.Limit(1, 3), Protocol.MSG);
+        RateLimiter limiter = new RateLimiter(policy, 0);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire(Protocol.MSG, 0));
+        }
+        assertFalse(limiter.tryAcquire(Protocol.MSG, 0));
+    }
+
+    @Test
+    public void recargaAlRitmoSostenido() {
+        RateLimiter.Policy policy = new RateLimiter.Policy().limit(new RateLimiter.Limit(2, 2), Protocol.MSG);
+        RateLimiter limiter = new RateLimiter(policy, 0);
+        assertTrue(limiter.tryAcquire(Protocol.MSG, 0));
+        assertTrue(limiter.tryAcquire(Protocol.MSG, 0));
+        assertFalse(limiter.tryAcquire(Protocol.MSG, 0));
+
+        // A 2/s, en 250 ms aún no hay un token entero; en 500 ms sí
+        assertFalse(limiter.tryAcquire(Protocol.MSG, SECOND / 4));
+        assertTrue(limiter.tryAcquire(Protocol.MSG, SECOND / 2));
+        assertFalse(limiter.tryAcquire(Protocol.MSG, SECOND / 2));
+    }
+
+    @Test
+    public void laRecargaNoPasaDeLaRafaga() {
+        RateLimiter.Policy policy = new RateLimiter.Policy().limit(new RateLimiter.Limit(10, 3), Protocol.MSG);
+        RateLimiter limiter = new RateLimiter(policy, 0);
+
+        long later = 60 * SECOND;
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire(Protocol.MSG, later));
+        }
+        assertFalse(limiter.tryAcquire(Protocol.MSG, later));
+    }
+
+    @Test
+    public void losOpcodesDeUnGrupoCompartenCubo() {
+        RateLimiter.Policy policy = new RateLimiter.Policy()
+            .limit(new RateLimiter.Limit(1, 2), Protocol.JOIN, Protocol.LEAVE);
+        RateLimiter limiter = new RateLimiter(policy, 0);
+
+        assertTrue(limiter.tryAcquire(Protocol.JOIN, 0));
+        assertTrue(limiter.tryAcquire(Protocol.LEAVE, 0));
+        assertFalse(limiter.tryAcquire(Protocol.JOIN, 0));
+        // Sin cubo, sin límite
+        assertTrue(limiter.tryAcquire(Protocol.MSG, 0));
+    }
+
+    @Test
+    public void porDefectoLimitaLosPing() {
+        RateLimiter limiter = new RateLimiter(RateLimiter.Policy.defaults(), 0);
+        int admitted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (limiter.tryAcquire(Protocol.PING, 0)) {
+                admitted++;
+            }
+        }
+        assertEquals(5, admitted);
+        assertTrue(limiter.tryAcquire(Protocol.PONG, 0));
+    }
+
+    @Test
+    public void expulsaTrasDemasiadosRechazosEnLaVentana() {
+        RateLimiter limiter = new RateLimiter(new RateLimiter.Policy().kickAfter(3), 0);
+
+        assertFalse(limiter.shouldKick(limiter.strike(0)));
+        assertFalse(limiter.shouldKick(limiter.strike(1)));
+        assertTrue(limiter.shouldKick(limiter.strike(2)));
+
+        // Pasada la ventana, la cuenta empieza de nuevo
+        long later = RateLimiter.STRIKE_WINDOW_NANOS + 3;
+        assertEquals(1, limiter.strike(later));
+    }
+
+    @Test
+    public void parseDelLimite() {
+        RateLimiter.Limit withBurst = RateLimiter.Limit.parse("5:20");
+        assertEquals(5, withBurst.perSecond, 0.0);
+        assertEquals(20, withBurst.burst, 0.0);
+
+        RateLimiter.Limit withoutBurst = RateLimiter.Limit.parse("0.2");
+        assertEquals(0.2, withoutBurst.perSecond, 0.0);
+        assertEquals(1, withoutBurst.burst, 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rechazaRitmosNoValidos() {
+        RateLimiter.Limit.parse("0");
+    }
+}
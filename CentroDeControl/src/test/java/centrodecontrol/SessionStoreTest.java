@@ -0,0 +1,125 @@
+package centrodecontrol;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sesiones reanudables: guardar y cargar, y caducidad de los tokens
+ */
+public class SessionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServidorChat servidor;
+    private Path file;
+
+    @Before
+    public void setUp() {
+        servidor = new ServidorChat(0);
+        file = folder.getRoot().toPath().resolve("sesiones.dat");
+    }
+
+    private TestClient connect(String name, String... rooms) {
+        TestClient client = new TestClient(servidor, name);
+        servidor.addClient(client);
+        for (String room : rooms) {
+            client.processMessage("[JOIN]" + room);
+        }
+        return client;
+    }
+
+    @Test
+    public void guardarYCargarConservaLaSesion() throws IOException {
+        SessionStore store = new SessionStore(file, 60_000);
+        TestClient client = connect("ana", "bomberos", "policia");
+        SessionStore.Session session = store.open(client, 41);
+        store.detach(session, client);
+        store.save();
+
+        SessionStore loaded = new SessionStore(file, 60_000);
+        loaded.load();
+        SessionStore.Session restored = loaded.find(session.token);
+        assertNotNull(restored);
+        assertEquals("ana", restored.name);
+        assertEquals(41, restored.cursor);
+        assertEquals(session.lastSeq, restored.lastSeq);
+        assertEquals(session.expiresAt, restored.expiresAt);
+        // La sala activa va primero (al unirse a una sala se sale del lobby)
+        assertEquals(List.of("policia", "bomberos"), restored.rooms);
+        assertNull(restored.client);
+    }
+
+    @Test
+    public void losTokensSonDistintos() {
+        SessionStore store = new SessionStore(file, 60_000);
+        TestClient client = connect("ana");
+        String first = store.open(client, -1).token;
+        String second = store.open(client, -1).token;
+
+        assertEquals(24, first.length());
+        assertNotEquals(first, second);
+        assertNull(store.find("no-existe"));
+    }
+
+    @Test
+    public void caducaTrasElPlazoDesdeQueSeDesconecta() throws InterruptedException {
+        SessionStore store = new SessionStore(file, 20);
+        TestClient client = connect("ana");
+        SessionStore.Session session = store.open(client, -1);
+
+        // Conectada no caduca
+        Thread.sleep(40);
+        assertSame(session, store.find(session.token));
+
+        store.detach(session, client);
+        assertSame(session, store.find(session.token));
+        Thread.sleep(40);
+        assertNull(store.find(session.token));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void alCargarDescartaLasCaducadas() throws IOException, InterruptedException {
+        SessionStore store = new SessionStore(file, 20);
+        TestClient client = connect("ana");
+        SessionStore.Session session = store.open(client, -1);
+        store.save();
+        Thread.sleep(40);
+
+        SessionStore loaded = new SessionStore(file, 20);
+        loaded.load();
+        assertEquals(0, loaded.size());
+        assertNull(loaded.find(session.token));
+    }
+
+    @Test
+    public void anularLaSesion() {
+        SessionStore store = new SessionStore(file, 60_000);
+        SessionStore.Session session = store.open(connect("ana"), -1);
+        store.invalidate(session);
+        assertNull(store.find(session.token));
+    }
+
+    @Test
+    public void sinFicheroNoHayNadaQueCargar() throws IOException {
+        SessionStore store = new SessionStore(file, 60_000);
+        store.load();
+        assertEquals(0, store.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rechazaUnFicheroDeOtroFormato() throws IOException {
+        Files.write(file, new byte[] {'S', 'E', 'S', '1', 0, 0, 0, 0});
+        new SessionStore(file, 60_000).load();
+    }
+}
@@ -0,0 +1,159 @@
+package centrodecontrol;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mesa de soporte: reparto por carga, cola de espera y agentes que se van
+ */
+public class SupportDeskTest {
+
+    private ServidorChat servidor;
+    private ServerMetrics metrics;
+
+    @Before
+    public void setUp() {
+        servidor = new ServidorChat(0);
+        metrics = new ServerMetrics();
+    }
+
+    private TestClient client(String name) {
+        return new TestClient(servidor, name);
+    }
+
+    private static TestClient citizen(SupportDesk desk, TestClient citizen, String text) {
+        desk.citizenMessage(citizen, text);
+        return citizen;
+    }
+
+    @Test
+    public void asignaAlAgenteConMenosCarga() {
+        SupportDesk desk = new SupportDesk("clave", 2, metrics);
+        TestClient ana = client("ana");
+        TestClient luis = client("luis");
+        desk.addAgent(ana);
+        desk.addAgent(luis);
+
+        // A igual carga, el que se conectó antes
+        assertEquals(List.of("Te atiende ana"), citizen(desk, client("c1"), "hola").drain());
+        assertEquals(List.of("Te atiende luis"), citizen(desk, client("c2"), "hola").drain());
+        assertEquals(List.of("Te atiende ana"), citizen(desk, client("c3"), "hola").drain());
+        assertEquals(List.of("luis: 1/2 - c2", "ana: 2/2 - c1, c3"), desk.describeAgents());
+        assertEquals(List.of("Nueva conversación con c1", "c1 hola", "Nueva conversación con c3", "c3 hola"),
+            ana.drain());
+        assertEquals(3, metrics.supportAssigned.sum());
+    }
+
+    @Test
+    public void mensajesEntreCiudadanoYAgente() {
+        SupportDesk desk = new SupportDesk("clave", 2, metrics);
+        TestClient ana = client("ana");
+        TestClient luis = client("luis");
+        desk.addAgent(ana);
+        desk.addAgent(luis);
+        TestClient pepe = citizen(desk, client("pepe"), "hola");
+        ana.drain();
+        pepe.drain();
+
+        desk.citizenMessage(pepe, "se ha caído un árbol");
+        assertEquals(List.of("pepe se ha caído un árbol"), ana.drain());
+        desk.agentReply(ana, "pepe vamos para allá");
+        assertEquals(List.of("vamos para allá"), pepe.drain());
+
+        // Otro agente no puede contestar ni cerrar la conversación
+        desk.agentReply(luis, "pepe hola");
+        desk.resolve(luis, "pepe");
+        assertEquals(List.of("Error: No tienes ninguna conversación con pepe",
+            "Error: No tienes ninguna conversación con pepe"), luis.drain());
+        assertTrue(pepe.drain().isEmpty());
+    }
+
+    @Test
+    public void colaConPosiciones() {
+        SupportDesk desk = new SupportDesk("clave", 1, metrics);
+        TestClient ana = client("ana");
+        desk.addAgent(ana);
+        TestClient c1 = citizen(desk, client("c1"), "uno");
+        TestClient c2 = citizen(desk, client("c2"), "dos");
+        TestClient c3 = citizen(desk, client("c3"), "tres");
+
+        assertEquals(List.of("Todos los agentes están ocupados. Estás en la posición 1 de la cola"), c2.drain());
+        assertEquals(List.of("Todos los agentes están ocupados. Estás en la posición 2 de la cola"), c3.drain());
+        assertEquals(2, desk.queued());
+
+        desk.citizenMessage(c3, "sigo aquí");
+        assertEquals(List.of("Sigues en la cola, posición 2"), c3.drain());
+
+        // Sale el primero de la cola: el siguiente avanza
+        desk.citizenLeft(c2, false);
+        assertEquals(List.of("Estás en la posición 1 de la cola"), c3.drain());
+        assertEquals(1, desk.queued());
+
+        // Al cerrar la conversación, el agente recibe la siguiente con lo que había escrito
+        ana.drain();
+        c1.drain();
+        desk.resolve(ana, "c1");
+        assertEquals(List.of("El agente ha cerrado la conversación"), c1.drain());
+        assertEquals(List.of("Te atiende ana"), c3.drain());
+        assertEquals(List.of("Conversación con c1 cerrada", "Nueva conversación con c3", "c3 tres", "c3 sigo aquí"),
+            ana.drain());
+        assertEquals(0, desk.queued());
+        assertEquals(1, desk.conversationCount());
+    }
+
+    @Test
+    public void reencolaAlDesconectarseElAgente() {
+        SupportDesk desk = new SupportDesk("clave", 1, metrics);
+        TestClient ana = client("ana");
+        TestClient luis = client("luis");
+        desk.addAgent(ana);
+        desk.addAgent(luis);
+        TestClient c1 = citizen(desk, client("c1"), "uno");
+        citizen(desk, client("c2"), "dos");
+        TestClient c3 = citizen(desk, client("c3"), "tres");
+        c1.drain();
+        c3.drain();
+
+        // La conversación de ana pasa por delante de la que ya esperaba
+        desk.removeAgent(ana);
+        assertEquals(1, desk.agentCount());
+        assertEquals(List.of("Tu agente se ha desconectado, te atenderá otro", "Estás en la posición 1 de la cola"),
+            c1.drain());
+        assertEquals(List.of("Estás en la posición 2 de la cola"), c3.drain());
+
+        TestClient eva = client("eva");
+        desk.addAgent(eva);
+        assertEquals(List.of("Te atiende eva"), c1.drain());
+        assertEquals(List.of("Estás en la posición 1 de la cola"), c3.drain());
+        assertEquals(List.of("Nueva conversación con c1"), eva.drain());
+        assertEquals(List.of("luis: 1/1 - c2", "eva: 1/1 - c1"), desk.describeAgents());
+    }
+
+    @Test
+    public void alIrseElAgenteSeDescartanLasDeCiudadanosDesconectados() {
+        SupportDesk desk = new SupportDesk("clave", 1, metrics);
+        TestClient ana = client("ana");
+        desk.addAgent(ana);
+        TestClient c1 = citizen(desk, client("c1"), "uno");
+
+        // Tras un corte sigue asignada por si vuelve
+        desk.citizenLeft(c1, false);
+        assertEquals(1, desk.conversationCount());
+
+        desk.removeAgent(ana);
+        assertEquals(0, desk.conversationCount());
+        assertEquals(0, desk.queued());
+    }
+
+    @Test
+    public void clavesDeAgente() {
+        SupportDesk desk = new SupportDesk("clave", 1, metrics);
+        assertTrue(desk.checkKey("clave"));
+        assertFalse(desk.checkKey("otra"));
+        assertFalse(desk.checkKey(""));
+    }
+}
@@ -0,0 +1,54 @@
+package centrodecontrol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cliente sin red para los tests: su "escritor" vacía la cola en el acto y
+ * guarda lo recibido, como si el socket nunca se llenara.
+ */
+final class TestClient extends ClientHandler {
+
+    final List<Frame> received = new ArrayList<>();
+
+    TestClient(ServidorChat servidor, String name) {
+        super(servidor);
+        this.clientName = name;
+        this.connected = true;
+    }
+
+    @Override
+    protected void onQueued() {
+        Frame frame;
+        while ((frame = outbound.poll()) != null) {
+            received.add(frame);
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        connected = false;
+    }
+
+    @Override
+    protected void abort() {
+        connected = false;
+    }
+
+    @Override
+    public String getIpAddress() {
+        return "127.0.0.1";
+    }
+
+    /**
+     * Cuerpos recibidos hasta ahora, y vaciar la lista
+     */
+    List<String> drain() {
+        List<String> bodies = new ArrayList<>();
+        for (Frame frame : received) {
+            bodies.add(frame.body());
+        }
+        received.clear();
+        return bodies;
+    }
+}
@@ -32,6 +32,10 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        // SocketCliente registra con android.util.Log, que en los tests locales no hace nada
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
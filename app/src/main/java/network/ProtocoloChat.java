@@ -0,0 +1,245 @@
+package network;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import model.Incidencia;
+
+/**
+ * Codificación del protocolo binario (v2) del chat con el Centro de Control.
+ *
+ * Formato de trama:
+ * [longitud: int32][opcode: 1 byte][flags: 1 byte][offset: int64 si FLAG_OFFSET]
+ * [longitud cuerpo: varint][cuerpo UTF-8]
+ * donde la longitud cuenta todos los bytes que la siguen. El offset es la
+ * posición del mensaje en el diario del servidor y sirve para pedir con
+ * [REPLAY] lo que se haya perdido durante una desconexión.
+ *
+ * La aplicación sigue trabajando con cadenas con prefijo ("[MSG]hola"); esta
+ * clase las traduce a opcode + cuerpo y viceversa.
+ */
+public final class ProtocoloChat {
+
+    public static final int VERSION_LEGACY = 1;
+    public static final int VERSION_BINARIA = 2;
+
+    // Opcodes (los mismos que usa el servidor)
+    public static final int OP_TEXTO = 0;
+    public static final int OP_LOGIN = 1;
+    public static final int OP_MSG = 2;
+    public static final int OP_LOGOUT = 3;
+    public static final int OP_SYSTEM = 4;
+    public static final int OP_HELLO = 5;
+    public static final int OP_JOIN = 6;
+    public static final int OP_LEAVE = 7;
+    public static final int OP_REPLAY = 8;
+    public static final int OP_PING = 9;
+    public static final int OP_PONG = 10;
+    public static final int OP_RESUME = 11;
+    public static final int OP_SESSION = 12;
+    public static final int OP_SUBSCRIBE = 13;
+    public static final int OP_ALERT = 14;
+    public static final int OP_SEQ = 15;
+    public static final int OP_ACK = 16;
+    public static final int OP_AGENT = 17;
+    public static final int OP_SUPPORT = 18;
+    public static final int OP_RESOLVE = 19;
+
+    /** La trama incluye el offset del mensaje en el diario del servidor */
+    public static final int FLAG_OFFSET = 0x01;
+
+    /** Valor de offsetDe() cuando la trama no trae offset */
+    public static final long SIN_OFFSET = -1;
+
+    /** Prefijo legacy de cada opcode (null si no tiene) */
+    private static final String[] PREFIJOS = new String[256];
+
+    static {
+        PREFIJOS[OP_LOGIN] = "[LOGIN]";
+        PREFIJOS[OP_MSG] = "[MSG]";
+        PREFIJOS[OP_LOGOUT] = "[LOGOUT]";
+        PREFIJOS[OP_SYSTEM] = "[SYSTEM]";
+        PREFIJOS[OP_HELLO] = "[HELLO]";
+        PREFIJOS[OP_JOIN] = "[JOIN]";
+        PREFIJOS[OP_LEAVE] = "[LEAVE]";
+        PREFIJOS[OP_REPLAY] = "[REPLAY]";
+        PREFIJOS[OP_PING] = "[PING]";
+        PREFIJOS[OP_PONG] = "[PONG]";
+        PREFIJOS[OP_RESUME] = "[RESUME]";
+        PREFIJOS[OP_SESSION] = "[SESSION]";
+        PREFIJOS[OP_SUBSCRIBE] = "[SUBSCRIBE]";
+        PREFIJOS[OP_ALERT] = "[ALERT]";
+        PREFIJOS[OP_SEQ] = "[SEQ]";
+        PREFIJOS[OP_ACK] = "[ACK]";
+        PREFIJOS[OP_AGENT] = "[AGENT]";
+        PREFIJOS[OP_SUPPORT] = "[SUPPORT]";
+        PREFIJOS[OP_RESOLVE] = "[RESOLVE]";
+    }
+
+    private ProtocoloChat() {
+    }
+
+    /**
+     * Opcode de un mensaje con prefijo legacy
+     */
+    public static int opcodeDe(String mensaje) {
+        for (int opcode = 1; opcode < PREFIJOS.length; opcode++) {
+            if (PREFIJOS[opcode] != null && mensaje.startsWith(PREFIJOS[opcode])) {
+                return opcode;
+            }
+        }
+        return OP_TEXTO;
+    }
+
+    /**
+     * Convertir opcode + cuerpo a la cadena con prefijo que usa la aplicación
+     */
+    public static String aLegacy(int opcode, String cuerpo) {
+        String prefijo = PREFIJOS[opcode & 0xFF];
+        return prefijo != null ? prefijo + cuerpo : cuerpo;
+    }
+
+    /**
+     * Codificar un mensaje con prefijo como trama v2 completa
+     */
+    public static byte[] codificar(String mensaje) {
+        int opcode = opcodeDe(mensaje);
+        String prefijo = PREFIJOS[opcode];
+        String cuerpo = prefijo != null ? mensaje.substring(prefijo.length()) : mensaje;
+
+        byte[] datos = cuerpo.getBytes(StandardCharsets.UTF_8);
+        int tamVarint = tamanoVarint(datos.length);
+        int longitud = 2 + tamVarint + datos.length;
+
+        byte[] trama = new byte[4 + longitud];
+        trama[0] = (byte) (longitud >>> 24);
+        trama[1] = (byte) (longitud >>> 16);
+        trama[2] = (byte) (longitud >>> 8);
+        trama[3] = (byte) longitud;
+        trama[4] = (byte) opcode;
+        trama[5] = 0;
+
+        int pos = 6;
+        int valor = datos.length;
+        while ((valor & ~0x7F) != 0) {
+            trama[pos++] = (byte) ((valor & 0x7F) | 0x80);
+            valor >>>= 7;
+        }
+        trama[pos++] = (byte) valor;
+        System.arraycopy(datos, 0, trama, pos, datos.length);
+        return trama;
+    }
+
+    /**
+     * Decodificar el contenido de una trama v2 (lo que sigue a la longitud)
+     * y devolverlo como cadena con prefijo
+     */
+    public static String decodificar(byte[] datos) throws IOException {
+        if (datos.length < 3) {
+            throw new IOException("Trama binaria demasiado corta");
+        }
+        int opcode = datos[0] & 0xFF;
+
+        int pos = 2;
+        if ((datos[1] & FLAG_OFFSET) != 0) {
+            pos += 8;
+        }
+        int longitud = 0;
+        int desplazamiento = 0;
+        while (true) {
+            if (pos >= datos.length || desplazamiento > 28) {
+                throw new IOException("Longitud varint inválida");
+            }
+            byte b = datos[pos++];
+            longitud |= (b & 0x7F) << desplazamiento;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            desplazamiento += 7;
+        }
+        if (longitud < 0 || longitud > datos.length - pos) {
+            throw new IOException("Longitud de cuerpo inválida: " + longitud);
+        }
+        return aLegacy(opcode, new String(datos, pos, longitud, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Offset en el diario del servidor de una trama v2 (lo que sigue a la
+     * longitud), o SIN_OFFSET si no lo trae
+     */
+    public static long offsetDe(byte[] datos) {
+        if (datos.length < 10 || (datos[1] & FLAG_OFFSET) == 0) {
+            return SIN_OFFSET;
+        }
+        long offset = 0;
+        for (int i = 2; i < 10; i++) {
+            offset = (offset << 8) | (datos[i] & 0xFF);
+        }
+        return offset;
+    }
+
+    /**
+     * Mensaje de chat ([MSG]texto) numerado para que el servidor lo confirme
+     * con [ACK]: [SEQ]secuencia texto
+     */
+    public static String numerado(long secuencia, String mensaje) {
+        String cuerpo = mensaje.startsWith(PREFIJOS[OP_MSG]) ? mensaje.substring(PREFIJOS[OP_MSG].length()) : mensaje;
+        return PREFIJOS[OP_SEQ] + secuencia + " " + cuerpo;
+    }
+
+    /**
+     * Última secuencia que confirma un [ACK], o -1 si el mensaje no es válido
+     */
+    public static long secuenciaDeAck(String mensaje) {
+        try {
+            return Long.parseLong(mensaje.substring(PREFIJOS[OP_ACK].length()).trim());
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Mensaje [ALERT] para avisar de una incidencia a los vecinos:
+     * latitud;longitud;categoría;urgencia;título
+     */
+    public static String alerta(Incidencia incidencia) {
+        String categoria = incidencia.getCategoria() != null ? incidencia.getCategoria() : "Otros";
+        return String.format(Locale.ROOT, "[ALERT]%.6f;%.6f;%s;%s;%s",
+            incidencia.getLatitud(), incidencia.getLongitud(), categoria.replace(';', ','),
+            incidencia.getUrgencia(), incidencia.getTitulo());
+    }
+
+    /**
+     * Incidencia de un [ALERT] recibido (solo con posición, categoría,
+     * urgencia y título), o null si el mensaje no es una alerta válida
+     */
+    public static Incidencia incidenciaDeAlerta(String mensaje) {
+        String prefijo = PREFIJOS[OP_ALERT];
+        if (!mensaje.startsWith(prefijo)) {
+            return null;
+        }
+        String[] campos = mensaje.substring(prefijo.length()).split(";", 5);
+        if (campos.length < 5) {
+            return null;
+        }
+        Incidencia incidencia = new Incidencia(campos[4], "", campos[3], null);
+        incidencia.setCategoria(campos[2]);
+        try {
+            incidencia.setLatitud(Double.parseDouble(campos[0]));
+            incidencia.setLongitud(Double.parseDouble(campos[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return incidencia;
+    }
+
+    private static int tamanoVarint(int valor) {
+        int tam = 1;
+        while ((valor & ~0x7F) != 0) {
+            valor >>>= 7;
+            tam++;
+        }
+        return tam;
+    }
+}
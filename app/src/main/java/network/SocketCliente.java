@@ -6,16 +6,40 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import model.Incidencia;
 
 /**
  * Cliente Socket TCP nativo para el Chat de Soporte.
  * Implementa comunicación con el Centro de Control (servidor de escritorio).
  * Usa DataInputStream, DataOutputStream y gestión de hilos concurrentes.
+ * Al conectar negocia el protocolo binario (v2) y, si el servidor no lo
+ * admite, sigue con el protocolo de cadenas writeUTF (v1).
+ *
+ * Si el servidor confirma los mensajes (envía [ACK] al iniciar sesión), los
+ * [MSG] salen numerados ([SEQ]) y se guardan hasta que un [ACK] acumulado los
+ * confirma; los que quedan sin confirmar al perder la conexión se reenvían
+ * tras reconectar, al llegar el [ACK] del login, y si se reanuda la sesión
+ * el servidor descarta los que ya le habían llegado.
  */
 public class SocketCliente {
     
     private static final String TAG = "SocketCliente";
     
+    /** Tiempo máximo de espera de la respuesta a [HELLO] */
+    private static final int TIMEOUT_NEGOCIACION_MS = 2000;
+    
+    /** Tamaño máximo de una trama binaria recibida */
+    private static final int MAX_TRAMA = 1024 * 1024;
+    
+    /** Mensajes enviados sin confirmar como máximo */
+    private static final int VENTANA_MAXIMA = 128;
+    
     private String serverIp;
     private int serverPort;
     private Socket socket;
@@ -25,6 +49,31 @@ public class SocketCliente {
     private Thread recepcionThread;
     private boolean conectado = false;
     private boolean recibiendo = false;
+    private volatile int versionProtocolo = ProtocoloChat.VERSION_LEGACY;
+    private final Object bloqueoEscritura = new Object();
+    
+    // Último offset del diario recibido; se conserva entre reconexiones
+    private volatile long ultimoOffset = ProtocoloChat.SIN_OFFSET;
+    
+    // Token de sesión recibido en [SESSION]; también se conserva entre reconexiones
+    private volatile String tokenSesion;
+    
+    // Última suscripción a alertas ([SUBSCRIBE]...); se repite en cada conexión
+    private volatile String suscripcionAlertas;
+    
+    // Mensajes numerados sin confirmar, en orden, y último número asignado. Se
+    // conservan entre reconexiones y se tocan siempre con bloqueoEscritura
+    private final ArrayDeque<MensajePendiente> sinConfirmar = new ArrayDeque<>();
+    private long ultimaSecuencia = 0;
+    
+    // Hay pendientes de la conexión anterior: los nuevos esperan a que se reenvíen
+    private boolean reenvioPendiente = false;
+    
+    // Ya ha llegado el primer [ACK] o [SESSION] de esta conexión (se reinicia al conectar)
+    private boolean sesionIniciada = false;
+    
+    // El servidor confirma los mensajes con [ACK] (lo ha hecho alguna vez)
+    private volatile boolean servidorConfirma = false;
     
     private OnMessageListener messageListener;
     private OnConnectionListener connectionListener;
@@ -76,15 +125,31 @@ public class SocketCliente {
                     dataInputStream = new DataInputStream(socket.getInputStream());
                     dataOutputStream = new DataOutputStream(socket.getOutputStream());
                     
+                    // Lo pendiente de la conexión anterior sale antes que lo nuevo
+                    synchronized (bloqueoEscritura) {
+                        reenvioPendiente = !sinConfirmar.isEmpty();
+                    }
+                    sesionIniciada = false;
+                    
+                    // Negociar versión del protocolo antes de enviar nada más
+                    List<String> recibidos = negociarProtocolo();
+                    
                     conectado = true;
                     
-                    Log.d(TAG, "Conexión establecida con el servidor");
+                    Log.d(TAG, "Conexión establecida con el servidor (protocolo v" + versionProtocolo + ")");
                     
                     // Notificar conexión exitosa
                     if (connectionListener != null) {
                         connectionListener.onConnected();
                     }
                     
+                    // Entregar los mensajes que llegaron durante la negociación
+                    if (messageListener != null) {
+                        for (String mensaje : recibidos) {
+                            messageListener.onMessageReceived(mensaje);
+                        }
+                    }
+                    
                     // Iniciar hilo de recepción de mensajes
                     iniciarRecepcion();
                     
@@ -101,6 +166,79 @@ public class SocketCliente {
         conexionThread.start();
     }
     
+    /**
+     * Pide el protocolo v2 enviando "[HELLO]2". Un servidor nuevo responde
+     * "[HELLO]2" y desde ese momento ambos lados usan tramas binarias; un
+     * servidor antiguo no responde y se sigue en v1.
+     * @return mensajes recibidos mientras se esperaba la respuesta
+     */
+    private List<String> negociarProtocolo() throws IOException {
+        List<String> recibidos = new ArrayList<>();
+        versionProtocolo = ProtocoloChat.VERSION_LEGACY;
+        
+        escribirMensaje("[HELLO]" + ProtocoloChat.VERSION_BINARIA);
+        
+        socket.setSoTimeout(TIMEOUT_NEGOCIACION_MS);
+        try {
+            while (true) {
+                String mensaje = dataInputStream.readUTF();
+                if (mensaje.startsWith("[HELLO]")) {
+                    try {
+                        int version = Integer.parseInt(mensaje.substring(7).trim());
+                        if (version >= ProtocoloChat.VERSION_BINARIA) {
+                            versionProtocolo = ProtocoloChat.VERSION_BINARIA;
+                        }
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Respuesta de negociación inválida: " + mensaje);
+                    }
+                    break;
+                }
+                recibidos.add(mensaje);
+            }
+        } catch (SocketTimeoutException e) {
+            Log.d(TAG, "El servidor no admite el protocolo v2, usando v1");
+        } finally {
+            socket.setSoTimeout(0);
+        }
+        return recibidos;
+    }
+    
+    /**
+     * Lee un mensaje del servidor en la versión negociada (bloqueante)
+     */
+    private String leerMensaje() throws IOException {
+        if (versionProtocolo != ProtocoloChat.VERSION_BINARIA) {
+            return dataInputStream.readUTF();
+        }
+        int longitud = dataInputStream.readInt();
+        if (longitud < 3 || longitud > MAX_TRAMA) {
+            throw new IOException("Tamaño de trama no permitido: " + longitud);
+        }
+        byte[] datos = new byte[longitud];
+        dataInputStream.readFully(datos);
+        String mensaje = ProtocoloChat.decodificar(datos);
+        long offset = ProtocoloChat.offsetDe(datos);
+        if (offset > ultimoOffset) {
+            ultimoOffset = offset;
+        }
+        return mensaje;
+    }
+    
+    /**
+     * Escribe un mensaje en la versión negociada. Las escrituras se
+     * serializan para que dos envíos simultáneos no mezclen sus bytes.
+     */
+    private void escribirMensaje(String mensaje) throws IOException {
+        synchronized (bloqueoEscritura) {
+            if (versionProtocolo == ProtocoloChat.VERSION_BINARIA) {
+                dataOutputStream.write(ProtocoloChat.codificar(mensaje));
+            } else {
+                dataOutputStream.writeUTF(mensaje);
+            }
+            dataOutputStream.flush();
+        }
+    }
+    
     /**
      * Inicia el hilo de recepción de mensajes del servidor.
      * Este hilo escucha constantemente mensajes entrantes.
@@ -119,8 +257,31 @@ public class SocketCliente {
                 
                 while (recibiendo && conectado) {
                     try {
-                        // Leer mensaje UTF del servidor (bloqueante)
-                        String mensaje = dataInputStream.readUTF();
+                        // Leer mensaje del servidor (bloqueante)
+                        String mensaje = leerMensaje();
+                        
+                        // Latido del servidor: se responde y no se pasa a la aplicación
+                        if (mensaje.startsWith("[PING]")) {
+                            responderLatido(mensaje.substring(6));
+                            continue;
+                        }
+                        
+                        // Confirmación de los mensajes numerados
+                        if (mensaje.startsWith("[ACK]")) {
+                            confirmar(ProtocoloChat.secuenciaDeAck(mensaje));
+                            alIniciarSesion();
+                            continue;
+                        }
+                        
+                        // Token para reanudar la sesión al reconectar
+                        if (mensaje.startsWith("[SESSION]")) {
+                            tokenSesion = mensaje.substring(9);
+                            alIniciarSesion();
+                            continue;
+                        }
+                        if (mensaje.startsWith("[SYSTEM]Error: Sesión caducada")) {
+                            tokenSesion = null;
+                        }
                         
                         Log.d(TAG, "Mensaje recibido: " + mensaje);
                         
@@ -129,6 +290,18 @@ public class SocketCliente {
                             messageListener.onMessageReceived(mensaje);
                         }
                         
+                    } catch (SocketTimeoutException e) {
+                        // Sin latidos en tres intervalos: la conexión está medio abierta
+                        if (recibiendo) {
+                            Log.e(TAG, "Sin latidos del servidor, se da la conexión por perdida");
+                            recibiendo = false;
+                            conectado = false;
+                            cerrarConexion();
+                            
+                            if (connectionListener != null) {
+                                connectionListener.onDisconnected("Sin respuesta del servidor");
+                            }
+                        }
                     } catch (IOException e) {
                         if (recibiendo) {
                             Log.e(TAG, "Error al recibir mensaje: " + e.getMessage());
@@ -149,9 +322,106 @@ public class SocketCliente {
         recepcionThread.start();
     }
     
+    /**
+     * Responde a un [PING] del servidor. El cuerpo es el intervalo de latido en
+     * ms: si en tres intervalos no llega nada, la lectura falla por tiempo.
+     */
+    private void responderLatido(String intervalo) throws IOException {
+        try {
+            int timeout = 3 * Integer.parseInt(intervalo.trim());
+            if (socket != null && socket.getSoTimeout() != timeout) {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Intervalo de latido inválido: " + intervalo);
+        }
+        escribirMensaje("[PONG]");
+    }
+    
+    /**
+     * Tras iniciar o reanudar sesión (el primer [ACK] o [SESSION] de la
+     * conexión, lo que llegue antes: sin sesiones en el servidor solo llega
+     * el [ACK]), repetir la suscripción a alertas y reenviar lo pendiente
+     */
+    private void alIniciarSesion() throws IOException {
+        if (sesionIniciada) {
+            return;
+        }
+        sesionIniciada = true;
+        // El servidor no guarda la zona de alertas en la sesión
+        String suscripcion = suscripcionAlertas;
+        if (suscripcion != null) {
+            escribirMensaje(suscripcion);
+        }
+        reenviarPendientes();
+    }
+    
+    /**
+     * Quitar de la ventana los mensajes confirmados hasta secuencia y
+     * avisar de que se han enviado
+     */
+    private void confirmar(long secuencia) {
+        if (secuencia < 0) {
+            return;
+        }
+        servidorConfirma = true;
+        List<String> confirmados = new ArrayList<>();
+        synchronized (bloqueoEscritura) {
+            while (!sinConfirmar.isEmpty() && sinConfirmar.peekFirst().secuencia <= secuencia) {
+                confirmados.add(sinConfirmar.pollFirst().mensaje);
+            }
+        }
+        if (messageListener != null) {
+            for (String mensaje : confirmados) {
+                messageListener.onMessageSent(mensaje);
+            }
+        }
+    }
+    
+    /**
+     * Reenviar en orden los mensajes que siguen sin confirmar (tras el
+     * [ACK] del login o de reanudar la sesión, que ya ha quitado los que
+     * habían llegado)
+     */
+    private void reenviarPendientes() throws IOException {
+        synchronized (bloqueoEscritura) {
+            if (!reenvioPendiente) {
+                return;
+            }
+            if (servidorConfirma) {
+                for (MensajePendiente pendiente : sinConfirmar) {
+                    escribirMensaje(ProtocoloChat.numerado(pendiente.secuencia, pendiente.mensaje));
+                }
+                Log.d(TAG, "Reenviados " + sinConfirmar.size() + " mensajes sin confirmar");
+            }
+            reenvioPendiente = false;
+        }
+    }
+    
+    /**
+     * Numera un [MSG], lo guarda en la ventana y lo escribe (o lo deja para
+     * el reenvío si aún quedan pendientes de la conexión anterior). Numerar y
+     * escribir van juntos para que salgan en orden.
+     * @return false si la ventana está llena
+     */
+    private boolean enviarNumerado(String mensaje) throws IOException {
+        synchronized (bloqueoEscritura) {
+            if (sinConfirmar.size() >= VENTANA_MAXIMA) {
+                return false;
+            }
+            MensajePendiente pendiente = new MensajePendiente(++ultimaSecuencia, mensaje);
+            sinConfirmar.addLast(pendiente);
+            if (!reenvioPendiente) {
+                escribirMensaje(ProtocoloChat.numerado(pendiente.secuencia, mensaje));
+            }
+            return true;
+        }
+    }
+    
     /**
      * Envía un mensaje de texto plano al servidor.
-     * Se ejecuta en un hilo separado para no bloquear el UI.
+     * Se ejecuta en un hilo separado para no bloquear el UI. Con un servidor
+     * que confirma, los [MSG] se numeran y onMessageSent llega con el [ACK].
      * @param mensaje Texto a enviar
      */
     public void enviarMensaje(final String mensaje) {
@@ -163,13 +433,32 @@ public class SocketCliente {
             return;
         }
         
+        if (mensaje.startsWith("[LOGOUT]")) {
+            // El servidor anula la sesión: ya no se puede reanudar, ni reenviar lo pendiente
+            tokenSesion = null;
+            synchronized (bloqueoEscritura) {
+                sinConfirmar.clear();
+                reenvioPendiente = false;
+            }
+        }
+        
         Thread envioThread = new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    // Enviar mensaje como UTF
-                    dataOutputStream.writeUTF(mensaje);
-                    dataOutputStream.flush();
+                    if (servidorConfirma && mensaje.startsWith("[MSG]")) {
+                        // Se avisa del envío cuando llegue su [ACK]
+                        if (!enviarNumerado(mensaje)) {
+                            Log.w(TAG, "Demasiados mensajes sin confirmar");
+                            if (messageListener != null) {
+                                messageListener.onError("Demasiados mensajes sin confirmar, espera un momento");
+                            }
+                        }
+                        return;
+                    }
+                    
+                    // Enviar mensaje en la versión negociada
+                    escribirMensaje(mensaje);
                     
                     Log.d(TAG, "Mensaje enviado: " + mensaje);
                     
@@ -190,6 +479,108 @@ public class SocketCliente {
         envioThread.start();
     }
     
+    /**
+     * Se une a una sala del Centro de Control; los mensajes [MSG] siguientes
+     * solo los reciben los miembros de esa sala.
+     * @param sala Nombre de la sala (p. ej. un barrio o una incidencia)
+     */
+    public void unirseSala(String sala) {
+        enviarMensaje("[JOIN]" + sala);
+    }
+
+    /**
+     * Sale de una sala. Sin salas, el cliente vuelve al lobby.
+     * @param sala Nombre de la sala
+     */
+    public void salirSala(String sala) {
+        enviarMensaje("[LEAVE]" + sala);
+    }
+
+    /**
+     * Pide al servidor los mensajes de sus salas que se han perdido desde el
+     * último recibido (todo el historial si aún no se ha recibido ninguno).
+     * Llamar tras iniciar sesión y unirse a las salas.
+     */
+    public void recuperarHistorial() {
+        enviarMensaje("[REPLAY]" + ultimoOffset);
+    }
+    
+    /**
+     * Recibe las alertas de incidencias ([ALERT]...) que se publiquen a
+     * menos de radioMetros del punto, sustituyendo la zona anterior. Se
+     * repite sola tras reconectar e iniciar o reanudar sesión.
+     */
+    public void suscribirAlertas(double latitud, double longitud, int radioMetros) {
+        suscripcionAlertas = String.format(Locale.ROOT, "[SUBSCRIBE]%.6f;%.6f;%d", latitud, longitud, radioMetros);
+        enviarMensaje(suscripcionAlertas);
+    }
+
+    /**
+     * Deja de recibir alertas de incidencias
+     */
+    public void cancelarAlertas() {
+        suscripcionAlertas = null;
+        enviarMensaje("[SUBSCRIBE]off");
+    }
+
+    /**
+     * Avisa de una incidencia a los clientes suscritos a su zona. Necesita
+     * posición, categoría, urgencia (Baja, Media o Alta) y título.
+     */
+    public void enviarAlerta(Incidencia incidencia) {
+        enviarMensaje(ProtocoloChat.alerta(incidencia));
+    }
+    
+    /**
+     * Reanuda la sesión anterior en lugar de iniciar sesión: el servidor
+     * devuelve el nombre y las salas sin anunciar la conexión a todos,
+     * reenvía lo perdido desde el último offset recibido y confirma los
+     * mensajes propios que ya le llegaron; el resto se reenvía solo. Si responde
+     * "[SYSTEM]Error: Sesión caducada..." hay que enviar un [LOGIN] normal.
+     * @return false si no hay token (primera conexión): usar [LOGIN]
+     */
+    public boolean reanudarSesion() {
+        String token = tokenSesion;
+        if (token == null) {
+            return false;
+        }
+        // Con el último número asignado, el servidor sabe qué le falta por recibir
+        long secuencia;
+        synchronized (bloqueoEscritura) {
+            secuencia = ultimaSecuencia;
+        }
+        enviarMensaje("[RESUME]" + token + " " + ultimoOffset + " " + secuencia);
+        return true;
+    }
+    
+    /**
+     * Token de la sesión actual (null si no hay), para guardarlo si la
+     * aplicación quiere reanudar también tras cerrarse
+     */
+    public String getTokenSesion() {
+        return tokenSesion;
+    }
+    
+    public void setTokenSesion(String tokenSesion) {
+        this.tokenSesion = tokenSesion;
+    }
+    
+    /**
+     * Mensajes de chat enviados que el servidor aún no ha confirmado
+     */
+    public int getMensajesSinConfirmar() {
+        synchronized (bloqueoEscritura) {
+            return sinConfirmar.size();
+        }
+    }
+    
+    /**
+     * Último offset del diario recibido (solo con protocolo v2)
+     */
+    public long getUltimoOffset() {
+        return ultimoOffset;
+    }
+    
     /**
      * Desconecta del servidor y libera recursos.
      */
@@ -199,7 +590,19 @@ public class SocketCliente {
         recibiendo = false;
         conectado = false;
         
-        // Cerrar streams
+        cerrarConexion();
+        
+        Log.d(TAG, "Desconectado");
+        
+        if (connectionListener != null) {
+            connectionListener.onDisconnected("Desconectado manualmente");
+        }
+    }
+    
+    /**
+     * Cierra streams y socket
+     */
+    private void cerrarConexion() {
         try {
             if (dataInputStream != null) {
                 dataInputStream.close();
@@ -227,12 +630,6 @@ public class SocketCliente {
         dataInputStream = null;
         dataOutputStream = null;
         socket = null;
-        
-        Log.d(TAG, "Desconectado");
-        
-        if (connectionListener != null) {
-            connectionListener.onDisconnected("Desconectado manualmente");
-        }
     }
     
     /**
@@ -242,6 +639,13 @@ public class SocketCliente {
         return conectado && socket != null && socket.isConnected() && !socket.isClosed();
     }
     
+    /**
+     * Versión del protocolo negociada con el servidor
+     */
+    public int getVersionProtocolo() {
+        return versionProtocolo;
+    }
+    
     /**
      * Obtiene la IP del servidor
      */
@@ -256,10 +660,25 @@ public class SocketCliente {
         return serverPort;
     }
     
+    /**
+     * Mensaje numerado pendiente de confirmar
+     */
+    private static final class MensajePendiente {
+        final long secuencia;
+        final String mensaje;
+        
+        MensajePendiente(long secuencia, String mensaje) {
+            this.secuencia = secuencia;
+            this.mensaje = mensaje;
+        }
+    }
+    
     // Interfaces de callback
     
     /**
-     * Listener para mensajes enviados y recibidos
+     * Listener para mensajes enviados y recibidos. Con un servidor que
+     * confirma, onMessageSent de un [MSG] llega cuando el servidor lo ha
+     * recibido ([ACK]), no al escribirlo en el socket.
      */
     public interface OnMessageListener {
         void onMessageReceived(String mensaje);
@@ -0,0 +1,185 @@
+package network;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reenvío de los mensajes sin confirmar al reconectar con un servidor sin
+ * sesiones (solo envía [ACK] al iniciar sesión, nunca [SESSION])
+ */
+public class SocketClienteTest {
+
+    private static final long ESPERA_MS = 5000;
+
+    /**
+     * Servidor de pruebas con protocolo v2 que confirma los [SEQ] como el
+     * Centro de Control sin --sessions: cada conexión empieza en 0
+     */
+    private static final class ServidorSinSesiones implements Runnable {
+        final ServerSocket serverSocket;
+        final BlockingQueue<String> recibidos = new LinkedBlockingQueue<>();
+        volatile boolean confirmar = true;
+        volatile Socket actual;
+
+        ServidorSinSesiones() throws IOException {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            Thread hilo = new Thread(this, "servidor-pruebas");
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try (Socket socket = serverSocket.accept()) {
+                    actual = socket;
+                    atender(socket);
+                } catch (IOException e) {
+                    // Conexión cortada: se espera la siguiente
+                }
+            }
+        }
+
+        private void atender(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (!in.readUTF().equals("[HELLO]2")) {
+                throw new IOException("Se esperaba [HELLO]2");
+            }
+            out.writeUTF("[HELLO]2");
+            long ultimaSecuencia = 0;
+            while (true) {
+                byte[] datos = new byte[in.readInt()];
+                in.readFully(datos);
+                String mensaje = ProtocoloChat.decodificar(datos);
+                recibidos.add(mensaje);
+                if (mensaje.startsWith("[LOGIN]")) {
+                    // El [ACK] antes del aviso, para que el cliente ya numere al recibirlo
+                    out.write(ProtocoloChat.codificar("[ACK]" + ultimaSecuencia));
+                    out.write(ProtocoloChat.codificar("[SYSTEM]Conexión exitosa. Bienvenido, " + mensaje.substring(7) + "!"));
+                } else if (mensaje.startsWith("[SEQ]")) {
+                    long secuencia = Long.parseLong(mensaje.substring(5, mensaje.indexOf(' ')));
+                    ultimaSecuencia = Math.max(ultimaSecuencia, secuencia);
+                    if (confirmar) {
+                        out.write(ProtocoloChat.codificar("[ACK]" + ultimaSecuencia));
+                    }
+                }
+                out.flush();
+            }
+        }
+
+        void cortar() throws IOException {
+            actual.close();
+        }
+
+        String siguiente() throws InterruptedException {
+            String mensaje = recibidos.poll(ESPERA_MS, TimeUnit.MILLISECONDS);
+            assertNotNull("El servidor no ha recibido nada", mensaje);
+            return mensaje;
+        }
+    }
+
+    private ServidorSinSesiones servidor;
+    private SocketCliente cliente;
+    private final BlockingQueue<String> eventos = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws IOException {
+        servidor = new ServidorSinSesiones();
+        cliente = new SocketCliente("127.0.0.1", servidor.serverSocket.getLocalPort());
+        cliente.setOnConnectionListener(new SocketCliente.OnConnectionListener() {
+            @Override
+            public void onConnected() {
+                eventos.add("conectado");
+            }
+
+            @Override
+            public void onDisconnected(String razon) {
+                eventos.add("desconectado");
+            }
+
+            @Override
+            public void onConnectionError(String error) {
+                eventos.add("error");
+            }
+        });
+        cliente.setOnMessageListener(new SocketCliente.OnMessageListener() {
+            @Override
+            public void onMessageReceived(String mensaje) {
+                if (mensaje.startsWith("[SYSTEM]Conexión exitosa")) {
+                    eventos.add("sesion");
+                }
+            }
+
+            @Override
+            public void onMessageSent(String mensaje) {
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        cliente.desconectar();
+        servidor.serverSocket.close();
+    }
+
+    private void esperar(String evento) throws InterruptedException {
+        assertEquals(evento, eventos.poll(ESPERA_MS, TimeUnit.MILLISECONDS));
+    }
+
+    private void iniciarSesion() throws InterruptedException {
+        cliente.conectar();
+        esperar("conectado");
+        cliente.enviarMensaje("[LOGIN]ana");
+        assertEquals("[LOGIN]ana", servidor.siguiente());
+        esperar("sesion");
+    }
+
+    @Test
+    public void alReconectarSinSesionesReenviaLoPendienteYSigue() throws Exception {
+        iniciarSesion();
+
+        // Dos mensajes que el servidor recibe pero no llega a confirmar
+        servidor.confirmar = false;
+        cliente.enviarMensaje("[MSG]uno");
+        assertEquals("[SEQ]1 uno", servidor.siguiente());
+        cliente.enviarMensaje("[MSG]dos");
+        assertEquals("[SEQ]2 dos", servidor.siguiente());
+        assertEquals(2, cliente.getMensajesSinConfirmar());
+
+        servidor.cortar();
+        esperar("desconectado");
+
+        // El servidor no envía [SESSION]: basta el [ACK] del login para reenviar
+        servidor.confirmar = true;
+        iniciarSesion();
+        assertEquals("[SEQ]1 uno", servidor.siguiente());
+        assertEquals("[SEQ]2 dos", servidor.siguiente());
+
+        // Lo nuevo ya no se queda retenido detrás del reenvío
+        cliente.enviarMensaje("[MSG]tres");
+        assertEquals("[SEQ]3 tres", servidor.siguiente());
+        long limite = System.currentTimeMillis() + ESPERA_MS;
+        while (cliente.getMensajesSinConfirmar() > 0 && System.currentTimeMillis() < limite) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cliente.getMensajesSinConfirmar());
+    }
+}
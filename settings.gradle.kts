@@ -21,4 +21,5 @@ dependencyResolutionManagement {
 
 rootProject.name = "EcoCity"
 include(":app")
+include(":CentroDeControl")
  
\ No newline at end of file